@@ -1,6 +1,5 @@
 package com.infrarch.engine;
 
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
 
@@ -22,7 +21,16 @@ public abstract class AbstractCommand implements Command {
 	public abstract String[] getSupportedCommands();
 	
 	/**
-	 * @see Command#execute(HttpServletRequest, JsonObject, JsonObjectBuilder)
+	 * Declares no parameters.
+	 * 
+	 * @see Command#getParameters(String)
 	 */
-	public abstract void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable;
+	public Parameter[] getParameters(String cmdStr) {
+		return Parameter.NONE;
+	}
+	
+	/**
+	 * @see Command#execute(HttpServletRequest, Parameters, JsonObjectBuilder)
+	 */
+	public abstract void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable;
 }
@@ -0,0 +1,29 @@
+package com.infrarch.engine;
+
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * An abstract {@link StreamingCommand}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public abstract class AbstractStreamingCommand extends AbstractCommand implements StreamingCommand {
+
+	/**
+	 * Streaming commands are executed by the {@link CommandManager} through
+	 * {@link #execute(HttpServletRequest, Parameters, ResponseWriter)} only.
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public final void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
+		throw new UnsupportedOperationException("Streaming command: " + getClass());
+	}
+
+	/**
+	 * @see StreamingCommand#execute(HttpServletRequest, Parameters, ResponseWriter)
+	 */
+	public abstract void execute(HttpServletRequest request, Parameters params, ResponseWriter writer) throws Throwable;
+}
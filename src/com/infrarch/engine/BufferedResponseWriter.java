@@ -0,0 +1,99 @@
+package com.infrarch.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * A {@link ResponseWriter} which builds the result in memory instead of
+ * writing it to the client. Used to execute commands whose results cannot
+ * be written yet, for example commands of a batch executed out of order.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class BufferedResponseWriter extends ResponseWriter {
+
+	private static final JsonBuilderFactory factory = Json.createBuilderFactory(null);
+
+	// open builders and the names to add them under to their parents
+	private final List<Object> builders = new ArrayList<Object>();
+	private final List<String> names = new ArrayList<String>();
+	private JsonObject result;
+
+	/**
+	 * Returns the last result closed by the writer.
+	 *
+	 * @return the result or <code>null</code>, if no result has been closed
+	 */
+	public JsonObject getResult() {
+		return result;
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+
+	@Override
+	protected void startObject(String name) {
+		builders.add(factory.createObjectBuilder());
+		names.add(name);
+	}
+
+	@Override
+	protected void startArray(String name) {
+		builders.add(factory.createArrayBuilder());
+		names.add(name);
+	}
+
+	@Override
+	protected void end() {
+		int i = builders.size() - 1;
+		Object b = builders.remove(i);
+		String name = names.remove(i);
+		JsonValue v = b instanceof JsonObjectBuilder? ((JsonObjectBuilder) b).build() : ((JsonArrayBuilder) b).build();
+		if (builders.isEmpty()) result = (JsonObject) v;
+		else writeValue(name, v);
+	}
+
+	@Override
+	protected void writeString(String name, String value) {
+		Object b = builders.get(builders.size() - 1);
+		if (b instanceof JsonObjectBuilder) ((JsonObjectBuilder) b).add(name, value);
+		else ((JsonArrayBuilder) b).add(value);
+	}
+
+	@Override
+	protected void writeLong(String name, long value) {
+		Object b = builders.get(builders.size() - 1);
+		if (b instanceof JsonObjectBuilder) ((JsonObjectBuilder) b).add(name, value);
+		else ((JsonArrayBuilder) b).add(value);
+	}
+
+	@Override
+	protected void writeBoolean(String name, boolean value) {
+		Object b = builders.get(builders.size() - 1);
+		if (b instanceof JsonObjectBuilder) ((JsonObjectBuilder) b).add(name, value);
+		else ((JsonArrayBuilder) b).add(value);
+	}
+
+	@Override
+	protected void writeValue(String name, JsonValue value) {
+		Object b = builders.get(builders.size() - 1);
+		if (b instanceof JsonObjectBuilder) ((JsonObjectBuilder) b).add(name, value);
+		else ((JsonArrayBuilder) b).add(value);
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+}
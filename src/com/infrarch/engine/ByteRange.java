@@ -0,0 +1,132 @@
+package com.infrarch.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes of a file requested with the {@code Range} header.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ByteRange {
+
+	/**
+	 * The maximum number of ranges served in one response. Requests for more
+	 * ranges (after merging the overlapping ones) are answered with the
+	 * whole file.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private static final String BYTES_UNIT = "bytes=";
+
+	private final long start;
+	private final long end;
+
+	/**
+	 * Creates a range.
+	 *
+	 * @param start position of the first byte
+	 * @param end position of the last byte
+	 */
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the number of bytes in the range.
+	 *
+	 * @return length of the range
+	 */
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Returns the value of the {@code Content-Range} header for the range.
+	 *
+	 * @param total length of the file
+	 * @return header value
+	 */
+	public String toContentRange(long total) {
+		return "bytes " + start + "-" + end + "/" + total;
+	}
+
+	/**
+	 * Parses the value of a {@code Range} header. The satisfiable ranges
+	 * are returned sorted, with the ones overlapping or adjacent to each
+	 * other merged.
+	 *
+	 * @param header header value
+	 * @param length length of the file
+	 * @return the ranges, an empty list, if none of the ranges can be
+	 * 			satisfied, or <code>null</code>, if the header is not valid,
+	 * 			not in bytes or asks for too many ranges, and should be ignored
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		header = header.trim();
+		if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) return null;
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		for (String spec: header.substring(BYTES_UNIT.length()).split(",")) {
+			spec = spec.trim();
+			if (spec.isEmpty()) continue;
+			int idx = spec.indexOf('-');
+			if (idx < 0) return null;
+			long first, last;
+			try {
+				// a suffix: the last bytes
+				if (idx == 0) {
+					long n = Long.parseLong(spec.substring(1));
+					if (n < 0) return null;
+					if (n == 0 || length == 0) continue;
+					first = Math.max(0, length - n);
+					last = length - 1;
+				}
+				else {
+					first = Long.parseLong(spec.substring(0, idx));
+					last = idx == spec.length() - 1? Long.MAX_VALUE : Long.parseLong(spec.substring(idx + 1));
+					if (first < 0 || last < first) return null;
+					if (first >= length) continue;
+					last = Math.min(last, length - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			ranges.add(new ByteRange(first, last));
+		}
+		if (ranges.size() <= 1) return ranges;
+
+		Collections.sort(ranges, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange r1, ByteRange r2) {
+				return Long.compare(r1.start, r2.start);
+			}
+		});
+		List<ByteRange> merged = new ArrayList<ByteRange>();
+		ByteRange current = ranges.get(0);
+		for (int i = 1; i < ranges.size(); i++) {
+			ByteRange r = ranges.get(i);
+			if (r.start <= current.end + 1) {
+				if (r.end > current.end) current = new ByteRange(current.start, r.end);
+			}
+			else {
+				merged.add(current);
+				current = r;
+			}
+		}
+		merged.add(current);
+		return merged.size() > MAX_RANGES? null : merged;
+	}
+}
@@ -0,0 +1,211 @@
+package com.infrarch.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * A {@link ResponseWriter} producing CBOR (RFC 7049). Objects and arrays
+ * opened by the writer are encoded with indefinite length, so results can
+ * be streamed without knowing the number of entries in advance. The
+ * document is the same as the JSON one, item for item.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class CborResponseWriter extends ResponseWriter {
+
+	public static final String CONTENT_TYPE = "application/cbor";
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1 << 5;
+	private static final int MAJOR_TEXT = 3 << 5;
+	private static final int MAJOR_ARRAY = 4 << 5;
+	private static final int MAJOR_MAP = 5 << 5;
+
+	private static final int INDEFINITE_ARRAY = 0x9f;
+	private static final int INDEFINITE_MAP = 0xbf;
+	private static final int BREAK = 0xff;
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int DOUBLE = 0xfb;
+
+	private static final BigDecimal MIN_LONG = BigDecimal.valueOf(Long.MIN_VALUE);
+	private static final BigDecimal MAX_LONG = BigDecimal.valueOf(Long.MAX_VALUE);
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[8192];
+	private int count = 0;
+
+	public CborResponseWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	protected void startObject(String name) {
+		key(name);
+		put(INDEFINITE_MAP);
+	}
+
+	@Override
+	protected void startArray(String name) {
+		key(name);
+		put(INDEFINITE_ARRAY);
+	}
+
+	@Override
+	protected void end() {
+		put(BREAK);
+	}
+
+	@Override
+	protected void writeString(String name, String value) {
+		key(name);
+		text(value);
+	}
+
+	@Override
+	protected void writeLong(String name, long value) {
+		key(name);
+		integer(value);
+	}
+
+	@Override
+	protected void writeBoolean(String name, boolean value) {
+		key(name);
+		put(value? TRUE : FALSE);
+	}
+
+	@Override
+	protected void writeValue(String name, JsonValue value) {
+		key(name);
+		value(value);
+	}
+
+	private void key(String name) {
+		if (name != null) text(name);
+	}
+
+	private void value(JsonValue value) {
+		switch (value.getValueType()) {
+			case OBJECT:
+				JsonObject obj = (JsonObject) value;
+				head(MAJOR_MAP, obj.size());
+				for (Map.Entry<String, JsonValue> e: obj.entrySet()) {
+					text(e.getKey());
+					value(e.getValue());
+				}
+				break;
+			case ARRAY:
+				JsonArray arr = (JsonArray) value;
+				head(MAJOR_ARRAY, arr.size());
+				for (JsonValue v: arr) value(v);
+				break;
+			case STRING:
+				text(((JsonString) value).getString());
+				break;
+			case NUMBER:
+				BigDecimal n = ((JsonNumber) value).bigDecimalValue();
+				if (((JsonNumber) value).isIntegral() && n.compareTo(MIN_LONG) >= 0 && n.compareTo(MAX_LONG) <= 0) {
+					integer(n.longValue());
+				}
+				else {
+					put(DOUBLE);
+					long bits = Double.doubleToLongBits(n.doubleValue());
+					for (int i = 56; i >= 0; i -= 8) put((int) (bits >>> i));
+				}
+				break;
+			case TRUE: put(TRUE); break;
+			case FALSE: put(FALSE); break;
+			default: put(NULL);
+		}
+	}
+
+	private void integer(long value) {
+		if (value >= 0) head(MAJOR_UNSIGNED, value);
+		else head(MAJOR_NEGATIVE, -1 - value);
+	}
+
+	private void text(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		head(MAJOR_TEXT, b.length);
+		if (b.length > buffer.length - count) {
+			drain();
+			if (b.length > buffer.length) {
+				try {
+					out.write(b);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+		}
+		System.arraycopy(b, 0, buffer, count, b.length);
+		count += b.length;
+	}
+
+	/**
+	 * Writes the initial byte of an item and its argument in the shortest form.
+	 */
+	private void head(int major, long value) {
+		if (value < 24) put(major | (int) value);
+		else if (value < 0x100) {
+			put(major | 24);
+			put((int) value);
+		}
+		else if (value < 0x10000) {
+			put(major | 25);
+			put((int) (value >>> 8));
+			put((int) value);
+		}
+		else if (value < 0x100000000L) {
+			put(major | 26);
+			for (int i = 24; i >= 0; i -= 8) put((int) (value >>> i));
+		}
+		else {
+			put(major | 27);
+			for (int i = 56; i >= 0; i -= 8) put((int) (value >>> i));
+		}
+	}
+
+	private void put(int b) {
+		if (count == buffer.length) drain();
+		buffer[count++] = (byte) b;
+	}
+
+	private void drain() {
+		try {
+			out.write(buffer, 0, count);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		drain();
+		out.close();
+	}
+}
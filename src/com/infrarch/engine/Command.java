@@ -1,6 +1,5 @@
 package com.infrarch.engine;
 
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
 
@@ -20,13 +19,24 @@ public interface Command {
 	 */
 	public String[] getSupportedCommands();
 	
+	/**
+	 * Returns the declarations of the parameters of a supported command. 
+	 * The request's parameters are bound to them before the command is 
+	 * executed; the command is not executed, if a required parameter is 
+	 * missing or a parameter is not valid.
+	 * 
+	 * @param cmdStr supported command name
+	 * @return parameter declarations
+	 */
+	public Parameter[] getParameters(String cmdStr);
+	
 	/**
 	 * Executes the command.
 	 * 
 	 * @param request client's HTTP request object
-	 * @param params the parsed request's parameters represented as a {@code JsonObject}
+	 * @param params the request's parameters bound to {@link #getParameters(String)}
 	 * @param builder a {@code JsonObjectBuilder} for the result
 	 * @throws Throwable all exceptions are given to the container to handle
 	 */
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable;
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable;
 }
@@ -1,32 +1,52 @@
 package com.infrarch.engine;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
 
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.CommandMetrics;
+import com.infrarch.engine.worker.MetricsManager;
+
 /**
- * {@code Engine}'s commands are registered and operated by the 
+ * {@code Engine}'s commands are registered and operated by the
  * {@code CommandManager}.
- * 
+ * <p>
+ * Registration is copy-on-write: each change publishes a new immutable
+ * command list and a new index from the lower-cased command name to the
+ * supporting {@code Command}. Lookups only read the current index and do
+ * not lock.
+ *
  * @author Assen Antov
  * @version 1.0, 07/2016
  */
 public class CommandManager {
 
 	private final Logger logger = Logger.getLogger(getClass());
-	
+
 	private static final CommandManager instance = new CommandManager();
-	private final List<Command> commands = new LinkedList<Command>();
-	
+	private static final JsonBuilderFactory builderFactory = Json.createBuilderFactory(null);
+
+	private volatile List<Command> commands = Collections.emptyList();
+	private volatile Map<String, Command> index = Collections.emptyMap();
+
 	public static CommandManager getInstance() {
 		return instance;
 	}
-	
+
 	/**
 	 * Registers a {@link Command} to the manager.
-	 * 
+	 *
 	 * @param	cmd {@code Command} to register
 	 * @return	<code>true</code>, if newly added; <code>false</code>, if has
 	 * 			already been added
@@ -36,75 +56,136 @@ public class CommandManager {
 			logger.warn("Attempting to register command which is already registered: " + cmd.getClass());
 			return false;
 		}
-		boolean b = commands.add(cmd);
-		if (b) logger.info("Registered command: " + cmd.getClass());
-		else logger.warn("Attempting to register command which is already registered: " + cmd.getClass());
-		return b;
+		List<Command> list = new ArrayList<Command>(commands);
+		list.add(cmd);
+		publish(list);
+		logger.info("Registered command: " + cmd.getClass());
+		return true;
 	}
-	
+
 	/**
 	 * Deregisters a {@link Command} from the manager.
-	 * 
+	 *
 	 * @param	cmd {@code Command} to deregister
 	 * @return	<code>true</code>, if deregistered; <code>false</code>, if the
 	 * 			command was not found
 	 */
 	public synchronized boolean deregisterCommand(Command cmd) {
-		boolean b = commands.remove(cmd);
-		if (b) logger.info("Deregistered command: " + cmd.getClass());
+		List<Command> list = new ArrayList<Command>(commands);
+		boolean b = list.remove(cmd);
+		if (b) {
+			publish(list);
+			logger.info("Deregistered command: " + cmd.getClass());
+		}
 		else logger.warn("Attempting to deregister command which has not been registered: " + cmd.getClass());
 		return b;
 	}
-	
+
 	/**
-	 * Queries if a {@code Command} has been registered. 
-	 * 
+	 * Rebuilds the name index for the parameter command list and publishes
+	 * both. The first registered command wins if two commands support the
+	 * same name.
+	 */
+	private void publish(List<Command> list) {
+		Map<String, Command> map = new HashMap<String, Command>();
+		for (Command cmd: list) {
+			for (String c: cmd.getSupportedCommands()) {
+				String key = c.toLowerCase(Locale.ROOT);
+				if (!map.containsKey(key)) map.put(key, cmd);
+			}
+		}
+		index = Collections.unmodifiableMap(map);
+		commands = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Queries if a {@code Command} has been registered.
+	 *
 	 * @param cl command's {@code Class}
 	 * @return registered or not
 	 */
-	public synchronized boolean isRegistered(Class<?> cl) {
-		Iterator<Command> iter = commands.iterator();
-		while (iter.hasNext()) {
-			if (iter.next().getClass() == cl) return true;
+	public boolean isRegistered(Class<?> cl) {
+		for (Command cmd: commands) {
+			if (cmd.getClass() == cl) return true;
 		}
 		return false;
 	}
-	
+
 	/**
 	 * Returns the supporting {@code Command} for the parameter command
 	 * name.
-	 * 
+	 *
 	 * @param	cmdStr command name
-	 * @return	the first supporting {@code Command} instance found or <code>null</code>, 
+	 * @return	the first supporting {@code Command} instance found or <code>null</code>,
 	 * 			if no supporting {@code Command} is registered
 	 */
-	public synchronized Command getSupportingCommand(String cmdStr) {
-		Iterator<Command> iter = commands.iterator();
-		while (iter.hasNext()) {
-			Command cmd = iter.next();
-			if (isSupported(cmdStr, cmd)) return cmd;
+	public Command getSupportingCommand(String cmdStr) {
+		if (cmdStr == null) return null;
+		return index.get(cmdStr.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Executes a {@code Command} and writes its result to the open result of 
+	 * the parameter writer. The parameters are first bound to the command's 
+	 * declarations; the command is not executed, if they are not valid. 
+	 * {@link StreamingCommand}s write to the writer directly; the results of 
+	 * all other commands are built in memory and then written. The execution 
+	 * is recorded in the command's {@link CommandMetrics}.
+	 * 
+	 * @param cmd command to execute
+	 * @param request client's HTTP request object
+	 * @param params the request's parameters
+	 * @param writer writer with an open result
+	 * @throws Throwable any exception thrown by the command
+	 */
+	public void execute(Command cmd, HttpServletRequest request, Parameters params, ResponseWriter writer) throws Throwable {
+		String cmdStr = params.getCommand().toLowerCase(Locale.ROOT);
+		CommandMetrics metrics = MetricsManager.getInstance().getMetrics(cmdStr);
+		long start = metrics.start();
+		int code = Response.CODE_ERROR;
+		try {
+			int bound = params.bind(cmd.getParameters(cmdStr));
+			if (bound != Response.CODE_OK) {
+				EngineUtils.putStatus(writer, bound);
+			}
+			else if (cmd instanceof StreamingCommand) {
+				((StreamingCommand) cmd).execute(request, params, writer);
+			}
+			else {
+				JsonObjectBuilder builder = builderFactory.createObjectBuilder();
+				cmd.execute(request, params, builder);
+				writer.writeResult(builder.build());
+			}
+			code = writer.getStatus();
+		} finally {
+			metrics.end(start, code);
 		}
-		return null;
 	}
 	
-	private boolean isSupported(String cmdStr, Command cmd) {
-		String[] commands = cmd.getSupportedCommands();
-		for (String c: commands) {
-			if (c.equalsIgnoreCase(cmdStr)) return true;
-		}
-		return false;
+	/**
+	 * Returns the validator of the current result of a {@link ConditionalCommand}. 
+	 * 
+	 * @param cmd command to validate
+	 * @param request client's HTTP request object
+	 * @param params the request's parameters
+	 * @return the validator or <code>null</code>, if the command is not
+	 * 			conditional or its parameters are not valid
+	 */
+	public Validator getValidator(Command cmd, HttpServletRequest request, Parameters params) {
+		if (!(cmd instanceof ConditionalCommand)) return null;
+		String cmdStr = params.getCommand().toLowerCase(Locale.ROOT);
+		if (params.bind(cmd.getParameters(cmdStr)) != Response.CODE_OK) return null;
+		return ((ConditionalCommand) cmd).getValidator(request, params);
 	}
 	
 	/**
 	 * Returns an array of all command names supported by the engine.
-	 * 
+	 *
 	 * @return an array of all supported commands
 	 */
-	public synchronized String[] getSupportedCommands() {
-		List<String> cmds = new LinkedList<String>();
-		Iterator<Command> iter = commands.iterator();
-		while (iter.hasNext()) {
-			Command cmd = iter.next();
+	public String[] getSupportedCommands() {
+		List<String> cmds = new ArrayList<String>();
+		for (Command cmd: commands) {
 			String[] cmdStrings = cmd.getSupportedCommands();
 			for (String c: cmdStrings) cmds.add(c);
 		}
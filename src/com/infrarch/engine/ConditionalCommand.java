@@ -0,0 +1,27 @@
+package com.infrarch.engine;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A {@link Command} whose result can be validated without executing it. 
+ * The engine answers requests whose {@code If-None-Match} or 
+ * {@code If-Modified-Since} headers match the current {@link Validator} 
+ * with "304 Not Modified" and does not execute the command.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public interface ConditionalCommand extends Command {
+
+	/**
+	 * Returns the validator of the result the command would currently
+	 * return. Should cost no more than a {@code stat} of the file or 
+	 * directory the result is derived from.
+	 *
+	 * @param request client's HTTP request object
+	 * @param params the request's parameters bound to {@link #getParameters(String)}
+	 * @return the validator or <code>null</code>, if the result cannot be
+	 * 			validated, e.g. because the user has no access
+	 */
+	public Validator getValidator(HttpServletRequest request, Parameters params);
+}
@@ -2,13 +2,13 @@ package com.infrarch.engine;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Enumeration;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,24 +21,39 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.RollingFileAppender;
 
-import com.infrarch.engine.command.Upload;
+import com.infrarch.engine.command.Batch;
 import com.infrarch.engine.command.Copy;
 import com.infrarch.engine.command.Download;
+import com.infrarch.engine.command.DownloadDir;
+import com.infrarch.engine.command.DownloadMany;
 import com.infrarch.engine.command.ListContents;
 import com.infrarch.engine.command.Login;
+import com.infrarch.engine.command.Metrics;
 import com.infrarch.engine.command.Ping;
 import com.infrarch.engine.command.Recycle;
+import com.infrarch.engine.command.ResumableUpload;
 import com.infrarch.engine.command.Settings;
+import com.infrarch.engine.command.Upload;
+import com.infrarch.engine.command.WatchDir;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.AccessLog;
+import com.infrarch.engine.worker.BandwidthManager;
+import com.infrarch.engine.worker.CommandMetrics;
 import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.CountingOutputStream;
+import com.infrarch.engine.worker.ExecutionManager;
+import com.infrarch.engine.worker.MetricsManager;
+import com.infrarch.engine.worker.RateLimiter;
+import com.infrarch.engine.worker.TokenManager;
 
 /**
  * This servlet enables remote clients to execute file operations on 
  * a server. Clients send HTTP requests, the servlet executes them and returns 
- * results in either JSON format, when information is requested, or as binary data 
- * (MIME type "application/octet-stream"), when file download is requested.
+ * results in JSON format (or CBOR, if the client accepts it), when 
+ * information is requested, or as binary data (MIME type 
+ * "application/octet-stream"), when file download is requested.
  * 
  * @author Assen Antov
  * @version 1.0, 07/2016
@@ -63,9 +78,31 @@ public class Engine extends HttpServlet {
 	 * Session attribute name for authentication status of the session.
 	 */
 	public static final String ATTRIBUTE_AUTHENTICATED = "authenticated";
+	
+	/**
+	 * Request attribute name for the verified token of the request.
+	 */
+	public static final String ATTRIBUTE_TOKEN = "com.infrarch.engine.token";
+	
+	/**
+	 * Request attribute name for the {@code BandwidthManager.Transfer} 
+	 * of a transfer request.
+	 */
+	public static final String ATTRIBUTE_TRANSFER = "com.infrarch.engine.transfer";
+	
+	/**
+	 * HTTP status "429 Too Many Requests", which {@code HttpServletResponse} 
+	 * does not define.
+	 */
+	private static final int SC_TOO_MANY_REQUESTS = 429;
 
 	private Logger logger;
 	private ConfigurationManager engineConfig;
+	private AccessLog accessLog;
+	private RateLimiter rateLimiter;
+	private BandwidthManager bandwidthManager;
+	private TokenManager tokenManager;
+	private boolean executeRequests;
 
 	
 	@Override
@@ -87,6 +124,11 @@ public class Engine extends HttpServlet {
 		
 		// load settings
 		engineConfig.initialize();
+		accessLog = AccessLog.getInstance();
+		rateLimiter = RateLimiter.getInstance();
+		bandwidthManager = BandwidthManager.getInstance();
+		tokenManager = TokenManager.getInstance();
+		executeRequests = engineConfig.isExecuteRequests();
 		
 		// register commands
 		CommandManager instance = CommandManager.getInstance();
@@ -96,7 +138,10 @@ public class Engine extends HttpServlet {
 		instance.registerCommand(Recycle.getInstance());
 		instance.registerCommand(Settings.getInstance());
 		instance.registerCommand(Upload.getInstance());
+		instance.registerCommand(ResumableUpload.getInstance());
 		instance.registerCommand(Copy.getInstance());
+		instance.registerCommand(Batch.getInstance());
+		instance.registerCommand(Metrics.getInstance());
 		
 		logger.info("Server engine initialized");
 	}
@@ -105,102 +150,365 @@ public class Engine extends HttpServlet {
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		
 		// store starting time
-		long startTime = System.nanoTime();
+		final long startTime = System.nanoTime();
 		
 		// servlet init
 		request.setCharacterEncoding("UTF-8");
-		HttpSession session = request.getSession();
+		
+		// a request with a valid token is authenticated by it, without 
+		// a session
+		String user;
+		TokenManager.Token token = tokenManager.verify(request);
+		if (token != null) {
+			request.setAttribute(ATTRIBUTE_TOKEN, token);
+			user = token.getUser();
+		}
+		else {
+			HttpSession session = request.getSession();
+			user = (String) session.getAttribute(ATTRIBUTE_USER_NAME);
+		}
 
         // initialize common variables
- 		JsonObjectBuilder resultBuilder = Json.createObjectBuilder();
- 		JsonObjectBuilder paramsBuilder= Json.createObjectBuilder();
- 		String user = (String) session.getAttribute(ATTRIBUTE_USER_NAME);
  		if (user == null) user = "unknown";
  		String userIp = EngineUtils.getClientIP(request);
- 		String cmdStr = request.getParameter(Cmd.Q_COMMAND);
- 		
- 		// create a JSON object with the request data (will later add it to the response)
- 		paramsBuilder.add(Field.SESSION_USER_NAME, user);
- 		paramsBuilder.add(Field.SESSION_IP, userIp);
- 		Enumeration<String> e = request.getParameterNames();
-		while (e.hasMoreElements()) {
-			String name = (String) e.nextElement();
-			String param = EngineUtils.urlEncode(request.getParameter(name));
-			if (param == null) param = "";
-			paramsBuilder.add(name, param);
+ 		Parameters params = new Parameters(request, user, userIp);
+ 		if (token != null) params.setHome(token.getHome());
+ 		String cmdStr = params.getCommand();
+		
+		// admission control: limit the request rate and the number of 
+		// concurrent transfers of the user and the client's IP address
+		boolean authenticated = Worker.isAuthenticated(request);
+		int retryAfter = rateLimiter.acquire(authenticated? user : null, userIp);
+		final boolean transfer = retryAfter == 0 && authenticated && rateLimiter.isTransfer(cmdStr);
+		if (transfer && !rateLimiter.acquireTransfer(user, userIp)) retryAfter = 1;
+		if (retryAfter > 0) {
+			reject(request, response, params, retryAfter, startTime);
+			return;
+		}
+		
+		// transfers share the bandwidth
+		final BandwidthManager.Transfer bandwidth = transfer? bandwidthManager.open(user) : null;
+		if (bandwidth != null) request.setAttribute(ATTRIBUTE_TRANSFER, bandwidth);
+		
+		// the commands answered here rather than by the command manager 
+		// are recorded in their metrics by the engine
+		CommandMetrics metrics = null;
+		long metricsStart = 0;
+		int code = Response.CODE_ERROR;
+		if (authenticated && isDirect(cmdStr)) {
+			metrics = MetricsManager.getInstance().getMetrics(cmdStr);
+			metricsStart = metrics.start();
+		}
+		
+		boolean handedOver = false;
+		try {
+		
+			// download is specific because is the only one returning
+			// a stream; cannot initialize and use a Writer and an OutputStream
+			// in one response
+			if (Cmd.DOWNLOAD.equalsIgnoreCase(cmdStr) && authenticated) {
+				long bytes = Download.download(params, request, response, logger);
+				code = bytes < 0? Response.CODE_ERROR : Response.CODE_OK;
+				accessLog.log(user, userIp, cmdStr, code, Math.max(bytes, 0), System.nanoTime() - startTime);
+				
+				// an asynchronous download holds the transfer until it completes
+				if (transfer && request.isAsyncStarted()) {
+					request.getAsyncContext().addListener(new TransferListener(user, userIp, bandwidth));
+					handedOver = true;
+				}
+				return;
+			}
+			
+			// download_dir streams a ZIP archive of a directory
+			if (Cmd.DOWNLOAD_DIR.equalsIgnoreCase(cmdStr) && authenticated) {
+				DownloadDir zip = new DownloadDir(params, logger);
+				code = zip.check();
+				if (code != Response.CODE_OK) {
+					code = respondStatus(request, response, params, code, startTime);
+					return;
+				}
+				long bytes = zip.send(request, response);
+				code = bytes < 0? Response.CODE_ERROR : Response.CODE_OK;
+				accessLog.log(user, userIp, cmdStr, code, Math.max(bytes, 0), System.nanoTime() - startTime);
+				return;
+			}
+			
+			// download_many streams several files as a ZIP archive or multipart
+			if (Cmd.DOWNLOAD_MANY.equalsIgnoreCase(cmdStr) && authenticated) {
+				DownloadMany many = new DownloadMany(params, logger);
+				code = many.check(request);
+				if (code != Response.CODE_OK) {
+					code = respondStatus(request, response, params, code, startTime);
+					return;
+				}
+				long bytes = many.send(request, response);
+				code = bytes < 0? Response.CODE_ERROR : Response.CODE_OK;
+				accessLog.log(user, userIp, cmdStr, code, Math.max(bytes, 0), System.nanoTime() - startTime);
+				return;
+			}
+			
+			// watch_dir keeps the connection open and streams events to it
+			if (Cmd.WATCH_DIR.equalsIgnoreCase(cmdStr) && authenticated) {
+				code = WatchDir.watch(params, request, response, logger);
+				if (code == Response.CODE_OK) accessLog.log(user, userIp, cmdStr, code, 0, System.nanoTime() - startTime);
+				else code = respondStatus(request, response, params, code, startTime);
+				return;
+			}
+			
+			// upload_chunk reads its body with non-blocking I/O, releasing the 
+			// container's thread, and is answered once it has been received
+			if (Cmd.UPLOAD_CHUNK.equalsIgnoreCase(cmdStr) && authenticated) {
+				final HttpServletRequest r = request;
+				final Parameters p = params;
+				AsyncContext context = ResumableUpload.startChunk(request, params, new Runnable() {
+					@Override
+					public void run() {
+						AsyncContext context = r.getAsyncContext();
+						try {
+							respond((HttpServletRequest) context.getRequest(), 
+									(HttpServletResponse) context.getResponse(), p, startTime);
+						} catch (IOException | RuntimeException e) {
+							logger.error("Error writing response", e);
+						} finally {
+							context.complete();
+						}
+					}
+				});
+				if (context != null) {
+					if (transfer) {
+						context.addListener(new TransferListener(user, userIp, bandwidth));
+						handedOver = true;
+					}
+					return;
+				}
+			}
+			
+			// answer a conditional request for a result which has not changed 
+			// with "304 Not Modified", without executing the command
+			if (cmdStr != null && authenticated) {
+				Command engineCommand = CommandManager.getInstance().getSupportingCommand(cmdStr);
+				Validator validator = engineCommand == null? null : 
+					CommandManager.getInstance().getValidator(engineCommand, request, params);
+				if (validator != null) {
+					validator.setHeaders(response);
+					if (validator.isNotModified(request)) {
+						response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						accessLog.log(user, userIp, cmdStr, Response.CODE_OK, 0, System.nanoTime() - startTime);
+						MetricsManager.getInstance().getMetrics(cmdStr).record(startTime, Response.CODE_OK);
+						return;
+					}
+				}
+			}
+			
+			// hand the request over to the request executor, if configured, 
+			// releasing the container's thread
+			if (executeRequests && request.isAsyncSupported()) {
+				final AsyncContext context = request.startAsync();
+				context.setTimeout(0);
+				final Parameters p = params;
+				try {
+					ExecutionManager.getInstance().getRequestExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								respond((HttpServletRequest) context.getRequest(), 
+										(HttpServletResponse) context.getResponse(), p, startTime);
+							} catch (IOException | RuntimeException e) {
+								logger.error("Error writing response", e);
+							} finally {
+								if (transfer) releaseTransfer(p.getUser(), p.getIp(), bandwidth);
+								context.complete();
+							}
+						}
+					});
+					handedOver = true;
+				} catch (RejectedExecutionException e) {
+					// shutting down; execute the command on this thread
+					try {
+						respond(request, response, params, startTime);
+					} finally {
+						context.complete();
+					}
+				}
+				return;
+			}
+			
+			respond(request, response, params, startTime);
+		} finally {
+			if (metrics != null) metrics.end(metricsStart, code);
+			if (transfer && !handedOver) releaseTransfer(user, userIp, bandwidth);
 		}
-		JsonObject params = paramsBuilder.build();
+	}
+	
+	/**
+	 * Checks if a command is answered by the engine itself, rather than 
+	 * executed by the command manager.
+	 */
+	private static boolean isDirect(String cmdStr) {
+		return Cmd.DOWNLOAD.equalsIgnoreCase(cmdStr) || Cmd.DOWNLOAD_DIR.equalsIgnoreCase(cmdStr) 
+				|| Cmd.DOWNLOAD_MANY.equalsIgnoreCase(cmdStr) || Cmd.WATCH_DIR.equalsIgnoreCase(cmdStr);
+	}
+	
+	/**
+	 * Returns the metrics of a command the engine supports. The metrics of 
+	 * unknown commands are not kept, so that clients cannot create them 
+	 * at will.
+	 * 
+	 * @return the metrics or <code>null</code>, if the command is not known
+	 */
+	private static CommandMetrics getMetrics(String cmdStr) {
+		if (cmdStr == null || (!isDirect(cmdStr) && CommandManager.getInstance().getSupportingCommand(cmdStr) == null)) 
+			return null;
+		return MetricsManager.getInstance().getMetrics(cmdStr);
+	}
+	
+	/**
+	 * Answers a request which exceeds a limit with "429 Too Many Requests"
+	 * and the number of seconds after which the client may try again.
+	 */
+	private void reject(HttpServletRequest request, HttpServletResponse response, Parameters params, int retryAfter, long startTime) throws IOException {
+		response.setStatus(SC_TOO_MANY_REQUESTS);
+		response.setHeader("Retry-After", Integer.toString(retryAfter));
+		int code = respondStatus(request, response, params, Response.CODE_TOO_MANY_REQUESTS, startTime);
+		
+		CommandMetrics metrics = getMetrics(params.getCommand());
+		if (metrics != null) metrics.record(startTime, code);
+	}
+	
+	/**
+	 * Answers a request with a status only.
+	 * 
+	 * @return the response code written
+	 */
+	private int respondStatus(HttpServletRequest request, HttpServletResponse response, Parameters params, int code, long startTime) throws IOException {
+		CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+		ResponseWriter writer = EngineUtils.createResponseWriter(request, response, out);
+		writer.startResult();
+		EngineUtils.putStatus(writer, code);
+		code = writer.endResult();
+		writer.close();
+		
+		accessLog.log(params.getUser(), params.getIp(), params.getCommand(), code, out.getCount(), System.nanoTime() - startTime);
+		return code;
+	}
+	
+	/**
+	 * Executes the requested command and writes the response.
+	 */
+	private void respond(HttpServletRequest request, HttpServletResponse response, Parameters params, long startTime) throws IOException {
+		String user = params.getUser();
+		String userIp = params.getIp();
+		String cmdStr = params.getCommand();
+		
+		// open the response in the encoding requested by the client, 
+		// compressed, if accepted; streaming commands write their results 
+		// directly to it
+		CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+		ResponseWriter writer = EngineUtils.createResponseWriter(request, response, 
+				EngineUtils.compressResponse(request, response, out));
+		writer.startResult();
  	
 		// check for login request
 		if (cmdStr != null && Cmd.LOGIN.equalsIgnoreCase(cmdStr)) {
 			Command engineCommand = CommandManager.getInstance().getSupportingCommand(cmdStr);
- 			if (engineCommand != null) {
- 				try {
-					engineCommand.execute(request, params, resultBuilder);
-				} catch (Throwable t) {
-					logger.error("Exception occured while executing command: " + engineCommand.getClass(), t);
-					EngineUtils.putStatus(resultBuilder, Response.CODE_ERROR);
-				}
- 			}
- 			else EngineUtils.putStatus(resultBuilder, Response.CODE_UNSUPPORTED_COMMAND); // should not happen
+ 			if (engineCommand != null) execute(engineCommand, request, params, writer);
+ 			else EngineUtils.putStatus(writer, Response.CODE_UNSUPPORTED_COMMAND); // should not happen
 		}
 		
  		// authentication check
 		else if (!Worker.isAuthenticated(request)) {
- 			EngineUtils.putStatus(resultBuilder, Response.CODE_NOT_AUTHENTICATED);
+ 			EngineUtils.putStatus(writer, Response.CODE_NOT_AUTHENTICATED);
  		}
  		
  		// check the command parameter
  		else if (cmdStr == null || "".equals(cmdStr)) {
- 			EngineUtils.putStatus(resultBuilder, Response.CODE_NO_COMMAND);
+ 			EngineUtils.putStatus(writer, Response.CODE_NO_COMMAND);
  		}
  				
  		// look for the appropriate command
  		else {
  			
- 			// download is specific because is the only one returning
- 			// a stream; cannot initialize and use a Writer and an OutputStream
- 			// in one response
- 			if (Cmd.DOWNLOAD.equalsIgnoreCase(cmdStr)) {
- 				logger.info("(" + user + ", " + userIp + ") " +
- 						"Requested download: [" + params.toString() + "]");
- 				Download.download(params, request, response, logger);
- 				return;
- 			}
- 			
  			// execute the command
  			Command engineCommand = CommandManager.getInstance().getSupportingCommand(cmdStr);
- 			if (engineCommand != null) {
- 				try {
-					engineCommand.execute(request, params, resultBuilder);
-				} catch (Throwable t) {
-					logger.error("Exception occured while executing command: " + engineCommand.getClass(), t);
-					EngineUtils.putStatus(resultBuilder, Response.CODE_ERROR);
-				}
- 			}
+ 			if (engineCommand != null) execute(engineCommand, request, params, writer);
  			
  			// unrecognized command, if we are here
  			else {
- 				EngineUtils.putStatus(resultBuilder, Response.CODE_UNRECOGNIZED_COMMAND);
+ 				EngineUtils.putStatus(writer, Response.CODE_UNRECOGNIZED_COMMAND);
  			}
  		}
 
  		// complete the response
- 		response.setContentType("text/html");
-		response.setCharacterEncoding("UTF-8");
- 		PrintWriter out = response.getWriter();
- 		resultBuilder.add(Field.QUERY, params);
+ 		writer.write(Field.QUERY, params.toJson());
  		long processingTime = System.nanoTime() - startTime;
- 		resultBuilder.add(Field.PROCESSING_TIME, TimeUnit.MILLISECONDS.convert(processingTime, TimeUnit.NANOSECONDS));
- 		JsonObject result = resultBuilder.build();
-		out.println(result.toString());
+ 		writer.write(Field.PROCESSING_TIME, TimeUnit.MILLISECONDS.convert(processingTime, TimeUnit.NANOSECONDS));
+ 		int code = writer.endResult();
+ 		writer.close();
 		
 		// log the request
-		logger.info("(" + user + ", " + userIp + ") " + 
-				params.toString() + " >>> [" + 
-				result.getInt(Field.RESULT_CODE) + "; " + 
-				result.getString(Field.RESULT_MESSAGE) + "; " + 
-				TimeUnit.MILLISECONDS.convert(processingTime, TimeUnit.NANOSECONDS) + "ms]");
+		accessLog.log(user, userIp, cmdStr, code, out.getCount(), System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Executes a command, turning any exception thrown by it into an error
+	 * status of the result.
+	 */
+	private void execute(Command engineCommand, HttpServletRequest request, Parameters params, ResponseWriter writer) {
+		try {
+			CommandManager.getInstance().execute(engineCommand, request, params, writer);
+		} catch (Throwable t) {
+			logger.error("Exception occured while executing command: " + engineCommand.getClass(), t);
+			writer.unwind();
+			EngineUtils.putStatus(writer, Response.CODE_ERROR);
+		}
+	}
+
+	/**
+	 * Ends a transfer: releases its permit and its share of the bandwidth.
+	 */
+	private void releaseTransfer(String user, String userIp, BandwidthManager.Transfer bandwidth) {
+		rateLimiter.releaseTransfer(user, userIp);
+		bandwidth.close();
+	}
+
+	/**
+	 * Releases a transfer when the asynchronous processing of its request
+	 * completes.
+	 */
+	private class TransferListener implements AsyncListener {
+		
+		private final String user;
+		private final String userIp;
+		private final BandwidthManager.Transfer bandwidth;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		
+		TransferListener(String user, String userIp, BandwidthManager.Transfer bandwidth) {
+			this.user = user;
+			this.userIp = userIp;
+			this.bandwidth = bandwidth;
+		}
+		
+		private void release() {
+			if (released.compareAndSet(false, true)) releaseTransfer(user, userIp, bandwidth);
+		}
+		
+		@Override
+		public void onComplete(AsyncEvent event) {
+			release();
+		}
+		
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			release();
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) {
+			release();
+		}
+		
+		@Override
+		public void onStartAsync(AsyncEvent event) {}
 	}
 
 	@Override
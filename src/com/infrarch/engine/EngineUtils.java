@@ -1,16 +1,16 @@
 package com.infrarch.engine;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.net.URLEncoder;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
 import javax.activation.MimetypesFileTypeMap;
 import javax.json.JsonObjectBuilder;
@@ -19,11 +19,25 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.AsyncDownload;
+import com.infrarch.engine.worker.BandwidthManager;
+import com.infrarch.engine.worker.CompressingOutputStream;
+import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.ContentCache;
+import com.infrarch.engine.worker.DownloadContent;
+import com.infrarch.engine.worker.RateLimiter;
+import com.infrarch.engine.worker.ThrottledOutputStream;
 
 public class EngineUtils {
 
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
 	/**
 	 * Puts the status code and human-readable status message in the JSON response.
 	 * 
@@ -31,6 +45,28 @@ public class EngineUtils {
 	 * @param code response code
 	 */
 	public static void putStatus(JsonObjectBuilder builder, int code) {
+		builder
+			.add(Field.RESULT_CODE, code)
+			.add(Field.RESULT_MESSAGE, getStatusMessage(code));
+	}
+	
+	/**
+	 * Puts the status code of the result currently open in the writer.
+	 * 
+	 * @param writer response writer
+	 * @param code response code
+	 */
+	public static void putStatus(ResponseWriter writer, int code) {
+		writer.putStatus(code);
+	}
+	
+	/**
+	 * Returns the human-readable status message for a response code.
+	 * 
+	 * @param code response code
+	 * @return status message
+	 */
+	public static String getStatusMessage(int code) {
 		String msg;
 		switch (code) {
 			case Response.CODE_OK: msg = Response.MSG_OK; break;
@@ -38,6 +74,7 @@ public class EngineUtils {
 			case Response.CODE_NOT_AUTHENTICATED: msg = Response.MSG_NOT_AUTHENTICATED; break;
 			case Response.CODE_INCORRECT_LOGIN: msg = Response.MSG_INCORRECT_LOGIN; break;
 			case Response.CODE_NO_ACCESS: msg = Response.MSG_NO_ACCESS; break;
+			case Response.CODE_TOO_MANY_REQUESTS: msg = Response.MSG_TOO_MANY_REQUESTS; break;
 			case Response.CODE_NO_COMMAND: msg = Response.MSG_NO_COMMAND; break;
 			case Response.CODE_UNRECOGNIZED_COMMAND: msg = Response.MSG_UNRECOGNIZED_COMMAND; break;
 			case Response.CODE_UNSUPPORTED_COMMAND: msg = Response.MSG_UNSUPPORTED_COMMAND; break;
@@ -45,40 +82,48 @@ public class EngineUtils {
 			case Response.CODE_WRONG_PARAMETER: msg = Response.MSG_WRONG_PARAMETER; break;
 			case Response.CODE_NO_SUCH_FILE: msg = Response.MSG_NO_SUCH_FILE; break;
 			case Response.CODE_NO_SUCH_DIR: msg = Response.MSG_NO_SUCH_DIR; break;
+			case Response.CODE_NO_SUCH_UPLOAD: msg = Response.MSG_NO_SUCH_UPLOAD; break;
+			case Response.CODE_UPLOAD_INCOMPLETE: msg = Response.MSG_UPLOAD_INCOMPLETE; break;
 			default: msg = "-";
 		}
-		
-		builder
-			.add(Field.RESULT_CODE, code)
-			.add(Field.RESULT_MESSAGE, msg);
+		return msg;
 	}
 	
 	/**
-	 * Utility method to get client's IP as a string. 
+	 * Utility method to get client's IP as a string. The address forwarded 
+	 * by a proxy in the {@code X-Forwarded-For} header (or a similar one) 
+	 * is only used, if the request comes from one of the proxies trusted 
+	 * by {@code ConfigurationManager.KEY_PROXY_TRUSTED}; any client could 
+	 * send the header otherwise. Of the addresses in the header, the last 
+	 * one which is not a trusted proxy is the client's. 
 	 * 
 	 * @param request request to process
 	 * @return client's IP address
 	 */
 	public static String getClientIP(HttpServletRequest request) {
-		String ip = request.getHeader("X-Forwarded-For");
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("Proxy-Client-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("WL-Proxy-Client-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_CLIENT_IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_X_FORWARDED_FOR");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getRemoteAddr();  
-        }
-        if (ip == null || ip.length() == 0) ip = "unknown";
-        
-        if (ip.equals("0:0:0:0:0:0:0:1") || ip.equals("127.0.0.1")) ip = "localhost";
+		String ip = request.getRemoteAddr();
+		Set<String> trusted = ConfigurationManager.getInstance().getTrustedProxies();
+		if (ip != null && trusted.contains(ip)) {
+			String forwarded = request.getHeader("X-Forwarded-For");
+			if (forwarded == null || forwarded.length() == 0 || "unknown".equalsIgnoreCase(forwarded)) {  
+				forwarded = request.getHeader("Proxy-Client-IP");  
+			}  
+			if (forwarded == null || forwarded.length() == 0 || "unknown".equalsIgnoreCase(forwarded)) {  
+				forwarded = request.getHeader("WL-Proxy-Client-IP");  
+			}  
+			if (forwarded != null) {
+				String[] hops = forwarded.split(",");
+				for (int i = hops.length - 1; i >= 0; i--) {
+					String hop = hops[i].trim();
+					if (hop.isEmpty() || "unknown".equalsIgnoreCase(hop)) break;
+					ip = hop;
+					if (!trusted.contains(hop)) break;
+				}
+			}
+		}
+		if (ip == null || ip.length() == 0) ip = "unknown";
+		
+		if (ip.equals("0:0:0:0:0:0:0:1") || ip.equals("127.0.0.1")) ip = "localhost";
 		return ip;
 	}
 	
@@ -89,15 +134,39 @@ public class EngineUtils {
 	 * @return encoded URL
 	 */
 	public static String urlEncode(String url) {
+		
+		// most parameters need no encoding at all
+		int i = 0;
+		while (i < url.length() && isUnreserved(url.charAt(i))) i++;
+		if (i == url.length()) return url;
+		
 		String result = null;
 		try {
 			result = URLEncoder.encode(url, "utf-8");
 		} catch (UnsupportedEncodingException ex) {
 			// highly unlikely that UTF-8 is not supported...
 		}
+		
 		// replace + with %20, because this encoding will be supported both
 		// in query string and in path while + is only supported in query string
-		return result.replaceAll("\\+", "%20");
+		int plus = result.indexOf('+');
+		if (plus < 0) return result;
+		StringBuilder sb = new StringBuilder(result.length() + 16);
+		int start = 0;
+		while (plus >= 0) {
+			sb.append(result, start, plus).append("%20");
+			start = plus + 1;
+			plus = result.indexOf('+', start);
+		}
+		return sb.append(result, start, result.length()).toString();
+	}
+	
+	/**
+	 * Checks if a character is left as is by {@code URLEncoder}.
+	 */
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+				c == '-' || c == '_' || c == '.' || c == '*';
 	}
 	
 	/**
@@ -159,7 +228,118 @@ public class EngineUtils {
 				cal.get(Calendar.SECOND));
 	}
 	
+	/**
+	 * Creates a {@link ResponseWriter} for the result of a command. The 
+	 * encoding is taken from the {@code Cmd.Q_FORMAT} parameter, if present, 
+	 * or negotiated from the {@code Accept} header, which is then added to 
+	 * the {@code Vary} header. JSON is used by default.
+	 * 
+	 * @param request request to process
+	 * @param response response to write to
+	 * @param out the response's output stream, possibly wrapped
+	 * @return a writer for the response
+	 * @throws IOException
+	 */
+	public static ResponseWriter createResponseWriter(HttpServletRequest request, HttpServletResponse response, OutputStream out) throws IOException {
+		ResponseWriter writer;
+		if (isCborRequested(request, response)) {
+			writer = new CborResponseWriter(out);
+		}
+		else {
+			response.setCharacterEncoding("UTF-8");
+			writer = new JsonResponseWriter(out);
+		}
+		response.setContentType(writer.getContentType());
+		return writer;
+	}
+	
+	/**
+	 * Wraps the output stream of a response into a {@link CompressingOutputStream}, 
+	 * if the client accepts gzip or deflate content encoding and compression 
+	 * is enabled. 
+	 * 
+	 * @param request request to process
+	 * @param response response to write to
+	 * @param out the response's output stream, possibly wrapped
+	 * @return the stream to write the response to
+	 */
+	public static OutputStream compressResponse(HttpServletRequest request, HttpServletResponse response, OutputStream out) {
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		int threshold = config.getCompressionThreshold();
+		if (threshold < 0) return out;
+		
+		response.addHeader("Vary", "Accept-Encoding");
+		String encoding = getAcceptedEncoding(request.getHeader("Accept-Encoding"));
+		if (encoding == null) return out;
+		return new CompressingOutputStream(response, out, encoding, threshold, config.getCompressionLevel());
+	}
+	
+	/**
+	 * Chooses gzip or deflate from an {@code Accept-Encoding} header, 
+	 * preferring gzip; encodings with quality 0 are not acceptable.
+	 * 
+	 * @param header the header or <code>null</code>
+	 * @return the encoding or <code>null</code>
+	 */
+	public static String getAcceptedEncoding(String header) {
+		if (header == null) return null;
+		boolean gzip = false, deflate = false, any = false, gzipRefused = false, deflateRefused = false;
+		for (String token: header.split(",")) {
+			int i = token.indexOf(';');
+			String name = (i < 0? token : token.substring(0, i)).trim();
+			boolean refused = i >= 0 && isZeroQuality(token.substring(i + 1));
+			if (CompressingOutputStream.GZIP.equalsIgnoreCase(name)) {
+				gzip = !refused;
+				gzipRefused = refused;
+			}
+			else if (CompressingOutputStream.DEFLATE.equalsIgnoreCase(name)) {
+				deflate = !refused;
+				deflateRefused = refused;
+			}
+			else if ("*".equals(name)) any = !refused;
+		}
+		if (gzip || (any && !gzipRefused)) return CompressingOutputStream.GZIP;
+		if (deflate || (any && !deflateRefused)) return CompressingOutputStream.DEFLATE;
+		return null;
+	}
+	
+	private static boolean isZeroQuality(String params) {
+		for (String p: params.split(";")) {
+			p = p.trim();
+			if (p.startsWith("q=") || p.startsWith("Q=")) {
+				try {
+					return Double.parseDouble(p.substring(2).trim()) <= 0;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isCborRequested(HttpServletRequest request, HttpServletResponse response) {
+		String format = request.getParameter(Cmd.Q_FORMAT);
+		if (format != null) return "cbor".equalsIgnoreCase(format);
+		
+		// the encoding depends on the header, which caches must know
+		response.addHeader("Vary", "Accept");
+		String accept = request.getHeader("Accept");
+		return accept != null && accept.contains(CborResponseWriter.CONTENT_TYPE);
+	}
+	
 	public static OutputStream prepareDownloadStream(String fileName, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		prepareDownloadHeaders(fileName, request, response);
+		return response.getOutputStream();
+	}
+	
+	/**
+	 * Sets the content type and disposition headers of a file download.
+	 * 
+	 * @param fileName file name to present to the client
+	 * @param request the HTTP request
+	 * @param response the HTTP response
+	 */
+	public static void prepareDownloadHeaders(String fileName, HttpServletRequest request, HttpServletResponse response) {
 		String userAgent = request.getHeader("User-agent");
 		
 		String mimeType = MimetypesFileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
@@ -178,42 +358,151 @@ public class EngineUtils {
 			fileNameHeader = "filename*=UTF-8''" + urlEncode(fileName);
 		}
 		response.setHeader("Content-disposition", disposition + ";" + fileNameHeader + ";");
-		
-		return response.getOutputStream();
 	}
 	
-	public static boolean downloadFile(File file, HttpServletRequest request, HttpServletResponse response) {
-		return downloadFile(file, file.getName(), request, response);
+	public static long downloadFile(File file, HttpServletRequest request, HttpServletResponse response) {
+		return downloadFile(file, file.getName(), null, request, response);
 	}
 	
-	public static boolean downloadFile(File file, String name, HttpServletRequest request, HttpServletResponse response) {
-		InputStream input = null;
-		OutputStream output = null;
-		try {
-			// prepare to stream the file to the client
-			input = new BufferedInputStream(new FileInputStream(file));
-			output = prepareDownloadStream(name, request, response);
-	
-			byte[] buffer = new byte[8192];
-			int count;
-			while ((count = input.read(buffer)) > 0) {
-				output.write(buffer, 0, count);
-			}
-			output.flush();
-		} catch (IOException iox) {
-			Logger.getLogger(EngineUtils.class).error("Error downloading file", iox);
-			return false;
-			
-		} finally {
+	/**
+	 * Sends a file to the client. A {@code Range} header is honoured, unless 
+	 * an {@code If-Range} header shows that the client's copy of the file is 
+	 * not current: a single range is sent as a partial response, several 
+	 * ranges as {@code multipart/byteranges}. 
+	 * <p>
+	 * The whole file or a single range of it is handed over to the container 
+	 * to send with zero-copy sendfile, if it supports it and the transfer is 
+	 * limited neither in bandwidth nor in number. Otherwise, if the 
+	 * request supports asynchronous mode, the transfer is handed over to an 
+	 * {@link AsyncDownload} and the method returns as soon as it has started; 
+	 * otherwise the file is streamed by the calling thread. The transfer is 
+	 * paced to the bandwidth allotted to the {@code Engine.ATTRIBUTE_TRANSFER} 
+	 * of the request. Small files are sent from the {@link ContentCache} 
+	 * instead of being read from the disk.
+	 * 
+	 * @param file file to send
+	 * @param name file name to present to the client
+	 * @param validator validator of the file, to check {@code If-Range} 
+	 * 			against, or <code>null</code>
+	 * @param request the HTTP request
+	 * @param response the HTTP response
+	 * @return the number of bytes sent or being sent or -1 on I/O error
+	 */
+	public static long downloadFile(File file, String name, Validator validator, HttpServletRequest request, HttpServletResponse response) {
+		return downloadFile(file, name, validator, null, request, response);
+	}
+	
+	/**
+	 * Sends a file, which is the content coded representation of another 
+	 * file, to the client. It is sent as described for 
+	 * {@link #downloadFile(File, String, Validator, HttpServletRequest, HttpServletResponse)}, 
+	 * with a {@code Content-Encoding} header and the content type of the 
+	 * original file. Ranges refer to the coded representation.
+	 * 
+	 * @param file file to send
+	 * @param name file name to present to the client
+	 * @param validator validator of the file, to check {@code If-Range} 
+	 * 			against, or <code>null</code>
+	 * @param encoding content coding of the file (e.g. gzip) or 
+	 * 			<code>null</code>, if it is sent as it is
+	 * @param request the HTTP request
+	 * @param response the HTTP response
+	 * @return the number of bytes sent or being sent or -1 on I/O error
+	 */
+	public static long downloadFile(File file, String name, Validator validator, String encoding, HttpServletRequest request, HttpServletResponse response) {
+		long length = file.length();
+		if (encoding != null) response.setHeader("Content-Encoding", encoding);
+		response.setHeader("Accept-Ranges", "bytes");
+		
+		// check for a request of ranges of the file
+		List<ByteRange> ranges = null;
+		String range = request.getHeader("Range");
+		if (range != null) {
+			boolean current = validator != null? validator.isRangeCurrent(request) : request.getHeader("If-Range") == null;
+			if (current) ranges = ByteRange.parse(range, length);
+		}
+		if (ranges != null && ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + length);
+			return 0;
+		}
+		
+		prepareDownloadHeaders(name, request, response);
+		DownloadContent content;
+		if (ranges == null) {
+			content = DownloadContent.region(file, 0, length);
+		}
+		else if (ranges.size() == 1) {
+			ByteRange r = ranges.get(0);
+			content = DownloadContent.region(file, r.getStart(), r.getLength());
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", r.toContentRange(length));
+		}
+		else {
+			String mimeType = MimetypesFileTypeMap.getDefaultFileTypeMap().getContentType(name);
+			content = DownloadContent.multipart(file, ranges, length, mimeType);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType(content.getContentType());
+		}
+		response.setContentLengthLong(content.getLength());
+		
+		// sendfile cannot be paced, and it continues after the servlet has 
+		// returned and released the transfer's permit, so it is not used 
+		// while the concurrent transfers are limited
+		BandwidthManager.Transfer transfer = (BandwidthManager.Transfer) request.getAttribute(Engine.ATTRIBUTE_TRANSFER);
+		boolean counted = transfer != null && RateLimiter.getInstance().isTransferLimited();
+		if ((transfer == null || !transfer.isLimited()) && !counted && sendfile(content, request)) return content.getLength();
+		if (transfer != null && !transfer.isLimited()) transfer = null;
+		
+		// small files are sent from memory; the cached contents are used 
+		// only if they have the length announced, which the file may have 
+		// changed since
+		ContentCache cache = ContentCache.getInstance();
+		ByteBuffer data = cache.get(file);
+		if (data != null && data.capacity() == length) {
+			content.setData(data);
+			cache.addBytesSaved(content.getLength());
+		}
+		
+		if (request.isAsyncSupported()) {
 			try {
-				if (input != null) input.close();
-				if (output != null) output.close();
+				AsyncDownload.start(content, request, transfer);
 			} catch (IOException iox) {
 				Logger.getLogger(EngineUtils.class).error("Error downloading file", iox);
-				return false;
+				return -1;
 			}
+			return content.getLength();
+		}
+		
+		try (OutputStream output = transfer == null? response.getOutputStream() : 
+				new ThrottledOutputStream(response.getOutputStream(), transfer)) {
+			content.writeTo(output);
+			output.flush();
+		} catch (IOException iox) {
+			Logger.getLogger(EngineUtils.class).error("Error downloading file", iox);
+			return -1;
 		}
+		return content.getLength();
+	}
+	
+	/**
+	 * Hands a download over to the container's sendfile support (e.g. Tomcat 
+	 * with the NIO or APR connector), which copies the file to the socket 
+	 * in the kernel after the servlet returns. Multipart bodies and small 
+	 * files are written by the engine.
+	 * 
+	 * @return <code>true</code>, if the container will send the file
+	 */
+	private static boolean sendfile(DownloadContent content, HttpServletRequest request) {
+		if (content.getParts().size() != 1) return false;
+		long threshold = ConfigurationManager.getInstance().getSendfileThreshold();
+		if (threshold < 0 || content.getLength() < threshold) return false;
+		if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) return false;
 		
+		DownloadContent.Part part = content.getParts().get(0);
+		request.setAttribute(SENDFILE_FILENAME, content.getFile().getAbsolutePath());
+		request.setAttribute(SENDFILE_START, Long.valueOf(part.getPosition()));
+		request.setAttribute(SENDFILE_END, Long.valueOf(part.getPosition() + part.getLength()));
 		return true;
 	}
 }
@@ -0,0 +1,82 @@
+package com.infrarch.engine;
+
+import java.io.OutputStream;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+/**
+ * A {@link ResponseWriter} producing JSON. This is the default encoding of
+ * the engine.
+ * 
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class JsonResponseWriter extends ResponseWriter {
+
+	private static final JsonGeneratorFactory factory = Json.createGeneratorFactory(null);
+
+	private final JsonGenerator generator;
+	
+	public JsonResponseWriter(OutputStream out) {
+		generator = factory.createGenerator(out);
+	}
+	
+	@Override
+	public String getContentType() {
+		return "text/html";
+	}
+
+	@Override
+	protected void startObject(String name) {
+		if (name == null) generator.writeStartObject();
+		else generator.writeStartObject(name);
+	}
+
+	@Override
+	protected void startArray(String name) {
+		if (name == null) generator.writeStartArray();
+		else generator.writeStartArray(name);
+	}
+
+	@Override
+	protected void end() {
+		generator.writeEnd();
+	}
+
+	@Override
+	protected void writeString(String name, String value) {
+		if (name == null) generator.write(value);
+		else generator.write(name, value);
+	}
+
+	@Override
+	protected void writeLong(String name, long value) {
+		if (name == null) generator.write(value);
+		else generator.write(name, value);
+	}
+
+	@Override
+	protected void writeBoolean(String name, boolean value) {
+		if (name == null) generator.write(value);
+		else generator.write(name, value);
+	}
+
+	@Override
+	protected void writeValue(String name, JsonValue value) {
+		if (name == null) generator.write(value);
+		else generator.write(name, value);
+	}
+
+	@Override
+	public void flush() {
+		generator.flush();
+	}
+
+	@Override
+	public void close() {
+		generator.close();
+	}
+}
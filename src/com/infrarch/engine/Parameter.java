@@ -0,0 +1,134 @@
+package com.infrarch.engine;
+
+/**
+ * Declares a request parameter of a {@link Command}: its name, type,
+ * whether it is required and its default value. The parameters of a
+ * request are bound to their declarations once, by {@link Parameters#bind(Parameter[])},
+ * before the command is executed.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class Parameter {
+
+	/**
+	 * Parameter types.
+	 */
+	public enum Type { STRING, INT, LONG, BOOLEAN }
+
+	/**
+	 * A declaration of no parameters.
+	 */
+	public static final Parameter[] NONE = new Parameter[0];
+
+	private final String name;
+	private final Type type;
+	private final boolean required;
+	private final Object defaultValue;
+
+	private Parameter(String name, Type type, boolean required, Object defaultValue) {
+		this.name = name;
+		this.type = type;
+		this.required = required;
+		this.defaultValue = defaultValue;
+	}
+
+	/**
+	 * Declares a required string parameter.
+	 *
+	 * @param name parameter name
+	 * @return the declaration
+	 */
+	public static Parameter required(String name) {
+		return new Parameter(name, Type.STRING, true, null);
+	}
+
+	/**
+	 * Declares a required parameter.
+	 *
+	 * @param name parameter name
+	 * @param type parameter type
+	 * @return the declaration
+	 */
+	public static Parameter required(String name, Type type) {
+		return new Parameter(name, type, true, null);
+	}
+
+	/**
+	 * Declares an optional parameter.
+	 *
+	 * @param name parameter name
+	 * @param type parameter type
+	 * @param defaultValue value to bind, if the parameter is missing; must be of the
+	 * 			Java type corresponding to {@code type} or <code>null</code>
+	 * @return the declaration
+	 */
+	public static Parameter optional(String name, Type type, Object defaultValue) {
+		return new Parameter(name, type, false, defaultValue);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public boolean isRequired() {
+		return required;
+	}
+
+	public Object getDefaultValue() {
+		return defaultValue;
+	}
+
+	/**
+	 * Converts a non-empty parameter value to the type of the parameter.
+	 *
+	 * @param value value to convert
+	 * @return the converted value or <code>null</code>, if not valid
+	 */
+	Object convert(String value) {
+		switch (type) {
+			case INT:
+				Long l = parseLong(value);
+				if (l == null || l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) return null;
+				return Integer.valueOf(l.intValue());
+			case LONG:
+				return parseLong(value);
+			case BOOLEAN:
+				return Boolean.valueOf(value);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * Parses a decimal number without throwing on invalid input, as wrong
+	 * parameters are an expected condition.
+	 */
+	private static Long parseLong(String s) {
+		int len = s.length();
+		int i = 0;
+		boolean negative = false;
+		if (s.charAt(0) == '-' || s.charAt(0) == '+') {
+			negative = s.charAt(0) == '-';
+			i++;
+		}
+		if (i == len || len - i > 19) return null;
+		long result = 0;
+		for (; i < len; i++) {
+			int d = s.charAt(i) - '0';
+			if (d < 0 || d > 9) return null;
+			// accumulate negatively to cover Long.MIN_VALUE
+			if (result < (Long.MIN_VALUE + d) / 10) return null;
+			result = result * 10 - d;
+		}
+		if (!negative) {
+			if (result == Long.MIN_VALUE) return null;
+			result = -result;
+		}
+		return Long.valueOf(result);
+	}
+}
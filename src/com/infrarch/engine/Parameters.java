@@ -0,0 +1,227 @@
+package com.infrarch.engine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
+
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
+import com.infrarch.engine.constants.Response;
+
+/**
+ * The parameters of a request to the {@link Engine}. The values are put as
+ * received from the client and then bound to the {@link Parameter} declarations
+ * of the command once; commands read the bound, typed values. None of the
+ * getters throw on a missing parameter.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class Parameters {
+
+	private static final JsonBuilderFactory factory = Json.createBuilderFactory(null);
+
+	private final String user;
+	private final String ip;
+	private String home = null;
+	private final Map<String, String> values = new LinkedHashMap<String, String>();
+	private final Map<String, Object> bound = new HashMap<String, Object>();
+	private JsonObject json = null;
+
+	/**
+	 * Creates an empty instance.
+	 *
+	 * @param user name of the session user
+	 * @param ip client's IP address
+	 */
+	public Parameters(String user, String ip) {
+		this.user = user;
+		this.ip = ip;
+	}
+
+	/**
+	 * Creates an instance with the parameters of an HTTP request.
+	 *
+	 * @param request the HTTP request
+	 * @param user name of the session user
+	 * @param ip client's IP address
+	 */
+	public Parameters(HttpServletRequest request, String user, String ip) {
+		this(user, ip);
+		for (Map.Entry<String, String[]> e: request.getParameterMap().entrySet()) {
+			String[] v = e.getValue();
+			put(e.getKey(), v == null || v.length == 0? "" : v[0]);
+		}
+	}
+
+	/**
+	 * Puts a raw parameter value.
+	 *
+	 * @param name parameter name
+	 * @param value value as received from the client
+	 */
+	public void put(String name, String value) {
+		values.put(name, value == null? "" : value);
+		json = null;
+	}
+
+	/**
+	 * Binds the parameters to their declarations. Required parameters must
+	 * be present and not empty; missing optional parameters are bound to
+	 * their default values.
+	 *
+	 * @param declarations the command's parameter declarations
+	 * @return {@code Response.CODE_OK}, {@code Response.CODE_MISSING_PARAMETER} or
+	 * 			{@code Response.CODE_WRONG_PARAMETER}
+	 */
+	public int bind(Parameter[] declarations) {
+		bound.clear();
+		for (Parameter p: declarations) {
+			String v = values.get(p.getName());
+			if (v == null || v.isEmpty()) {
+				if (p.isRequired()) return Response.CODE_MISSING_PARAMETER;
+				if (p.getDefaultValue() != null) bound.put(p.getName(), p.getDefaultValue());
+				continue;
+			}
+			Object o = p.convert(v);
+			if (o == null) return Response.CODE_WRONG_PARAMETER;
+			bound.put(p.getName(), o);
+		}
+		return Response.CODE_OK;
+	}
+
+	/**
+	 * Returns the command name.
+	 *
+	 * @return command name or <code>null</code>
+	 */
+	public String getCommand() {
+		return values.get(Cmd.Q_COMMAND);
+	}
+
+	/**
+	 * Returns the name of the session user.
+	 *
+	 * @return user name
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * Returns the home directory of the user, if known without looking up 
+	 * the user, i.e. from a token.
+	 *
+	 * @return home directory or <code>null</code>
+	 */
+	public String getHome() {
+		return home;
+	}
+
+	/**
+	 * Sets the home directory of the user.
+	 *
+	 * @param home home directory
+	 */
+	public void setHome(String home) {
+		this.home = home;
+	}
+
+	/**
+	 * Returns the client's IP address.
+	 *
+	 * @return IP address
+	 */
+	public String getIp() {
+		return ip;
+	}
+
+	/**
+	 * Returns a parameter as a string.
+	 *
+	 * @param name parameter name
+	 * @return the bound value, the raw value of an undeclared parameter or
+	 * 			<code>null</code>, if missing
+	 */
+	public String getString(String name) {
+		Object o = bound.get(name);
+		if (o != null) return o.toString();
+		return values.get(name);
+	}
+
+	/**
+	 * Returns a bound integer parameter.
+	 *
+	 * @param name parameter name
+	 * @param def value to return, if not bound
+	 * @return parameter value
+	 */
+	public int getInt(String name, int def) {
+		Object o = bound.get(name);
+		return o instanceof Integer? (Integer) o : def;
+	}
+
+	/**
+	 * Returns a bound long parameter.
+	 *
+	 * @param name parameter name
+	 * @param def value to return, if not bound
+	 * @return parameter value
+	 */
+	public long getLong(String name, long def) {
+		Object o = bound.get(name);
+		return o instanceof Number? ((Number) o).longValue() : def;
+	}
+
+	/**
+	 * Returns a bound boolean parameter.
+	 *
+	 * @param name parameter name
+	 * @return parameter value or <code>false</code>, if not bound
+	 */
+	public boolean getBoolean(String name) {
+		return Boolean.TRUE.equals(bound.get(name));
+	}
+
+	/**
+	 * Checks if a parameter has been sent by the client.
+	 *
+	 * @param name parameter name
+	 * @return present or not
+	 */
+	public boolean has(String name) {
+		return values.containsKey(name);
+	}
+
+	/**
+	 * Returns the request data as echoed to the client in the {@code Field.QUERY}
+	 * field: the session fields and all parameters, URL-encoded.
+	 *
+	 * @return the request data
+	 */
+	public JsonObject toJson() {
+		if (json == null) {
+			JsonObjectBuilder b = factory.createObjectBuilder()
+				.add(Field.SESSION_USER_NAME, user)
+				.add(Field.SESSION_IP, ip);
+			for (Map.Entry<String, String> e: values.entrySet()) {
+				String name = e.getKey();
+				if (Field.SESSION_USER_NAME.equals(name) || Field.SESSION_IP.equals(name) || Cmd.Q_TOKEN.equals(name)) continue;
+				b.add(name, EngineUtils.urlEncode(e.getValue()));
+			}
+			json = b.build();
+		}
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
@@ -0,0 +1,198 @@
+package com.infrarch.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import com.infrarch.engine.constants.Field;
+
+/**
+ * Writes the result of a command straight to the client as it is being
+ * produced. A result is an object opened with {@link #startResult()} and
+ * closed with {@link #endResult()}; commands write their fields and arrays
+ * in between and report their status with {@link #putStatus(int)}. The status
+ * fields are written last, when the result is closed, so a command can still
+ * change its status after it has started writing.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public abstract class ResponseWriter implements Closeable {
+
+	/**
+	 * Status code of a result whose command has not put a status.
+	 */
+	public static final int NO_STATUS = -1;
+
+	private int depth = 0;
+
+	// depth and status of each open result; nested results are used by batches
+	private int[] resultDepths = new int[4];
+	private int[] resultCodes = new int[4];
+	private int results = 0;
+
+	/**
+	 * Opens a new result object.
+	 *
+	 * @return this writer
+	 */
+	public ResponseWriter startResult() {
+		if (results == resultDepths.length) {
+			resultDepths = Arrays.copyOf(resultDepths, results * 2);
+			resultCodes = Arrays.copyOf(resultCodes, results * 2);
+		}
+		resultDepths[results] = depth;
+		resultCodes[results] = NO_STATUS;
+		results++;
+		return writeStartObject();
+	}
+
+	/**
+	 * Closes the current result object. Any arrays or objects left open by
+	 * the command are closed first and the status fields are then written.
+	 *
+	 * @return the status code of the result
+	 */
+	public int endResult() {
+		unwind();
+		int code = resultCodes[--results];
+		if (code != NO_STATUS) {
+			write(Field.RESULT_CODE, code);
+			write(Field.RESULT_MESSAGE, EngineUtils.getStatusMessage(code));
+		}
+		writeEnd();
+		return code;
+	}
+
+	/**
+	 * Closes the arrays and objects left open in the current result, for
+	 * example by a command which failed half way through a listing.
+	 *
+	 * @return this writer
+	 */
+	public ResponseWriter unwind() {
+		int d = resultDepths[results - 1] + 1;
+		while (depth > d) writeEnd();
+		return this;
+	}
+
+	/**
+	 * Sets the status code of the current result.
+	 *
+	 * @param code response code
+	 */
+	public void putStatus(int code) {
+		resultCodes[results - 1] = code;
+	}
+
+	/**
+	 * Returns the status code of the current result.
+	 *
+	 * @return response code or {@link #NO_STATUS}
+	 */
+	public int getStatus() {
+		return resultCodes[results - 1];
+	}
+
+	/**
+	 * Writes all fields of a result built in memory to the current result.
+	 * The status fields are taken as the status of the current result.
+	 *
+	 * @param result result to write
+	 * @return this writer
+	 */
+	public ResponseWriter writeResult(JsonObject result) {
+		for (Map.Entry<String, JsonValue> e: result.entrySet()) {
+			String name = e.getKey();
+			if (Field.RESULT_CODE.equals(name)) putStatus(((JsonNumber) e.getValue()).intValue());
+			else if (!Field.RESULT_MESSAGE.equals(name)) write(name, e.getValue());
+		}
+		return this;
+	}
+
+	public ResponseWriter writeStartObject() {
+		startObject(null);
+		depth++;
+		return this;
+	}
+
+	public ResponseWriter writeStartObject(String name) {
+		startObject(name);
+		depth++;
+		return this;
+	}
+
+	public ResponseWriter writeStartArray() {
+		startArray(null);
+		depth++;
+		return this;
+	}
+
+	public ResponseWriter writeStartArray(String name) {
+		startArray(name);
+		depth++;
+		return this;
+	}
+
+	public ResponseWriter writeEnd() {
+		end();
+		depth--;
+		return this;
+	}
+
+	public ResponseWriter write(String name, String value) {
+		writeString(name, value);
+		return this;
+	}
+
+	public ResponseWriter write(String name, long value) {
+		writeLong(name, value);
+		return this;
+	}
+
+	public ResponseWriter write(String name, boolean value) {
+		writeBoolean(name, value);
+		return this;
+	}
+
+	public ResponseWriter write(String name, JsonValue value) {
+		writeValue(name, value);
+		return this;
+	}
+
+	public ResponseWriter write(String value) {
+		writeString(null, value);
+		return this;
+	}
+
+	public ResponseWriter write(JsonValue value) {
+		writeValue(null, value);
+		return this;
+	}
+
+	/**
+	 * Returns the MIME type of the encoding.
+	 * 
+	 * @return MIME type
+	 */
+	public abstract String getContentType();
+
+	// encoding primitives; name is null for array elements and the top level
+	protected abstract void startObject(String name);
+	protected abstract void startArray(String name);
+	protected abstract void end();
+	protected abstract void writeString(String name, String value);
+	protected abstract void writeLong(String name, long value);
+	protected abstract void writeBoolean(String name, boolean value);
+	protected abstract void writeValue(String name, JsonValue value);
+
+	public abstract void flush() throws IOException;
+
+	@Override
+	public abstract void close() throws IOException;
+}
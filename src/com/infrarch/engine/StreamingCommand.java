@@ -0,0 +1,24 @@
+package com.infrarch.engine;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A {@link Command} which writes its result directly to the client instead
+ * of building it in memory first. Should be used by commands whose results
+ * grow with the size of the file system, such as directory listings.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public interface StreamingCommand extends Command {
+
+	/**
+	 * Executes the command.
+	 *
+	 * @param request client's HTTP request object
+	 * @param params the request's parameters bound to {@link #getParameters(String)}
+	 * @param writer a {@code ResponseWriter} positioned in the open result
+	 * @throws Throwable all exceptions are given to the container to handle
+	 */
+	public void execute(HttpServletRequest request, Parameters params, ResponseWriter writer) throws Throwable;
+}
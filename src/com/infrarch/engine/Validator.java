@@ -0,0 +1,146 @@
+package com.infrarch.engine;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The validators of a result or file sent to the client: an entity tag and
+ * the time of last modification.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class Validator {
+
+	private final String eTag;
+	private final long lastModified;
+
+	/**
+	 * Creates a validator.
+	 *
+	 * @param eTag the entity tag, including quotes and weakness indicator
+	 * @param lastModified time of last modification in milliseconds or -1
+	 */
+	public Validator(String eTag, long lastModified) {
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Creates a weak validator, for results which are equivalent but not 
+	 * necessarily byte for byte equal.
+	 *
+	 * @param lastModified time of last modification in milliseconds
+	 * @param parts values the entity tag is made of
+	 * @return the validator
+	 */
+	public static Validator weak(long lastModified, long... parts) {
+		return new Validator("W/" + tag(parts), lastModified);
+	}
+
+	/**
+	 * Creates a strong validator, for files.
+	 *
+	 * @param lastModified time of last modification in milliseconds
+	 * @param parts values the entity tag is made of
+	 * @return the validator
+	 */
+	public static Validator strong(long lastModified, long... parts) {
+		return new Validator(tag(parts), lastModified);
+	}
+
+	private static String tag(long... parts) {
+		StringBuilder sb = new StringBuilder().append('"');
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) sb.append('-');
+			sb.append(Long.toHexString(parts[i]));
+		}
+		return sb.append('"').toString();
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Sets the {@code ETag} and {@code Last-Modified} headers. Clients 
+	 * are asked to revalidate each time.
+	 *
+	 * @param response the response
+	 */
+	public void setHeaders(HttpServletResponse response) {
+		response.setHeader("ETag", eTag);
+		if (lastModified >= 0) response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Cache-Control", "no-cache");
+	}
+
+	/**
+	 * Checks if the client has the current result: its {@code If-None-Match}
+	 * header lists the entity tag or, if it has not sent one, its
+	 * {@code If-Modified-Since} header is not older than the last modification.
+	 *
+	 * @param request the request
+	 * @return the client's result is current or not
+	 */
+	public boolean isNotModified(HttpServletRequest request) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) return matches(ifNoneMatch);
+		if (lastModified < 0) return false;
+		long since;
+		try {
+			since = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates have a precision of a second
+		return since >= 0 && lastModified / 1000 <= since / 1000;
+	}
+
+	/**
+	 * Checks if the parts of the file requested by the client can be sent: 
+	 * either it has not sent an {@code If-Range} header, or the header 
+	 * has the entity tag, which has to be strong, or the time of last 
+	 * modification.
+	 *
+	 * @param request the request
+	 * @return the ranges can be sent or not, in which case the whole 
+	 * 			file has to be sent
+	 */
+	public boolean isRangeCurrent(HttpServletRequest request) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return !eTag.startsWith("W/") && eTag.equals(ifRange);
+		}
+		if (lastModified < 0) return false;
+		try {
+			return lastModified / 1000 == request.getDateHeader("If-Range") / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compares the entity tag to a list of tags using the weak comparison.
+	 *
+	 * @param header list of entity tags or "*"
+	 * @return matches or not
+	 */
+	public boolean matches(String header) {
+		String tag = opaque(eTag);
+		for (String t: header.split(",")) {
+			t = t.trim();
+			if ("*".equals(t) || opaque(t).equals(tag)) return true;
+		}
+		return false;
+	}
+
+	private static String opaque(String tag) {
+		return tag.startsWith("W/")? tag.substring(2) : tag;
+	}
+}
@@ -2,9 +2,12 @@ package com.infrarch.engine;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpSession;
 
 import org.jasypt.util.password.BasicPasswordEncryptor;
@@ -12,10 +15,12 @@ import org.jasypt.util.password.BasicPasswordEncryptor;
 import com.infrarch.commons.db.DataSource;
 import com.infrarch.commons.db.DefaultDataSource;
 import com.infrarch.commons.db.Row;
+import com.infrarch.engine.worker.BandwidthManager;
 import com.infrarch.engine.worker.ConfigurationManager;
 import com.infrarch.engine.worker.ExtendedMultipartRequest;
 import com.infrarch.engine.worker.FileManager;
 import com.infrarch.engine.worker.FileUtils;
+import com.infrarch.engine.worker.ThrottledInputStream;
 import com.infrarch.engine.worker.UserManager;
 import com.infrarch.engine.constants.Response;
 
@@ -23,6 +28,7 @@ public class Worker {
 
 	public static final String FIELD_PASS = UserManager.FIELD_PASS;
 	public static final String FIELD_ID = UserManager.FIELD_ID;
+	public static final String FIELD_HOME = UserManager.FIELD_HOME;
 
 	public static final String KEY_INCORRECT_LOGIN_DELAY = ConfigurationManager.KEY_INCORRECT_LOGIN_DELAY;
 	
@@ -55,6 +61,16 @@ public class Worker {
 		return FileManager.getInstance().isSystemFile(f);
 	}
 	
+	/**
+	 * Notifies the engine that a file or directory has been created, 
+	 * changed or deleted.
+	 * 
+	 * @param f the file or directory
+	 */
+	public static void changed(File f) {
+		FileManager.getInstance().changed(f);
+	}
+	
 	/**
 	 * Determines whether a user has access to a specific directory.
 	 * 
@@ -66,6 +82,21 @@ public class Worker {
 		return UserManager.getInstance().checkUserAccess(id, dir);
 	}
 	
+	/**
+	 * Determines whether the user of a request has access to a specific 
+	 * directory. The home directory carried by the request's token is used, 
+	 * if it has one, instead of looking up the user.
+	 * 
+	 * @param params the request parameters
+	 * @param dir directory (relative) to query
+	 * @return true if the user has access to the directory
+	 */
+	public static boolean checkUserAccess(Parameters params, String dir) {
+		String home = params.getHome();
+		if (home == null) return checkUserAccess(params.getUser(), dir);
+		return UserManager.isInHome(home, dir);
+	}
+	
 	/**
 	 * Moves the contents of the specified directory to the recycle bin 
 	 * (if such is supported) and deletes the original.
@@ -74,7 +105,9 @@ public class Worker {
 	 * @return success or failure
 	 */
 	public static boolean recycleDir(File fDir) {
-		return FileUtils.recycleDir(fDir);
+		boolean b = FileUtils.recycleDir(fDir);
+		FileManager.getInstance().changed(fDir);
+		return b;
 	}
 	
 	/**
@@ -85,7 +118,9 @@ public class Worker {
 	 * @return success or failure
 	 */
 	public static boolean recycleFile(File f) {
-		return FileUtils.recycleFile(f);
+		boolean b = FileUtils.recycleFile(f);
+		FileManager.getInstance().changed(f);
+		return b;
 	}
 	
 	/**
@@ -101,7 +136,9 @@ public class Worker {
 	 * @return success or failure
 	 */
 	public static File copyFile(File f, File destDir, boolean overwrite) {
-		return FileUtils.copyFile(f, destDir, overwrite);
+		File copy = FileUtils.copyFile(f, destDir, overwrite);
+		FileManager.getInstance().changed(destDir);
+		return copy;
 	}
 	
 	/**
@@ -117,7 +154,10 @@ public class Worker {
 	 * @return success or failure
 	 */
 	public static File moveFile(File f, File destDir, boolean overwrite) {
-		return FileUtils.moveFile(f, destDir, overwrite);
+		File moved = FileUtils.moveFile(f, destDir, overwrite);
+		FileManager.getInstance().changed(f);
+		FileManager.getInstance().changed(destDir);
+		return moved;
 	}
 		
 	private static BasicPasswordEncryptor encryptor = new BasicPasswordEncryptor();
@@ -145,13 +185,17 @@ public class Worker {
 	}
 
 	/**
-	 * Determines whether the session is authenticated.
+	 * Determines whether the request is authenticated, by a token or by 
+	 * the session.
 	 * 
 	 * @param request request to obtain the session from 
 	 * @return user authenticated or not
 	 */
 	public static boolean isAuthenticated(HttpServletRequest request) {
-		return !(!request.isRequestedSessionIdValid() || request.getSession().getAttribute(Engine.ATTRIBUTE_AUTHENTICATED) == null);
+		if (request.getAttribute(Engine.ATTRIBUTE_TOKEN) != null) return true;
+		if (!request.isRequestedSessionIdValid()) return false;
+		HttpSession session = request.getSession(false);
+		return session != null && session.getAttribute(Engine.ATTRIBUTE_AUTHENTICATED) != null;
 	}
 
 	/**
@@ -298,7 +342,23 @@ public class Worker {
 	}
 	
 	/**
-	 * A convenience method to create a new {@link ExtendedMultipartRequest}.
+	 * Returns the body of an upload request, paced to the bandwidth of the 
+	 * request's transfer.
+	 * 
+	 * @param request the HTTP request
+	 * @return the stream to read the body from
+	 * @throws IOException 
+	 */
+	public static InputStream getUploadStream(HttpServletRequest request) throws IOException {
+		BandwidthManager.Transfer transfer = (BandwidthManager.Transfer) request.getAttribute(Engine.ATTRIBUTE_TRANSFER);
+		if (transfer != null && transfer.isLimited()) return new ThrottledInputStream(request.getInputStream(), transfer);
+		return request.getInputStream();
+	}
+	
+	/**
+	 * A convenience method to create a new {@link ExtendedMultipartRequest}, 
+	 * which receives the files of the request into a directory. The upload 
+	 * is paced to the bandwidth of the request's transfer.
 	 * 
 	 * @param request the HTTP request
 	 * @param dirName directory to save the files to
@@ -308,6 +368,22 @@ public class Worker {
 	 */
 	public static ExtendedMultipartRequest getMultipartRequest(HttpServletRequest request, String dirName, boolean overwrite) 
 			throws IOException {
-		return new ExtendedMultipartRequest(request, dirName, ConfigurationManager.getInstance().getMaxUploadSize(), "UTF-8", overwrite);
+		final BandwidthManager.Transfer transfer = (BandwidthManager.Transfer) request.getAttribute(Engine.ATTRIBUTE_TRANSFER);
+		if (transfer != null && transfer.isLimited()) {
+			request = new HttpServletRequestWrapper(request) {
+				private ServletInputStream in = null;
+				
+				@Override
+				public ServletInputStream getInputStream() throws IOException {
+					if (in == null) in = new ThrottledInputStream(super.getInputStream(), transfer);
+					return in;
+				}
+			};
+		}
+		try {
+			return new ExtendedMultipartRequest(request, dirName, ConfigurationManager.getInstance().getMaxUploadSize(), "UTF-8", overwrite);
+		} finally {
+			FileManager.getInstance().changed(new File(dirName));
+		}
 	}
 }
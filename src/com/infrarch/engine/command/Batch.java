@@ -0,0 +1,199 @@
+package com.infrarch.engine.command;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.servlet.http.HttpServletRequest;
+
+import com.infrarch.engine.AbstractStreamingCommand;
+import com.infrarch.engine.BufferedResponseWriter;
+import com.infrarch.engine.Command;
+import com.infrarch.engine.CommandManager;
+import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.ResponseWriter;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.ExecutionManager;
+
+/**
+ * {@code Cmd.BATCH} executes a JSON array of commands posted in the request
+ * body, for example <code>[{"command":"list_dirs","dir":"/"},{"command":"list_files","dir":"/"}]</code>.
+ * The session has been authenticated once for the whole batch. Commands which
+ * only read are executed in parallel; a command which changes the file system,
+ * users or settings waits for all commands before it and is waited for by
+ * all commands after it. Results are written in the order of the commands
+ * as soon as they are available.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class Batch extends AbstractStreamingCommand {
+
+	private static final Batch instance = new Batch();
+
+	/**
+	 * Commands which do not change anything and may run in parallel.
+	 */
+	private static final Set<String> READ_ONLY = new HashSet<String>(Arrays.asList(
+			Cmd.LIST_CONTENTS, Cmd.LIST_DIRS, Cmd.LIST_FILES, Cmd.FILE_INFO, Cmd.PING,
+			Cmd.USER_INFO, Cmd.LIST_USERS, Cmd.SERVER_INFO, Cmd.SETTINGS_GET, Cmd.LIST_SETTINGS, Cmd.METRICS));
+
+	/**
+	 * Commands which cannot be part of a batch as they need the request
+	 * body, return a stream or change the session.
+	 */
+	private static final Set<String> EXCLUDED = new HashSet<String>(Arrays.asList(
+			Cmd.BATCH, Cmd.DOWNLOAD, Cmd.UPLOAD, Cmd.UPLOAD_CHUNK, Cmd.LOGIN, Cmd.LOGOUT));
+
+	public static Command getInstance() {
+		return instance;
+	}
+
+	@Override
+	public String[] getSupportedCommands() {
+		return new String[] { Cmd.BATCH };
+	}
+
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, ResponseWriter writer) throws Throwable {
+
+		// read the commands
+		JsonArray commands;
+		try (JsonReader reader = Json.createReader(request.getReader())) {
+			commands = reader.readArray();
+		} catch (JsonException | IllegalStateException e) {
+			EngineUtils.putStatus(writer, Response.CODE_WRONG_PARAMETER);
+			return;
+		}
+		if (commands.isEmpty()) {
+			EngineUtils.putStatus(writer, Response.CODE_MISSING_PARAMETER);
+			return;
+		}
+		if (commands.size() > ConfigurationManager.getInstance().getBatchMaxCommands()) {
+			EngineUtils.putStatus(writer, Response.CODE_WRONG_PARAMETER);
+			return;
+		}
+
+		ExecutorService executor = ExecutionManager.getInstance().getExecutor();
+		int parallelism = ExecutionManager.getInstance().getParallelism();
+		Deque<Future<JsonObject>> pending = new ArrayDeque<Future<JsonObject>>();
+
+		writer.writeStartArray(Field.RESULTS);
+		try {
+			for (JsonValue v: commands) {
+				final Parameters cmdParams = toParams(v, params);
+				final Command cmd = cmdParams == null? null : getCommand(cmdParams);
+
+				// commands which only read are queued and their results
+				// written as soon as all results before them are written
+				if (cmd != null && READ_ONLY.contains(getCommandName(cmdParams))) {
+					if (pending.size() >= parallelism) writeResult(pending.removeFirst().get(), writer);
+					pending.addLast(executor.submit(new Callable<JsonObject>() {
+						@Override
+						public JsonObject call() {
+							BufferedResponseWriter buffer = new BufferedResponseWriter();
+							buffer.startResult();
+							execute(cmd, request, cmdParams, buffer);
+							buffer.write(Field.QUERY, cmdParams.toJson());
+							buffer.endResult();
+							return buffer.getResult();
+						}
+					}));
+					while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+						writeResult(pending.removeFirst().get(), writer);
+					}
+				}
+
+				// all other commands are barriers: write all results before
+				// them and execute directly to the client
+				else {
+					while (!pending.isEmpty()) writeResult(pending.removeFirst().get(), writer);
+					writer.startResult();
+					if (cmdParams == null) EngineUtils.putStatus(writer, Response.CODE_WRONG_PARAMETER);
+					else if (getCommandName(cmdParams) == null) EngineUtils.putStatus(writer, Response.CODE_NO_COMMAND);
+					else if (cmd == null) EngineUtils.putStatus(writer, Response.CODE_UNRECOGNIZED_COMMAND);
+					else execute(cmd, request, cmdParams, writer);
+					if (cmdParams != null) writer.write(Field.QUERY, cmdParams.toJson());
+					writer.endResult();
+				}
+			}
+			while (!pending.isEmpty()) writeResult(pending.removeFirst().get(), writer);
+
+		} finally {
+			// do not leave commands running, if the batch has failed
+			for (Future<JsonObject> f: pending) f.cancel(true);
+		}
+		writer.writeEnd();
+
+		EngineUtils.putStatus(writer, Response.CODE_OK);
+	}
+
+	/**
+	 * Executes a command of the batch, turning any exception thrown
+	 * into an error status of its result.
+	 */
+	private void execute(Command cmd, HttpServletRequest request, Parameters params, ResponseWriter writer) {
+		String name = getCommandName(params);
+		if (EXCLUDED.contains(name)) {
+			EngineUtils.putStatus(writer, Response.CODE_UNSUPPORTED_COMMAND);
+			return;
+		}
+		try {
+			CommandManager.getInstance().execute(cmd, request, params, writer);
+		} catch (Throwable t) {
+			logger.error("Exception occured while executing batch command: " + cmd.getClass(), t);
+			writer.unwind();
+			EngineUtils.putStatus(writer, Response.CODE_ERROR);
+		}
+	}
+
+	private void writeResult(JsonObject result, ResponseWriter writer) {
+		writer.startResult();
+		writer.writeResult(result);
+		writer.endResult();
+	}
+
+	private Command getCommand(Parameters params) {
+		return CommandManager.getInstance().getSupportingCommand(getCommandName(params));
+	}
+
+	private String getCommandName(Parameters params) {
+		String name = params.getCommand();
+		return name == null || name.isEmpty()? null : name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Converts a command of the batch to the parameters the engine passes to
+	 * commands: all values are strings and the session of the batch is used.
+	 *
+	 * @return the parameters or <code>null</code>, if not a JSON object
+	 */
+	private Parameters toParams(JsonValue v, Parameters batchParams) {
+		if (v.getValueType() != JsonValue.ValueType.OBJECT) return null;
+		Parameters params = new Parameters(batchParams.getUser(), batchParams.getIp());
+		params.setHome(batchParams.getHome());
+		for (Map.Entry<String, JsonValue> e: ((JsonObject) v).entrySet()) {
+			JsonValue value = e.getValue();
+			params.put(e.getKey(), value instanceof JsonString? ((JsonString) value).getString() : value.toString());
+		}
+		return params;
+	}
+}
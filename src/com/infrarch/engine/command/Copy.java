@@ -2,18 +2,19 @@ package com.infrarch.engine.command;
 
 import java.io.File;
 
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
 import com.infrarch.engine.AbstractCommand;
 import com.infrarch.engine.Command;
-import com.infrarch.engine.Engine;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.DigestIndex;
 
 /**
  * This class supports three commands: {@code Cmd.COPY}, {@code Cmd.MOVE}. 
@@ -25,6 +26,13 @@ public class Copy extends AbstractCommand {
 
 	private static final Copy instance = new Copy();
 	
+	private static final Parameter[] PARAMETERS = {
+		Parameter.required(Cmd.Q_SRC_DIR),
+		Parameter.required(Cmd.Q_DEST_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME),
+		Parameter.optional(Cmd.Q_OVERWRITE, Parameter.Type.BOOLEAN, Boolean.FALSE)
+	};
+	
 	public static Command getInstance() {
 		return instance;
 	}
@@ -35,36 +43,20 @@ public class Copy extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
-		
-		// get parameters
-		String srcDir, destDir, fileName, overwriteStr = null;
-		try { 
-			srcDir = params.getString(Cmd.Q_SRC_DIR);
-			destDir = params.getString(Cmd.Q_DEST_DIR);
-			fileName = params.getString(Cmd.Q_FILE_NAME);
-		} catch (NullPointerException e) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		try {
-			overwriteStr = params.getString(Cmd.Q_OVERWRITE);
-		} catch (NullPointerException e) {}	// optional
-		if ("".equals(srcDir) || "".equals(destDir) || "".equals(fileName)) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		srcDir = EngineUtils.urlDecode(srcDir);
-		destDir = EngineUtils.urlDecode(destDir);
-		fileName = EngineUtils.urlDecode(fileName);
+	public Parameter[] getParameters(String cmdStr) {
+		return PARAMETERS;
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 		
-		// overwrite parameter
-		boolean overwrite = new Boolean(overwriteStr);
+		String srcDir = params.getString(Cmd.Q_SRC_DIR);
+		String destDir = params.getString(Cmd.Q_DEST_DIR);
+		String fileName = params.getString(Cmd.Q_FILE_NAME);
+		boolean overwrite = params.getBoolean(Cmd.Q_OVERWRITE);
 		
 		// check if the user has access to both source and destination directories
-		HttpSession session = request.getSession();
- 		String user = (String) session.getAttribute(Engine.ATTRIBUTE_USER_NAME);
-		if (!Worker.checkUserAccess(user, srcDir) || !Worker.checkUserAccess(user, destDir)) {
+		if (!Worker.checkUserAccess(params, srcDir) || !Worker.checkUserAccess(params, destDir)) {
 			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
 			return;
 		}
@@ -88,10 +80,18 @@ public class Copy extends AbstractCommand {
 		}
 		
 		// Cmd.COPY_FILE
-		String cmdStr = params.getString(Cmd.Q_COMMAND);
+		String cmdStr = params.getCommand();
 		if (Cmd.COPY_FILE.equalsIgnoreCase(cmdStr)) {
-			if (Worker.copyFile(cf, f2, overwrite) == null)
+			File copy = Worker.copyFile(cf, f2, overwrite);
+			if (copy == null) {
 				EngineUtils.putStatus(builder, Response.CODE_ERROR);
+				return;
+			}
+			
+			// the hash of the copy, computed as it was written, verifies it
+			builder.add(Field.FILE_NAME, copy.getName());
+			String hash = DigestIndex.getInstance().get(copy);
+			if (hash != null) builder.add(Field.SHA256, hash);
 		}
 		
 		// Cmd.MOVE_FILE
@@ -1,56 +1,61 @@
 package com.infrarch.engine.command;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
-import javax.json.JsonObject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.apache.log4j.Logger;
 
-import com.infrarch.engine.Engine;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.Validator;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.CompressedVariants;
+import com.infrarch.engine.worker.CompressingOutputStream;
 
+/**
+ * {@code Cmd.DOWNLOAD} is executed by the {@link com.infrarch.engine.Engine} 
+ * directly, as it is the only command returning a stream.
+ * 
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
 public class Download {
 
-	public static void download(JsonObject params, HttpServletRequest request, HttpServletResponse response, Logger logger) {
+	private static final Parameter[] PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME)
+	};
 	
-		// check if dir present
-		String dir;
-		try { 
-			dir = params.getString(Cmd.Q_DIR);
-		} catch (NullPointerException e) {
-			logger.info("No directory set");
-			return;
-		}
-		if ("".equals(dir)) {
-			logger.info("No directory set");
-			return;
-		}
-		dir = EngineUtils.urlDecode(dir);
-				
-		// check ref / file name parameters
-		String fileName;
-		try {
-			fileName = params.getString(Cmd.Q_FILE_NAME);
-		} catch (NullPointerException e) {
-			logger.info("No file name set");
-			return;
-		}
-		if ("".equals(fileName)) {
-			logger.info("No file name set");
-			return;
+	/**
+	 * Sends a file to the client.
+	 * 
+	 * @return the number of bytes sent or being sent or -1, if the file 
+	 * 			could not be sent
+	 */
+	public static long download(Parameters params, HttpServletRequest request, HttpServletResponse response, Logger logger) {
+	
+		// check the dir and file name parameters
+		if (params.bind(PARAMETERS) != Response.CODE_OK) {
+			logger.info("No directory or file name set");
+			return -1;
 		}
+		String dir = params.getString(Cmd.Q_DIR);
+		String fileName = params.getString(Cmd.Q_FILE_NAME);
 		
 		// check if the user has access to this directory
-		HttpSession session = request.getSession();
- 		String user = (String) session.getAttribute(Engine.ATTRIBUTE_USER_NAME);
-		if (!Worker.checkUserAccess(user, dir)) {
+		String user = params.getUser();
+		if (!Worker.checkUserAccess(params, dir)) {
 			logger.info("User " + user + " has no access to directory: " + dir);
-			return;
+			return -1;
 		}
 		
 		// construct a File for the directory
@@ -58,14 +63,63 @@ public class Download {
 		File fDir = new File(docRoot, dir);
 		if (!fDir.exists() || !fDir.isDirectory()) {
 			logger.info("No such directory: " + dir);
-			return;
+			return -1;
 		}
 			
-		// download the file
+		// check if the client has the current version of the file
 		File file = new File(fDir, fileName);
-		boolean b = EngineUtils.downloadFile(file, fileName, request, response);
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			logger.info("No such file: " + file.getAbsolutePath());
+			return -1;
+		}
+		Validator validator = Validator.strong(attrs.lastModifiedTime().toMillis(), 
+				attrs.size(), attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+		
+		// send the compressed variant, if there is one and the client accepts 
+		// it; ranges of the file are always sent from the file
+		CompressedVariants variants = CompressedVariants.getInstance();
+		File variant = null;
+		String encoding = null;
+		if (variants.isCompressible(fileName)) {
+			response.addHeader("Vary", "Accept-Encoding");
+			if (request.getHeader("Range") == null 
+					&& CompressingOutputStream.GZIP.equals(EngineUtils.getAcceptedEncoding(request.getHeader("Accept-Encoding")))) {
+				variant = variants.getVariant(file);
+			}
+		}
+		if (variant != null) {
+			encoding = CompressingOutputStream.GZIP;
+			validator = getEncodedValidator(validator, encoding);
+		}
 		
-		if (!b) logger.error("I/O error downloading file: " + file.getAbsolutePath());
-		else logger.info("Successfully downloaded file: " + file.getAbsolutePath());
+		validator.setHeaders(response);
+		if (validator.isNotModified(request)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return 0;
+		}
+		
+		// download the file
+		long sent = variant != null? EngineUtils.downloadFile(variant, fileName, validator, encoding, request, response) 
+				: EngineUtils.downloadFile(file, fileName, validator, request, response);
+		
+		if (sent < 0) {
+			logger.error("I/O error downloading file: " + file.getAbsolutePath());
+			return -1;
+		}
+		logger.debug("Downloading file: " + file.getAbsolutePath() + (encoding != null? " (" + encoding + ")" : ""));
+		return sent;
+	}
+	
+	/**
+	 * Returns the validator of a content coded representation of a file. 
+	 * Its entity tag differs from the file's, as the bytes sent differ.
+	 */
+	private static Validator getEncodedValidator(Validator validator, String encoding) {
+		String eTag = validator.getETag();
+		eTag = eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+		return new Validator(eTag, validator.getLastModified());
 	}
 }
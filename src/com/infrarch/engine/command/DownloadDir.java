@@ -0,0 +1,185 @@
+package com.infrarch.engine.command;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.infrarch.engine.Engine;
+import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.Worker;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.BandwidthManager;
+import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.FileManager;
+import com.infrarch.engine.worker.FileUtils;
+import com.infrarch.engine.worker.ThrottledOutputStream;
+
+/**
+ * {@code Cmd.DOWNLOAD_DIR} is executed by the {@link com.infrarch.engine.Engine}
+ * directly, as it returns a stream: a ZIP archive of a directory tree,
+ * written to the response while the tree is being walked. Nothing is
+ * buffered beyond a file's block, so memory use does not depend on the
+ * size of the tree.
+ * <p>
+ * Files of the types set by {@code ConfigurationManager.KEY_ZIP_STORED} are
+ * written uncompressed, the rest are compressed with the level set by
+ * {@code ConfigurationManager.KEY_ZIP_LEVEL}. Archives over 4GB or with
+ * more than 65535 entries are written in the Zip64 format.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class DownloadDir {
+
+	private static final Parameter[] PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR)
+	};
+
+	private static final String CONTENT_TYPE = "application/zip";
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final Parameters params;
+	private final Logger logger;
+	private File dir = null;
+
+	public DownloadDir(Parameters params, Logger logger) {
+		this.params = params;
+		this.logger = logger;
+	}
+
+	/**
+	 * Checks the parameters and the user's access to the directory. Nothing
+	 * is written to the response, so an error can still be returned.
+	 *
+	 * @return {@code Response.CODE_OK}, if the directory can be sent,
+	 * 			or the code of the error to return to the client otherwise
+	 */
+	public int check() {
+
+		// check the dir parameter
+		int code = params.bind(PARAMETERS);
+		if (code != Response.CODE_OK) return code;
+		String dir = params.getString(Cmd.Q_DIR);
+
+		// check if the user has access to this directory
+		String user = params.getUser();
+		if (!Worker.checkUserAccess(params, dir)) {
+			logger.info("User " + user + " has no access to directory: " + dir);
+			return Response.CODE_NO_ACCESS;
+		}
+
+		// construct a File for the directory
+		File fDir = new File(Worker.getDocRoot(), dir);
+		if (!fDir.isDirectory()) {
+			logger.info("No such directory: " + dir);
+			return Response.CODE_NO_SUCH_DIR;
+		}
+
+		this.dir = fDir;
+		return Response.CODE_OK;
+	}
+
+	/**
+	 * Sends the directory checked by {@link #check()} to the client.
+	 *
+	 * @return the number of bytes of the files sent or -1, if the
+	 * 			archive could not be completed
+	 */
+	public long send(HttpServletRequest request, HttpServletResponse response) {
+		String name = dir.getName().isEmpty()? "download.zip" : dir.getName() + ".zip";
+		EngineUtils.prepareDownloadHeaders(name, request, response);
+		response.setContentType(CONTENT_TYPE);
+
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		final Set<String> storedTypes = config.getZipStoredTypes();
+		final int level = config.getZipLevel();
+		final File base = dir;
+		final long[] bytes = new long[1];
+
+		try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(getOutputStream(request, response), BUFFER_SIZE))) {
+			out.setLevel(level);
+			final ZipOutputStream zip = out;
+
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+					File f = path.toFile();
+					if (f.equals(base)) return FileVisitResult.CONTINUE;
+					if (FileManager.getInstance().isSystemFile(f)) return FileVisitResult.SKIP_SUBTREE;
+
+					// keep empty directories
+					ZipEntry entry = new ZipEntry(FileUtils.getZipEntryName(base, f) + "/");
+					entry.setTime(attrs.lastModifiedTime().toMillis());
+					zip.putNextEntry(entry);
+					zip.closeEntry();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					File f = path.toFile();
+
+					// links are not followed, as they may lead out of the user's home
+					if (!attrs.isRegularFile() || FileManager.getInstance().isSystemFile(f)) return FileVisitResult.CONTINUE;
+
+					long size = FileUtils.zipFile(f, zip, FileUtils.getZipEntryName(base, f), getLevel(f.getName(), storedTypes, level));
+					if (size < 0) logger.warn("Could not read file, skipped in archive: " + f.getAbsolutePath());
+					else bytes[0] += size;
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					logger.warn("Could not read file, skipped in archive: " + path);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			out.finish();
+		} catch (IOException e) {
+			logger.error("Error sending directory: " + dir.getAbsolutePath(), e);
+			return -1;
+		}
+
+		logger.debug("Sent directory: " + dir.getAbsolutePath());
+		return bytes[0];
+	}
+
+	/**
+	 * Returns the response stream, paced to the bandwidth of the transfer.
+	 */
+	static OutputStream getOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		OutputStream out = response.getOutputStream();
+		BandwidthManager.Transfer transfer = (BandwidthManager.Transfer) request.getAttribute(Engine.ATTRIBUTE_TRANSFER);
+		return transfer != null && transfer.isLimited()? new ThrottledOutputStream(out, transfer) : out;
+	}
+
+	/**
+	 * Returns the compression level of a file: none for the types which
+	 * are already compressed, the given level for the rest.
+	 */
+	static int getLevel(String name, Set<String> types, int level) {
+		int idx = name.lastIndexOf('.');
+		boolean stored = idx >= 0 && types.contains(name.substring(idx + 1).toLowerCase(Locale.ROOT));
+		return stored? Deflater.NO_COMPRESSION : level;
+	}
+}
@@ -0,0 +1,349 @@
+package com.infrarch.engine.command;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.FileTypeMap;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.Worker;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.ExecutionManager;
+import com.infrarch.engine.worker.FileManager;
+import com.infrarch.engine.worker.FileUtils;
+
+/**
+ * {@code Cmd.DOWNLOAD_MANY} is executed by the {@link com.infrarch.engine.Engine}
+ * directly, as it returns a stream: several files, possibly from different
+ * directories, sent in one response as a ZIP archive or as {@code multipart/mixed}.
+ * <p>
+ * The files are given as a JSON array of paths relative to the document
+ * root, in the {@code Cmd.Q_FILES} parameter or, if there is no such
+ * parameter, in the request body. All files are checked before anything
+ * is sent, with the user's access checked once per directory. While a file
+ * is being sent, the next small files are read ahead on the shared executor.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class DownloadMany {
+
+	public static final String ARCHIVE_ZIP = "zip";
+	public static final String ARCHIVE_MULTIPART = "multipart";
+
+	private static final Parameter[] PARAMETERS = {
+		Parameter.optional(Cmd.Q_ARCHIVE, Parameter.Type.STRING, ARCHIVE_ZIP)
+	};
+
+	private static final String ZIP_CONTENT_TYPE = "application/zip";
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/**
+	 * The number of files read ahead.
+	 */
+	private static final int READ_AHEAD = 4;
+
+	/**
+	 * The size of the largest file read ahead; larger files are streamed
+	 * from the disk when their turn comes.
+	 */
+	private static final long READ_AHEAD_MAX = 1024*1024;
+
+	private final Parameters params;
+	private final Logger logger;
+	private final List<Item> items = new ArrayList<Item>();
+	private boolean zip = true;
+
+	/**
+	 * A file to send.
+	 */
+	private static class Item {
+
+		final File file;
+		final String name;
+		final long size;
+		final long lastModified;
+		Future<byte[]> data = null;
+
+		Item(File file, String name) {
+			this.file = file;
+			this.name = name;
+			this.size = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+
+	public DownloadMany(Parameters params, Logger logger) {
+		this.params = params;
+		this.logger = logger;
+	}
+
+	/**
+	 * Checks the parameters, the user's access to the directories and the
+	 * files. Nothing is written to the response, so an error can still be
+	 * returned.
+	 *
+	 * @return {@code Response.CODE_OK}, if the files can be sent,
+	 * 			or the code of the error to return to the client otherwise
+	 */
+	public int check(HttpServletRequest request) {
+		int code = params.bind(PARAMETERS);
+		if (code != Response.CODE_OK) return code;
+		String archive = params.getString(Cmd.Q_ARCHIVE);
+		if (ARCHIVE_MULTIPART.equalsIgnoreCase(archive)) zip = false;
+		else if (!ARCHIVE_ZIP.equalsIgnoreCase(archive)) return Response.CODE_WRONG_PARAMETER;
+
+		// read the paths
+		JsonArray paths;
+		try (JsonReader reader = Json.createReader(getReader(request))) {
+			paths = reader.readArray();
+		} catch (JsonException | IllegalStateException | IOException e) {
+			return Response.CODE_WRONG_PARAMETER;
+		}
+		if (paths.isEmpty()) return Response.CODE_MISSING_PARAMETER;
+		if (paths.size() > ConfigurationManager.getInstance().getDownloadManyMax()) return Response.CODE_WRONG_PARAMETER;
+
+		// check the directories once and the files
+		String user = params.getUser();
+		File docRoot = Worker.getDocRoot();
+		Map<String, Boolean> access = new HashMap<String, Boolean>();
+		Set<String> names = new HashSet<String>();
+		for (JsonValue v: paths) {
+			if (v.getValueType() != JsonValue.ValueType.STRING) return Response.CODE_WRONG_PARAMETER;
+			String path = ((JsonString) v).getString();
+			int idx = path.lastIndexOf('/');
+			String dir = idx <= 0? "/" : path.substring(0, idx);
+			String fileName = path.substring(idx + 1);
+			if (fileName.isEmpty()) return Response.CODE_WRONG_PARAMETER;
+
+			Boolean allowed = access.get(dir);
+			if (allowed == null) {
+				allowed = Worker.checkUserAccess(params, dir);
+				access.put(dir, allowed);
+			}
+			if (!allowed) {
+				logger.info("User " + user + " has no access to directory: " + dir);
+				return Response.CODE_NO_ACCESS;
+			}
+
+			File f = new File(new File(docRoot, dir), fileName);
+			if (!f.isFile() || FileManager.getInstance().isSystemFile(f)) {
+				logger.info("No such file: " + f.getAbsolutePath());
+				return Response.CODE_NO_SUCH_FILE;
+			}
+
+			// the same file twice is sent once
+			String name = path.startsWith("/")? path.substring(1) : path;
+			if (names.add(name)) items.add(new Item(f, name));
+		}
+		return Response.CODE_OK;
+	}
+
+	private Reader getReader(HttpServletRequest request) throws IOException {
+		String files = params.getString(Cmd.Q_FILES);
+		return files != null? new StringReader(files) : request.getReader();
+	}
+
+	/**
+	 * Sends the files checked by {@link #check(HttpServletRequest)} to the client.
+	 *
+	 * @return the number of bytes of the files sent or -1, if the
+	 * 			response could not be completed
+	 */
+	public long send(HttpServletRequest request, HttpServletResponse response) {
+		long bytes = 0;
+		try {
+			if (zip) {
+				EngineUtils.prepareDownloadHeaders("download.zip", request, response);
+				response.setContentType(ZIP_CONTENT_TYPE);
+				bytes = sendZip(DownloadDir.getOutputStream(request, response));
+			}
+			else {
+				String boundary = UUID.randomUUID().toString().replace("-", "");
+				response.setContentType("multipart/mixed; boundary=" + boundary);
+				bytes = sendMultipart(DownloadDir.getOutputStream(request, response), boundary);
+			}
+		} catch (IOException e) {
+			logger.error("Error sending files", e);
+			return -1;
+		} finally {
+			// do not leave files being read, if the response has failed
+			for (Item item: items) {
+				if (item.data != null) item.data.cancel(true);
+			}
+		}
+
+		logger.debug("Sent " + items.size() + " files");
+		return bytes;
+	}
+
+	private long sendZip(OutputStream output) throws IOException {
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		Set<String> storedTypes = config.getZipStoredTypes();
+		int zipLevel = config.getZipLevel();
+		long bytes = 0;
+
+		try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(output, BUFFER_SIZE))) {
+			out.setLevel(zipLevel);
+			for (int i = 0; i < items.size(); i++) {
+				readAhead(i);
+				Item item = items.get(i);
+				int level = DownloadDir.getLevel(item.name, storedTypes, zipLevel);
+				byte[] data = getData(item);
+				long size;
+				if (data != null) size = zip(out, item, data, level);
+				else size = FileUtils.zipFile(item.file, out, item.name, level);
+				if (size < 0) logger.warn("Could not read file, skipped: " + item.file.getAbsolutePath());
+				else bytes += size;
+			}
+			out.finish();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Adds a file read ahead to a zip stream.
+	 */
+	private static long zip(ZipOutputStream out, Item item, byte[] data, int level) throws IOException {
+		ZipEntry entry = new ZipEntry(item.name);
+		entry.setTime(item.lastModified);
+		out.setLevel(level);
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+		return data.length;
+	}
+
+	private long sendMultipart(OutputStream output, String boundary) throws IOException {
+		FileTypeMap types = FileTypeMap.getDefaultFileTypeMap();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long bytes = 0;
+
+		try (OutputStream out = new BufferedOutputStream(output, BUFFER_SIZE)) {
+			for (int i = 0; i < items.size(); i++) {
+				readAhead(i);
+				Item item = items.get(i);
+
+				// open the file before writing the headers, so that a file
+				// which cannot be read is skipped
+				byte[] data = getData(item);
+				InputStream in = null;
+				if (data == null) {
+					try {
+						in = Files.newInputStream(item.file.toPath());
+					} catch (IOException e) {
+						logger.warn("Could not read file, skipped: " + item.file.getAbsolutePath());
+						continue;
+					}
+				}
+				long size = data != null? data.length : item.size;
+
+				String headers = "\r\n--" + boundary + "\r\n"
+					+ "Content-Type: " + types.getContentType(item.name) + "\r\n"
+					+ "Content-Disposition: attachment; filename*=UTF-8''" + EngineUtils.urlEncode(item.file.getName()) + "\r\n"
+					+ "Content-Length: " + size + "\r\n\r\n";
+				out.write(headers.getBytes(StandardCharsets.US_ASCII));
+
+				if (data != null) {
+					out.write(data);
+				}
+				else {
+					try {
+						// the part must be as long as announced
+						long remaining = size;
+						int n;
+						while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+							out.write(buffer, 0, n);
+							remaining -= n;
+						}
+						if (remaining > 0) throw new IOException("File truncated during download: " + item.file.getAbsolutePath());
+					} finally {
+						in.close();
+					}
+				}
+				bytes += size;
+			}
+			out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Starts reading the small files following a file on the shared
+	 * executor, or on the calling thread, if the executor does not take them.
+	 */
+	private void readAhead(int index) {
+		int end = Math.min(items.size(), index + 1 + READ_AHEAD);
+		for (int i = index; i < end; i++) {
+			final Item item = items.get(i);
+			if (item.data != null || item.size > READ_AHEAD_MAX) continue;
+			FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return Files.readAllBytes(item.file.toPath());
+				}
+			});
+			item.data = task;
+			try {
+				ExecutionManager.getInstance().getExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Returns the contents of a file read ahead, dropping them from the item.
+	 *
+	 * @return the contents or <code>null</code>, if the file has not been
+	 * 		read ahead or could not be read, and should be streamed
+	 */
+	private static byte[] getData(Item item) throws IOException {
+		if (item.data == null) return null;
+		try {
+			return item.data.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			item.data = null;
+		}
+	}
+}
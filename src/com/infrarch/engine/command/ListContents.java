@@ -1,34 +1,57 @@
 package com.infrarch.engine.command;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
-import com.infrarch.engine.AbstractCommand;
+import com.infrarch.engine.AbstractStreamingCommand;
 import com.infrarch.engine.Command;
-import com.infrarch.engine.Engine;
+import com.infrarch.engine.ConditionalCommand;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.ResponseWriter;
+import com.infrarch.engine.Validator;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.DigestIndex;
+import com.infrarch.engine.worker.ExecutionManager;
+import com.infrarch.engine.worker.FileManager;
 
 /**
  * This class supports three commands: {@code Cmd.LIST_CONTENTS}, {@code Cmd.LIST_DIRS}, 
  * {@code Cmd.LIST_FILES}, {@code Cmd.FILE_INFO}, {@code Cmd.MAKE_DIR}. 
+ * Listings are written to the client while the directory is being read, so
+ * the memory used does not depend on the number of entries.
  * 
  * @author Assen Antov
  * @version 1.0, 07/2016
  */
-public class ListContents extends AbstractCommand {
+public class ListContents extends AbstractStreamingCommand implements ConditionalCommand {
 
 	private static final ListContents instance = new ListContents();
 	
+	private static final int CHUNK_SIZE = 256;
+	
+	private static final Parameter[] DIR_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR)
+	};
+	
+	private static final Parameter[] FILE_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME)
+	};
+	
 	public static Command getInstance() {
 		return instance;
 	}
@@ -39,27 +62,41 @@ public class ListContents extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public Parameter[] getParameters(String cmdStr) {
+		return Cmd.FILE_INFO.equals(cmdStr)? FILE_PARAMETERS : DIR_PARAMETERS;
+	}
+	
+	/**
+	 * Listings are validated by the time of last modification and size of 
+	 * the directory, which change when entries are added, removed or renamed, 
+	 * and by the number of changes made through the engine, as changes of 
+	 * the entries themselves do not always change the directory. Information 
+	 * on a file is validated by its own attributes.
+	 */
+	@Override
+	public Validator getValidator(HttpServletRequest request, Parameters params) {
+		String cmdStr = params.getCommand();
+		if (Cmd.MAKE_DIR.equalsIgnoreCase(cmdStr)) return null;
 		
-		// check if dir present
-		String dir;
-		try { 
-			dir = params.getString(Cmd.Q_DIR);
-		} catch (NullPointerException e) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		if ("".equals(dir)) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		dir = EngineUtils.urlDecode(dir);
+		String dir = params.getString(Cmd.Q_DIR);
+		if (!Worker.checkUserAccess(params, dir)) return null;
+		File f = new File(Worker.getDocRoot(), dir);
+		if (Cmd.FILE_INFO.equalsIgnoreCase(cmdStr)) f = new File(f, params.getString(Cmd.Q_FILE_NAME));
+		
+		BasicFileAttributes attrs = readAttributes(f.toPath());
+		if (attrs == null) return null;
+		long modified = attrs.lastModifiedTime().toMillis();
+		return Validator.weak(modified, 
+				attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS), attrs.size(), FileManager.getInstance().getGeneration());
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, ResponseWriter writer) throws Throwable {
+		String dir = params.getString(Cmd.Q_DIR);
 		
 		// check if the user has access to this directory
-		HttpSession session = request.getSession();
- 		String user = (String) session.getAttribute(Engine.ATTRIBUTE_USER_NAME);
-		if (!Worker.checkUserAccess(user, dir)) {
-			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
+		if (!Worker.checkUserAccess(params, dir)) {
+			EngineUtils.putStatus(writer, Response.CODE_NO_ACCESS);
 			return;
 		}
 		
@@ -68,118 +105,157 @@ public class ListContents extends AbstractCommand {
 		File fDir = new File(docRoot, dir);
 		
 		// is make_dir command?
-		String cmdStr = params.getString(Cmd.Q_COMMAND);
+		String cmdStr = params.getCommand();
 		if (Cmd.MAKE_DIR.equalsIgnoreCase(cmdStr)) {
-			if (fDir.mkdirs()) EngineUtils.putStatus(builder, Response.CODE_OK);
-			else EngineUtils.putStatus(builder, Response.CODE_ERROR);
+			if (fDir.mkdirs()) {
+				Worker.changed(fDir);
+				EngineUtils.putStatus(writer, Response.CODE_OK);
+			}
+			else EngineUtils.putStatus(writer, Response.CODE_ERROR);
 			return;
 		}
 		
 		// check if dir exists
 		if (!fDir.exists() || !fDir.isDirectory()) {
-			EngineUtils.putStatus(builder, Response.CODE_NO_SUCH_DIR);
+			EngineUtils.putStatus(writer, Response.CODE_NO_SUCH_DIR);
 			return;
 		}
 		
 		// Cmd.LIST_CONTENTS
 		if (Cmd.LIST_CONTENTS.equalsIgnoreCase(cmdStr)) {
-			builder.add(Field.DIRECTORIES, listDirectories(fDir, docRoot));
-			builder.add(Field.FILES, listFiles(fDir, user, dir));
+			listDirectories(fDir, docRoot, writer);
+			listFiles(fDir, writer);
 		}
 		
 		// Cmd.LIST_DIRS
 		else if (Cmd.LIST_DIRS.equalsIgnoreCase(cmdStr)) {
-			builder.add(Field.DIRECTORIES, listDirectories(fDir, docRoot));
+			listDirectories(fDir, docRoot, writer);
 		}
 		
 		// Cmd.LIST_FILES
 		else if (Cmd.LIST_FILES.equalsIgnoreCase(cmdStr)) {
-			builder.add(Field.FILES, listFiles(fDir, user, dir));
+			listFiles(fDir, writer);
 		}
 		
 		// Cmd.FILE_INFO
 		else if (Cmd.FILE_INFO.equalsIgnoreCase(cmdStr)) {
 			
-			// check file name parameter
-			String fileName;
-			try { 
-				fileName = params.getString(Cmd.Q_FILE_NAME);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(fileName)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			fileName = EngineUtils.urlDecode(fileName);
+			String fileName = params.getString(Cmd.Q_FILE_NAME);
 						
 			// get file info
 			File f = new File(fDir, fileName);
-			JsonObjectBuilder fi = fileInfo(f);
-			if (fi != null) builder.add(Field.FILE_INFO, fi);
-			else {
-				EngineUtils.putStatus(builder, Response.CODE_NO_SUCH_FILE);
+			BasicFileAttributes attrs = readAttributes(f.toPath());
+			if (attrs == null) {
+				EngineUtils.putStatus(writer, Response.CODE_NO_SUCH_FILE);
 				return;
 			}
+			writer.writeStartObject(Field.FILE_INFO);
+			fileInfo(f, attrs, writer);
+			String hash = DigestIndex.getInstance().get(f);
+			if (hash != null) writer.write(Field.SHA256, hash);
+			writer.writeEnd();
 		}
 
 		else {
 			logger.error("Unrecognized command");
-			EngineUtils.putStatus(builder, Response.CODE_UNRECOGNIZED_COMMAND);
+			EngineUtils.putStatus(writer, Response.CODE_UNRECOGNIZED_COMMAND);
 			return;
 		}
 			
-		EngineUtils.putStatus(builder, Response.CODE_OK);
+		EngineUtils.putStatus(writer, Response.CODE_OK);
+	}
+	
+	private void listDirectories(File f, File docRoot, ResponseWriter writer) throws Exception {
+		writer.writeStartArray(Field.DIRECTORIES);
+		
+		// checking for sub-directories opens every directory listed, so the
+		// directories are collected in chunks and checked in parallel
+		List<Path> chunk = new ArrayList<Path>(CHUNK_SIZE);
+		List<BasicFileAttributes> chunkAttrs = new ArrayList<BasicFileAttributes>(CHUNK_SIZE);
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(f.toPath())) {
+			for (Path p: ds) {
+				BasicFileAttributes attrs = readAttributes(p);
+				if (attrs == null || !attrs.isDirectory() || Worker.isSystemFile(p.toFile())) continue;
+				chunk.add(p);
+				chunkAttrs.add(attrs);
+				if (chunk.size() == CHUNK_SIZE) {
+					writeDirectories(chunk, chunkAttrs, docRoot, writer);
+					chunk.clear();
+					chunkAttrs.clear();
+				}
+			}
+		}
+		writeDirectories(chunk, chunkAttrs, docRoot, writer);
+		writer.writeEnd();
 	}
 	
-	private JsonArrayBuilder listDirectories(File f, File docRoot) {
-		JsonArrayBuilder filesArray = Json.createArrayBuilder();
-		File[] files = f.listFiles();
-		for (int i = 0; i < files.length; i++) {
-			if (!files[i].isDirectory() || Worker.isSystemFile(files[i])) continue;
-			boolean hasSubd = hasSubdirs(files[i]);
-			String relDir = EngineUtils.getRelativeDir(docRoot, files[i]);
-			filesArray.add(Json.createObjectBuilder()
-				.add("name", files[i].getName())
-				.add("relativePath", relDir == null? "" : relDir)
-				.add("lastModified", files[i].lastModified())
-				.add("hasSubdirs", hasSubd)
-			);
+	private void writeDirectories(List<Path> chunk, List<BasicFileAttributes> chunkAttrs, File docRoot, ResponseWriter writer) throws Exception {
+		final boolean[] subdirs = new boolean[chunk.size()];
+		ExecutionManager.getInstance().forEach(chunk, new ExecutionManager.Task<Path>() {
+			@Override
+			public void run(Path p, int index) {
+				subdirs[index] = hasSubdirs(p);
+			}
+		});
+		
+		for (int i = 0; i < subdirs.length; i++) {
+			File file = chunk.get(i).toFile();
+			String relDir = EngineUtils.getRelativeDir(docRoot, file);
+			writer.writeStartObject()
+				.write("name", file.getName())
+				.write("relativePath", relDir == null? "" : relDir)
+				.write("lastModified", chunkAttrs.get(i).lastModifiedTime().toMillis())
+				.write("hasSubdirs", subdirs[i])
+				.writeEnd();
 		}
-		return filesArray;
 	}
 	
-	private boolean hasSubdirs(File f) {
-		if (!f.isDirectory()) return false;
-		File[] files = f.listFiles();
-		for (int i = 0; i < files.length; i++) {
-			if (files[i].isDirectory()) return true;
+	private static boolean hasSubdirs(Path p) {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(p)) {
+			for (Path c: ds) {
+				if (Files.isDirectory(c)) return true;
+			}
+		} catch (IOException e) {
+			// not readable; nothing to expand
 		}
 		return false;
 	}
 	
-	private JsonArrayBuilder listFiles(File f, String user, String dir) {
-		JsonArrayBuilder filesArray = Json.createArrayBuilder();
-		File[] files = f.listFiles();
-		for (int i = 0; i < files.length; i++) {
-			if (files[i].isDirectory() || Worker.isSystemFile(files[i])) continue;
-			filesArray.add(fileInfo(files[i]));
+	private void listFiles(File f, ResponseWriter writer) throws IOException {
+		writer.writeStartArray(Field.FILES);
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(f.toPath())) {
+			for (Path p: ds) {
+				File file = p.toFile();
+				BasicFileAttributes attrs = readAttributes(p);
+				if (attrs == null || attrs.isDirectory() || Worker.isSystemFile(file)) continue;
+				writer.writeStartObject();
+				fileInfo(file, attrs, writer);
+				writer.writeEnd();
+			}
+		}
+		writer.writeEnd();
+	}
+	
+	/**
+	 * Reads the attributes of a file with a single call to the file system.
+	 * 
+	 * @return the attributes or <code>null</code>, if the file does not exist
+	 */
+	private BasicFileAttributes readAttributes(Path p) {
+		try {
+			return Files.readAttributes(p, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
 		}
-		return filesArray;
 	}
 		
-	private JsonObjectBuilder fileInfo(File f) {
-		if (!f.exists()) return null;
-		
-		JsonObjectBuilder infoBuilder = Json.createObjectBuilder();
-		infoBuilder
-			.add("name", f.getName())
-			.add("lastModified", f.lastModified())
-			.add("size", f.length())
-			.add("hidden", f.isHidden())
-			.add("canRead", f.canRead())
-			.add("canWrite", f.canWrite());
-		return infoBuilder;
+	private void fileInfo(File f, BasicFileAttributes attrs, ResponseWriter writer) {
+		writer
+			.write("name", f.getName())
+			.write("lastModified", attrs.lastModifiedTime().toMillis())
+			.write("size", attrs.size())
+			.write("hidden", f.isHidden())
+			.write("canRead", f.canRead())
+			.write("canWrite", f.canWrite());
 	}
 }
@@ -5,7 +5,6 @@ import java.util.concurrent.TimeUnit;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
 
@@ -13,10 +12,13 @@ import com.infrarch.commons.db.Row;
 import com.infrarch.engine.AbstractCommand;
 import com.infrarch.engine.Command;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.TokenManager;
 
 /**
  * This class supports commands {@code Cmd.LOGIN}, {@code Cmd.LOGOUT}, 
@@ -30,6 +32,31 @@ public class Login extends AbstractCommand {
 
 	private static final Login instance = new Login();
 	
+	private static final Parameter[] LOGIN_PARAMETERS = {
+		Parameter.required(Cmd.Q_USER),
+		Parameter.required(Cmd.Q_PASSWORD),
+		Parameter.optional(Cmd.Q_BEARER, Parameter.Type.BOOLEAN, Boolean.FALSE)
+	};
+	
+	private static final Parameter[] PASSWORD_PARAMETERS = {
+		Parameter.required(Cmd.Q_PASSWORD)
+	};
+	
+	private static final Parameter[] USER_PARAMETERS = {
+		Parameter.required(Cmd.Q_USER)
+	};
+	
+	private static final Parameter[] ADD_USER_PARAMETERS = {
+		Parameter.required(Cmd.Q_USER),
+		Parameter.required(Cmd.Q_PASSWORD),
+		Parameter.required(Cmd.Q_DIR)
+	};
+	
+	private static final Parameter[] EDIT_USER_PARAMETERS = {
+		Parameter.required(Cmd.Q_PROPERTY),
+		Parameter.required(Cmd.Q_VALUE)
+	};
+	
 	public static Command getInstance() {
 		return instance;
 	}
@@ -42,25 +69,24 @@ public class Login extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public Parameter[] getParameters(String cmdStr) {
+		if (Cmd.LOGIN.equals(cmdStr)) return LOGIN_PARAMETERS;
+		if (Cmd.CHANGE_PASSWORD.equals(cmdStr)) return PASSWORD_PARAMETERS;
+		if (Cmd.USER_INFO.equals(cmdStr) || Cmd.DELETE_USER.equals(cmdStr)) return USER_PARAMETERS;
+		if (Cmd.ADD_USER.equals(cmdStr)) return ADD_USER_PARAMETERS;
+		if (Cmd.EDIT_USER.equals(cmdStr)) return EDIT_USER_PARAMETERS;
+		return Parameter.NONE;
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 		
 		// Cmd.LOGIN
-		String cmdStr = params.getString(Cmd.Q_COMMAND);
+		String cmdStr = params.getCommand();
 		if (Cmd.LOGIN.equalsIgnoreCase(cmdStr)) {
 
-			// get name and password
-			String user, pass;
-			try {
-				user = params.getString(Cmd.Q_USER);
-				pass = params.getString(Cmd.Q_PASSWORD);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(user) || "".equals(pass)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
+			String user = params.getString(Cmd.Q_USER);
+			String pass = params.getString(Cmd.Q_PASSWORD);
 			
 			// get user info
 			Row row = Worker.getUserRow(user);
@@ -82,8 +108,28 @@ public class Login extends AbstractCommand {
 			// compare password and return result
 			String encryptedPassword = (String) row.get(Worker.FIELD_PASS); 
 			boolean userOk = Worker.matchEncryptedPassword(pass, encryptedPassword);
+			
+			// change_pass used to hash the URL-encoded password; such a 
+			// password is hashed again as it is, once the user has logged in
+			if (!userOk) {
+				String encoded = EngineUtils.urlEncode(pass);
+				if (!encoded.equals(pass) && Worker.matchEncryptedPassword(encoded, encryptedPassword)) {
+					row.set(Worker.FIELD_PASS, Worker.encryptPassword(pass));
+					logger.info("Password of user " + user + " rehashed without URL encoding");
+					userOk = true;
+				}
+			}
 			if (userOk) {
-				Worker.setAuthenticated(user, true, request);
+				
+				// return a token instead of authenticating the session, if requested
+				if (params.getBoolean(Cmd.Q_BEARER)) {
+					TokenManager.Token token = TokenManager.getInstance().issue(user, row.getString(Worker.FIELD_HOME));
+					builder.add(Field.TOKEN, token.getValue());
+					builder.add(Field.TOKEN_EXPIRES, token.getExpires());
+				}
+				else {
+					Worker.setAuthenticated(user, true, request);
+				}
 				EngineUtils.putStatus(builder, Response.CODE_OK);
 				return;
 			}
@@ -106,23 +152,12 @@ public class Login extends AbstractCommand {
 		// Cmd.CHANGE_PASSWORD
 		else if (Cmd.CHANGE_PASSWORD.equalsIgnoreCase(cmdStr)) {
 			
-			// get password
-			String pass;
-			try {
-				pass = params.getString(Cmd.Q_PASSWORD);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(pass)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
+			String pass = params.getString(Cmd.Q_PASSWORD);
 			
 			// get user info
 			// common error, if no such user (could happen only if logged in, 
 			// then user is deleted and 'change_pass' is called afterwards)
-			String user = params.getString(Field.SESSION_USER_NAME);
+			String user = params.getUser();
 			Row row = Worker.getUserRow(user);
 			if (row == null) {
 				EngineUtils.putStatus(builder, Response.CODE_ERROR);
@@ -136,38 +171,14 @@ public class Login extends AbstractCommand {
 		// Cmd.USER_INFO
 		else if (Cmd.USER_INFO.equalsIgnoreCase(cmdStr)) {
 
-			// get user name
-			String name;
-			try {
-				name = params.getString(Cmd.Q_USER);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(name)) {
-					EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-					return;
-				}
-					
+			String name = params.getString(Cmd.Q_USER);
 			getUserInfo(name, builder);
 		}
 		
 		// Cmd.DELETE_USER
 		else if (Cmd.DELETE_USER.equalsIgnoreCase(cmdStr)) {
 
-			// get user name
-			String name;
-			try {
-				name = params.getString(Cmd.Q_USER);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(name)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-
+			String name = params.getString(Cmd.Q_USER);
 			Worker.deleteUser(name, builder);
 		}
 		
@@ -188,23 +199,9 @@ public class Login extends AbstractCommand {
 		// Cmd.ADD_USER
 		else if (Cmd.ADD_USER.equalsIgnoreCase(cmdStr)) {
 
-			// get the required parameters - name, pass, home dir
-			String name, pass, dir;
-			try { 
-				name = params.getString(Cmd.Q_USER);
-				pass = params.getString(Cmd.Q_PASSWORD);
-				dir = params.getString(Cmd.Q_DIR);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(name) || "".equals(pass) || "".equals(dir)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			name = EngineUtils.urlDecode(name);
-			pass = EngineUtils.urlDecode(pass);
-			dir = EngineUtils.urlDecode(dir);
+			String name = params.getString(Cmd.Q_USER);
+			String pass = params.getString(Cmd.Q_PASSWORD);
+			String dir = params.getString(Cmd.Q_DIR);
 			
 			// add new user
 			Row row = Worker.addUser(name, pass, dir);
@@ -217,38 +214,13 @@ public class Login extends AbstractCommand {
 		// Cmd.EDIT_USER
 		else if (Cmd.EDIT_USER.equalsIgnoreCase(cmdStr)) {
 
-			// get the property name 
-			String property;
-			try { 
-				property = params.getString(Cmd.Q_PROPERTY);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(property)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			property = EngineUtils.urlDecode(property);
-
-			// get the property value
-			String value;
-			try { 
-				value = params.getString(Cmd.Q_VALUE);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(value)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			value = EngineUtils.urlDecode(value);
+			String property = params.getString(Cmd.Q_PROPERTY);
+			String value = params.getString(Cmd.Q_VALUE);
 
 			// get user info
 			// common error, if no such user (could happen only if logged in, 
 			// then user is deleted and 'edit_user' is called afterwards)
-			String user = params.getString(Field.SESSION_USER_NAME);
+			String user = params.getUser();
 			Row row = Worker.getUserRow(user);
 			if (row == null) {
 				EngineUtils.putStatus(builder, Response.CODE_ERROR);
@@ -0,0 +1,86 @@
+package com.infrarch.engine.command;
+
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
+
+import com.infrarch.engine.AbstractCommand;
+import com.infrarch.engine.Command;
+import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.CommandMetrics;
+import com.infrarch.engine.worker.ContentCache;
+import com.infrarch.engine.worker.MetricsManager;
+import com.infrarch.engine.worker.RateLimiter;
+
+/**
+ * {@code Cmd.METRICS} returns the metrics of all commands executed since 
+ * the server was started, the number of requests and transfers rejected 
+ * by the {@link RateLimiter} and the statistics of the {@link ContentCache}. 
+ * Times are in microseconds. Available to the administrator only.
+ * 
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class Metrics extends AbstractCommand {
+
+	private static final Metrics instance = new Metrics();
+	private static final JsonBuilderFactory factory = Json.createBuilderFactory(null);
+	
+	public static Command getInstance() {
+		return instance;
+	}
+	
+	@Override
+	public String[] getSupportedCommands() {
+		return new String[] { Cmd.METRICS };
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
+		if (!"admin".equals(params.getUser())) {
+			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
+			return;
+		}
+		
+		JsonArrayBuilder array = factory.createArrayBuilder();
+		for (CommandMetrics m: MetricsManager.getInstance().getAllMetrics()) {
+			JsonObjectBuilder codes = factory.createObjectBuilder();
+			for (Map.Entry<Integer, Long> e: m.getCodeCounts().entrySet()) {
+				codes.add(e.getKey().toString(), e.getValue());
+			}
+			array.add(factory.createObjectBuilder()
+				.add("command", m.getCommand())
+				.add("count", m.getCount())
+				.add("errors", m.getErrors())
+				.add("inFlight", m.getInFlight())
+				.add("meanTime", m.getMeanTime())
+				.add("p50Time", m.getP50Time())
+				.add("p99Time", m.getP99Time())
+				.add("p999Time", m.getP999Time())
+				.add("maxTime", m.getMaxTime())
+				.add("resultCodes", codes));
+		}
+		builder.add(Field.METRICS, array);
+		builder.add("rejectedRequests", RateLimiter.getInstance().getRejectedRequests());
+		builder.add("rejectedTransfers", RateLimiter.getInstance().getRejectedTransfers());
+		
+		ContentCache cache = ContentCache.getInstance();
+		builder.add("cache", factory.createObjectBuilder()
+			.add("hits", cache.getHits())
+			.add("misses", cache.getMisses())
+			.add("hitRatio", cache.getHitRatio())
+			.add("bytesSaved", cache.getBytesSaved())
+			.add("size", cache.getSize())
+			.add("entries", cache.getEntryCount()));
+		
+		EngineUtils.putStatus(builder, Response.CODE_OK);
+	}
+}
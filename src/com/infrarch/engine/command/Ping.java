@@ -1,12 +1,12 @@
 package com.infrarch.engine.command;
 
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
 
 import com.infrarch.engine.AbstractCommand;
 import com.infrarch.engine.Command;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Response;
 
@@ -31,7 +31,7 @@ public class Ping extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 		EngineUtils.putStatus(builder, Response.CODE_OK);
 	}
 }
@@ -2,15 +2,14 @@ package com.infrarch.engine.command;
 
 import java.io.File;
 
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
 import com.infrarch.engine.AbstractCommand;
 import com.infrarch.engine.Command;
-import com.infrarch.engine.Engine;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Response;
@@ -26,6 +25,15 @@ public class Recycle extends AbstractCommand {
 
 	private static final Recycle instance = new Recycle();
 	
+	private static final Parameter[] DIR_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR)
+	};
+	
+	private static final Parameter[] FILE_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME)
+	};
+	
 	public static Command getInstance() {
 		return instance;
 	}
@@ -36,26 +44,17 @@ public class Recycle extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public Parameter[] getParameters(String cmdStr) {
+		return Cmd.RECYCLE_FILE.equals(cmdStr)? FILE_PARAMETERS : DIR_PARAMETERS;
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 		
-		// check the dir parameter
-		String dir;
-		try { 
-			dir = params.getString(Cmd.Q_DIR);
-		} catch (NullPointerException e) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		if ("".equals(dir)) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		dir = EngineUtils.urlDecode(dir);
+		String dir = params.getString(Cmd.Q_DIR);
 		
 		// check if the user has access to this directory
-		HttpSession session = request.getSession();
- 		String user = (String) session.getAttribute(Engine.ATTRIBUTE_USER_NAME);
-		if (!Worker.checkUserAccess(user, dir)) {
+		if (!Worker.checkUserAccess(params, dir)) {
 			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
 			return;
 		}
@@ -69,7 +68,7 @@ public class Recycle extends AbstractCommand {
 		}
 		
 		// Cmd.RECYCLE_DIRECTORY
-		String cmdStr = params.getString(Cmd.Q_COMMAND);
+		String cmdStr = params.getCommand();
 		if (Cmd.RECYCLE_DIRECTORY.equalsIgnoreCase(cmdStr)) {
 			boolean b = Worker.recycleDir(fDir);
 			if (b) EngineUtils.putStatus(builder, Response.CODE_OK);
@@ -77,18 +76,7 @@ public class Recycle extends AbstractCommand {
 			return;
 		}
 		
-		// check file_name parameter
-		String fileName;
-		try {
-			fileName = params.getString(Cmd.Q_FILE_NAME);
-		} catch (NullPointerException e) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		if ("".equals(fileName)) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
+		String fileName = params.getString(Cmd.Q_FILE_NAME);
 		
 		// Cmd.RECYCLE_FILE
 		if (Cmd.RECYCLE_FILE.equalsIgnoreCase(cmdStr)) {
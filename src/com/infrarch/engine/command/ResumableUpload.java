@@ -0,0 +1,266 @@
+package com.infrarch.engine.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+
+import com.infrarch.engine.AbstractCommand;
+import com.infrarch.engine.Command;
+import com.infrarch.engine.Engine;
+import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.Worker;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.AsyncUpload;
+import com.infrarch.engine.worker.BandwidthManager;
+import com.infrarch.engine.worker.ConfigurationManager;
+import com.infrarch.engine.worker.DigestIndex;
+import com.infrarch.engine.worker.UploadManager;
+
+/**
+ * This class supports the commands of resumable uploads: {@code Cmd.UPLOAD_INIT}
+ * starts an upload of a file of a known size, {@code Cmd.UPLOAD_CHUNK} sends
+ * a chunk of it in the request body, {@code Cmd.UPLOAD_COMMIT} publishes the
+ * file once all chunks have been received, {@code Cmd.UPLOAD_STATUS} returns
+ * the ranges received and {@code Cmd.UPLOAD_ABORT} cancels the upload.
+ * Chunks may be sent in any order and in parallel, and a chunk which failed
+ * is simply sent again. See {@link UploadManager}. Where the container
+ * supports it, the body of a chunk is read with non-blocking I/O, see
+ * {@link #startChunk(HttpServletRequest, Parameters, Runnable)}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ResumableUpload extends AbstractCommand {
+
+	private static final ResumableUpload instance = new ResumableUpload();
+
+	private static final Parameter[] INIT_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME),
+		Parameter.required(Cmd.Q_SIZE, Parameter.Type.LONG),
+		Parameter.optional(Cmd.Q_OVERWRITE, Parameter.Type.BOOLEAN, Boolean.FALSE)
+	};
+
+	private static final Parameter[] CHUNK_PARAMETERS = {
+		Parameter.required(Cmd.Q_UPLOAD),
+		Parameter.required(Cmd.Q_OFFSET, Parameter.Type.LONG),
+		Parameter.optional(Cmd.Q_LENGTH, Parameter.Type.LONG, Long.valueOf(-1))
+	};
+
+	private static final Parameter[] SESSION_PARAMETERS = {
+		Parameter.required(Cmd.Q_UPLOAD)
+	};
+
+	public static Command getInstance() {
+		return instance;
+	}
+
+	@Override
+	public String[] getSupportedCommands() {
+		return new String[] { Cmd.UPLOAD_INIT, Cmd.UPLOAD_CHUNK, Cmd.UPLOAD_COMMIT, Cmd.UPLOAD_STATUS, Cmd.UPLOAD_ABORT };
+	}
+
+	@Override
+	public Parameter[] getParameters(String cmdStr) {
+		if (Cmd.UPLOAD_INIT.equalsIgnoreCase(cmdStr)) return INIT_PARAMETERS;
+		if (Cmd.UPLOAD_CHUNK.equalsIgnoreCase(cmdStr)) return CHUNK_PARAMETERS;
+		return SESSION_PARAMETERS;
+	}
+
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
+		String cmdStr = params.getCommand();
+		if (Cmd.UPLOAD_INIT.equalsIgnoreCase(cmdStr)) {
+			init(params, builder);
+			return;
+		}
+
+		// the other commands refer to an upload of the user
+		UploadManager manager = UploadManager.getInstance();
+		UploadManager.Session s = manager.get(params.getString(Cmd.Q_UPLOAD), params.getUser());
+		if (s == null) {
+			EngineUtils.putStatus(builder, Response.CODE_NO_SUCH_UPLOAD);
+			return;
+		}
+
+		// Cmd.UPLOAD_CHUNK
+		if (Cmd.UPLOAD_CHUNK.equalsIgnoreCase(cmdStr)) {
+			
+			// a chunk received by startChunk is only reported
+			Object result = request.getAttribute(AsyncUpload.ATTRIBUTE_RESULT);
+			if (result instanceof IOException) {
+				logger.error("Error receiving chunk of upload " + s.getId(), (IOException) result);
+				EngineUtils.putStatus(builder, Response.CODE_ERROR);
+				return;
+			}
+			if (result == null) {
+				int code = checkChunk(request, params, s);
+				if (code != Response.CODE_OK) {
+					EngineUtils.putStatus(builder, code);
+					return;
+				}
+				try {
+					if (!manager.write(s, params.getLong(Cmd.Q_OFFSET, 0), getChunkLength(request, params), Worker.getUploadStream(request))) {
+						EngineUtils.putStatus(builder, Response.CODE_NO_SUCH_UPLOAD);
+						return;
+					}
+				} catch (IOException e) {
+					logger.error("Error receiving chunk of upload " + s.getId(), e);
+					EngineUtils.putStatus(builder, Response.CODE_ERROR);
+					return;
+				}
+			}
+			builder.add(Field.UPLOAD_RECEIVED, s.getReceived());
+		}
+
+		// Cmd.UPLOAD_STATUS
+		else if (Cmd.UPLOAD_STATUS.equalsIgnoreCase(cmdStr)) {
+			JsonArrayBuilder ranges = Json.createArrayBuilder();
+			for (long[] r: s.getRanges()) ranges.add(Json.createArrayBuilder().add(r[0]).add(r[1]));
+			builder.add(Field.FILE_NAME, s.getFileName());
+			builder.add(Field.UPLOAD_SIZE, s.getSize());
+			builder.add(Field.UPLOAD_RECEIVED, s.getReceived());
+			builder.add(Field.UPLOAD_RANGES, ranges);
+		}
+
+		// Cmd.UPLOAD_COMMIT
+		else if (Cmd.UPLOAD_COMMIT.equalsIgnoreCase(cmdStr)) {
+
+			// the user may have lost access to the directory meanwhile
+			if (!Worker.checkUserAccess(params, s.getDir())) {
+				EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
+				return;
+			}
+			File f;
+			try {
+				f = manager.commit(s);
+			} catch (IOException e) {
+				logger.error("Error committing upload " + s.getId(), e);
+				EngineUtils.putStatus(builder, Response.CODE_ERROR);
+				return;
+			}
+			if (f == null) {
+				EngineUtils.putStatus(builder, Response.CODE_UPLOAD_INCOMPLETE);
+				return;
+			}
+			Worker.changed(f.getParentFile());
+			builder.add(Field.FILE_NAME, f.getName());
+			String hash = DigestIndex.getInstance().get(f);
+			if (hash != null) builder.add(Field.SHA256, hash);
+		}
+
+		// Cmd.UPLOAD_ABORT
+		else if (Cmd.UPLOAD_ABORT.equalsIgnoreCase(cmdStr)) {
+			if (!manager.abort(s)) {
+				EngineUtils.putStatus(builder, Response.CODE_ERROR);
+				return;
+			}
+		}
+
+		else {
+			EngineUtils.putStatus(builder, Response.CODE_UNRECOGNIZED_COMMAND);
+			return;
+		}
+
+		EngineUtils.putStatus(builder, Response.CODE_OK);
+	}
+
+	/**
+	 * Starts receiving the body of a {@code Cmd.UPLOAD_CHUNK} request with
+	 * non-blocking reads (see {@link AsyncUpload}), if the request is valid
+	 * and supports asynchronous mode. Once the chunk has been received,
+	 * {@code done} is called to execute the command as usual, which then
+	 * reports the chunk instead of reading it.
+	 *
+	 * @param request the HTTP request
+	 * @param params the request's parameters
+	 * @param done called to answer the request and complete it
+	 * @return the asynchronous context of the request or <code>null</code>,
+	 * 		if the command is to be executed as usual
+	 */
+	public static AsyncContext startChunk(HttpServletRequest request, Parameters params, Runnable done) {
+		if (!request.isAsyncSupported() || params.bind(CHUNK_PARAMETERS) != Response.CODE_OK) return null;
+		UploadManager manager = UploadManager.getInstance();
+		UploadManager.Session s = manager.get(params.getString(Cmd.Q_UPLOAD), params.getUser());
+		if (s == null || checkChunk(request, params, s) != Response.CODE_OK) return null;
+		try {
+			UploadManager.Chunk chunk = manager.openChunk(s, params.getLong(Cmd.Q_OFFSET, 0), getChunkLength(request, params));
+			if (chunk == null) return null;
+			BandwidthManager.Transfer transfer = (BandwidthManager.Transfer) request.getAttribute(Engine.ATTRIBUTE_TRANSFER);
+			return AsyncUpload.start(chunk, request, transfer != null && transfer.isLimited()? transfer : null, done);
+		} catch (IOException e) {
+			// reported when the command is executed as usual
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the length of a chunk: the {@code Cmd.Q_LENGTH} parameter or
+	 * the length of the request body.
+	 *
+	 * @return the length or -1, if unknown
+	 */
+	private static long getChunkLength(HttpServletRequest request, Parameters params) {
+		long length = params.getLong(Cmd.Q_LENGTH, -1);
+		return length < 0? request.getContentLengthLong() : length;
+	}
+
+	/**
+	 * Checks the offset and the length of a chunk.
+	 *
+	 * @return the status code
+	 */
+	private static int checkChunk(HttpServletRequest request, Parameters params, UploadManager.Session s) {
+		long offset = params.getLong(Cmd.Q_OFFSET, 0);
+		long length = getChunkLength(request, params);
+		if (length < 0) return Response.CODE_MISSING_PARAMETER;
+		if (offset < 0 || length > ConfigurationManager.getInstance().getUploadChunkMax() || offset + length > s.getSize()) {
+			return Response.CODE_WRONG_PARAMETER;
+		}
+		return Response.CODE_OK;
+	}
+
+	/**
+	 * Starts an upload.
+	 */
+	private void init(Parameters params, JsonObjectBuilder builder) throws IOException {
+		String dir = params.getString(Cmd.Q_DIR);
+		String fileName = params.getString(Cmd.Q_FILE_NAME);
+		long size = params.getLong(Cmd.Q_SIZE, -1);
+
+		// check if the user has access to this directory
+		if (!Worker.checkUserAccess(params, dir)) {
+			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
+			return;
+		}
+
+		// construct a File for the directory
+		File fDir = new File(Worker.getDocRoot(), dir);
+		if (!fDir.isDirectory()) {
+			EngineUtils.putStatus(builder, Response.CODE_NO_SUCH_DIR);
+			return;
+		}
+
+		// the file must be in the directory and not too large
+		long max = ConfigurationManager.getInstance().getMaxUploadSize();
+		if (fileName.contains("/") || fileName.contains("\\") || fileName.equals(".") || fileName.equals("..")
+				|| Worker.isSystemFile(new File(fDir, fileName)) || size < 0 || (max >= 0 && size > max)) {
+			EngineUtils.putStatus(builder, Response.CODE_WRONG_PARAMETER);
+			return;
+		}
+
+		UploadManager.Session s = UploadManager.getInstance().open(params.getUser(), dir, fileName, size, params.getBoolean(Cmd.Q_OVERWRITE));
+		builder.add(Field.UPLOAD, s.getId());
+		builder.add(Field.UPLOAD_CHUNK_MAX, ConfigurationManager.getInstance().getUploadChunkMax());
+		EngineUtils.putStatus(builder, Response.CODE_OK);
+	}
+}
@@ -6,7 +6,6 @@ import java.util.Date;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
 
@@ -15,14 +14,19 @@ import com.infrarch.engine.Command;
 import com.infrarch.engine.CommandManager;
 import com.infrarch.engine.Engine;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
 import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.ConfigurationManager;
 
 /**
  * {@code Cmd.SERVER_INFO}, {@code Cmd.SETTINGS_GET}, {@code Cmd.SETTINGS_SET},
- * {@code Cmd.LIST_SETTINGS}.
+ * {@code Cmd.LIST_SETTINGS}. Secret settings (see 
+ * {@code ConfigurationManager.isSecret}) are not returned, and only 
+ * {@code admin} can set them.
  * 
  * @author Assen Antov
  * @version 1.0, 07/2016
@@ -45,6 +49,15 @@ public class Settings extends AbstractCommand {
 	
 	private static final Settings instance = new Settings();
 	
+	private static final Parameter[] GET_PARAMETERS = {
+		Parameter.required(Cmd.Q_PROPERTY)
+	};
+	
+	private static final Parameter[] SET_PARAMETERS = {
+		Parameter.required(Cmd.Q_PROPERTY),
+		Parameter.required(Cmd.Q_VALUE)
+	};
+	
 	private String hostName = null, serverIP = null;
 	
 	private Settings() {
@@ -65,10 +78,17 @@ public class Settings extends AbstractCommand {
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public Parameter[] getParameters(String cmdStr) {
+		if (Cmd.SETTINGS_GET.equals(cmdStr)) return GET_PARAMETERS;
+		if (Cmd.SETTINGS_SET.equals(cmdStr)) return SET_PARAMETERS;
+		return Parameter.NONE;
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 
 		// Cmd.SERVER_INFO
-		String cmdStr = params.getString(Cmd.Q_COMMAND);
+		String cmdStr = params.getCommand();
 		if (Cmd.SERVER_INFO.equalsIgnoreCase(cmdStr)) {
 			
 			JsonArrayBuilder cmds = Json.createArrayBuilder();
@@ -94,6 +114,7 @@ public class Settings extends AbstractCommand {
 		else if (Cmd.LIST_SETTINGS.equalsIgnoreCase(cmdStr)) {
 			String[] keys = Worker.getConfigKeys();
 			for (String key: keys) {
+				if (ConfigurationManager.isSecret(key)) continue;
 				builder.add(key, Worker.getConfigProperty(key));
 			}
 		}
@@ -101,19 +122,11 @@ public class Settings extends AbstractCommand {
 		// Cmd.SETTINGS_GET
 		else if (Cmd.SETTINGS_GET.equalsIgnoreCase(cmdStr)) {
 			
-			// get the property name 
-			String property;
-			try { 
-				property = params.getString(Cmd.Q_PROPERTY);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(property)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
+			String property = params.getString(Cmd.Q_PROPERTY);
+			if (ConfigurationManager.isSecret(property)) {
+				EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
 				return;
 			}
-			property = EngineUtils.urlDecode(property);
 			
 			// get the property value
 			String value = Worker.getConfigProperty(property);
@@ -125,33 +138,14 @@ public class Settings extends AbstractCommand {
 		// Cmd.SETTINGS_SET
 		else if (Cmd.SETTINGS_SET.equalsIgnoreCase(cmdStr)) {
 			
-			// get the property name 
-			String property;
-			try { 
-				property = params.getString(Cmd.Q_PROPERTY);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(property)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			property = EngineUtils.urlDecode(property);
-				
-			// get the property value
-			String value;
-			try { 
-				value = params.getString(Cmd.Q_VALUE);
-			} catch (NullPointerException e) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-				return;
-			}
-			if ("".equals(value)) {
-				EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
+			String property = params.getString(Cmd.Q_PROPERTY);
+			String value = params.getString(Cmd.Q_VALUE);
+			
+			// with the signing keys tokens can be made for any user
+			if (ConfigurationManager.isSecret(property) && !"admin".equals(params.getUser())) {
+				EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
 				return;
 			}
-			value = EngineUtils.urlDecode(value);
 			
 			// set the property value
 			Worker.setConfigProperty(property, value);
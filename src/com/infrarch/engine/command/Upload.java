@@ -2,23 +2,31 @@ package com.infrarch.engine.command;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Locale;
 
-import javax.json.JsonObject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
+import com.infrarch.engine.worker.BlobStore;
+import com.infrarch.engine.worker.DigestIndex;
 import com.infrarch.engine.worker.ExtendedMultipartRequest;
 import com.infrarch.engine.AbstractCommand;
 import com.infrarch.engine.Command;
-import com.infrarch.engine.Engine;
 import com.infrarch.engine.EngineUtils;
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
 import com.infrarch.engine.Worker;
 import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Field;
 import com.infrarch.engine.constants.Response;
 
 /**
- * {@code Cmd.UPLOAD}
+ * This class supports two commands: {@code Cmd.UPLOAD} receives the files 
+ * of a multipart request, and {@code Cmd.UPLOAD_CHECK} creates a file 
+ * from a content already stored in the {@link BlobStore}, given its hash, 
+ * so that the client need not upload it. 
  * 
  * @author Assen Antov
  * @version 1.0, 07/2016
@@ -27,37 +35,39 @@ public class Upload extends AbstractCommand {
 
 	private static final Upload instance = new Upload();
 	
+	private static final Parameter[] PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR)
+	};
+	
+	private static final Parameter[] CHECK_PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR),
+		Parameter.required(Cmd.Q_FILE_NAME),
+		Parameter.required(Cmd.Q_SHA256),
+		Parameter.optional(Cmd.Q_OVERWRITE, Parameter.Type.BOOLEAN, Boolean.FALSE)
+	};
+	
 	public static Command getInstance() {
 		return instance;
 	}
 	
 	@Override
 	public String[] getSupportedCommands() {
-		return new String[] { Cmd.UPLOAD };
+		return new String[] { Cmd.UPLOAD, Cmd.UPLOAD_CHECK };
 				
 	}
 	
 	@Override
-	public void execute(HttpServletRequest request, JsonObject params, JsonObjectBuilder builder) throws Throwable {
+	public Parameter[] getParameters(String cmdStr) {
+		return Cmd.UPLOAD_CHECK.equalsIgnoreCase(cmdStr)? CHECK_PARAMETERS : PARAMETERS;
+	}
+	
+	@Override
+	public void execute(HttpServletRequest request, Parameters params, JsonObjectBuilder builder) throws Throwable {
 		
-		// get the dir parameter
-		String dir;
-		try {
-			dir = params.getString(Cmd.Q_DIR);
-		} catch (NullPointerException e) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		if ("".equals(dir)) {
-			EngineUtils.putStatus(builder, Response.CODE_MISSING_PARAMETER);
-			return;
-		}
-		dir = EngineUtils.urlDecode(dir);
+		String dir = params.getString(Cmd.Q_DIR);
 		
 		// check if the user has access to this directory
-		HttpSession session = request.getSession();
-		String user = (String) session.getAttribute(Engine.ATTRIBUTE_USER_NAME);
-		if (!Worker.checkUserAccess(user, dir)) {
+		if (!Worker.checkUserAccess(params, dir)) {
 			EngineUtils.putStatus(builder, Response.CODE_NO_ACCESS);
 			return;
 		}
@@ -70,8 +80,13 @@ public class Upload extends AbstractCommand {
 			return;
 		}
 		
+		// Cmd.UPLOAD_CHECK
+		if (Cmd.UPLOAD_CHECK.equalsIgnoreCase(params.getCommand())) {
+			check(params, f, builder);
+			return;
+		}
+		
 		// upload
-		@SuppressWarnings("unused")
 		ExtendedMultipartRequest multi = null;
 		try {
 			multi = Worker.getMultipartRequest(request, f.getAbsolutePath(), false);
@@ -81,6 +96,42 @@ public class Upload extends AbstractCommand {
 			return;
 		}
 		
+		// report the files received, with their hashes to verify the transfer
+		JsonArrayBuilder files = Json.createArrayBuilder();
+		for (File file: multi.getFiles()) {
+			JsonObjectBuilder o = Json.createObjectBuilder()
+				.add(Field.FILE_NAME, file.getName())
+				.add(Field.SIZE, file.length());
+			String hash = multi.getSha256(file);
+			if (hash != null) o.add(Field.SHA256, hash);
+			files.add(o);
+		}
+		builder.add(Field.FILES, files);
+		
+		EngineUtils.putStatus(builder, Response.CODE_OK);
+	}
+	
+	/**
+	 * Creates the file, if its content is stored.
+	 */
+	private void check(Parameters params, File dir, JsonObjectBuilder builder) throws IOException {
+		String fileName = params.getString(Cmd.Q_FILE_NAME);
+		if (fileName.contains("/") || fileName.contains("\\") || fileName.equals(".") || fileName.equals("..") 
+				|| Worker.isSystemFile(new File(dir, fileName))) {
+			EngineUtils.putStatus(builder, Response.CODE_WRONG_PARAMETER);
+			return;
+		}
+		
+		BlobStore blobs = BlobStore.getInstance();
+		String hash = params.getString(Cmd.Q_SHA256);
+		File file = blobs.isEnabled()? blobs.link(hash, new File(dir, fileName), params.getBoolean(Cmd.Q_OVERWRITE)) : null;
+		builder.add(Field.FOUND, file != null);
+		if (file != null) {
+			Worker.changed(dir);
+			DigestIndex.getInstance().put(file, hash.toLowerCase(Locale.ROOT));
+			builder.add(Field.FILE_NAME, file.getName());
+			logger.debug("Upload of " + file.getAbsolutePath() + " skipped, content stored");
+		}
 		EngineUtils.putStatus(builder, Response.CODE_OK);
 	}
 }
@@ -0,0 +1,78 @@
+package com.infrarch.engine.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.infrarch.engine.Parameter;
+import com.infrarch.engine.Parameters;
+import com.infrarch.engine.Worker;
+import com.infrarch.engine.constants.Cmd;
+import com.infrarch.engine.constants.Response;
+import com.infrarch.engine.worker.WatchStream;
+
+/**
+ * {@code Cmd.WATCH_DIR} is executed by the {@link com.infrarch.engine.Engine}
+ * directly, as it keeps the connection open and streams the changes in
+ * a directory to the client as server-sent events (see {@link WatchStream}).
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class WatchDir {
+
+	private static final Parameter[] PARAMETERS = {
+		Parameter.required(Cmd.Q_DIR)
+	};
+
+	/**
+	 * Starts streaming the changes in a directory to the client.
+	 *
+	 * @return {@code Response.CODE_OK}, if the stream has been started,
+	 * 			or the code of the error to return to the client otherwise
+	 */
+	public static int watch(Parameters params, HttpServletRequest request, HttpServletResponse response, Logger logger) {
+
+		// check the dir parameter
+		int code = params.bind(PARAMETERS);
+		if (code != Response.CODE_OK) return code;
+		String dir = params.getString(Cmd.Q_DIR);
+
+		// check if the user has access to this directory
+		String user = params.getUser();
+		if (!Worker.checkUserAccess(params, dir)) {
+			logger.info("User " + user + " has no access to directory: " + dir);
+			return Response.CODE_NO_ACCESS;
+		}
+
+		// construct a File for the directory
+		File fDir = new File(Worker.getDocRoot(), dir);
+		if (!fDir.isDirectory()) {
+			logger.info("No such directory: " + dir);
+			return Response.CODE_NO_SUCH_DIR;
+		}
+
+		// the stream needs non-blocking I/O
+		if (!request.isAsyncSupported()) {
+			logger.error("Asynchronous processing not supported; cannot watch directory: " + dir);
+			return Response.CODE_UNSUPPORTED_COMMAND;
+		}
+
+		try {
+			if (!WatchStream.start(fDir, request, response)) {
+				logger.warn("Too many watched directories; cannot watch directory: " + dir);
+				return Response.CODE_TOO_MANY_REQUESTS;
+			}
+		} catch (IOException e) {
+			logger.error("Could not watch directory: " + fDir.getAbsolutePath(), e);
+			return Response.CODE_ERROR;
+		}
+
+		logger.debug("Watching directory: " + fDir.getAbsolutePath());
+		return Response.CODE_OK;
+	}
+}
@@ -14,6 +14,16 @@ public interface Cmd {
 	public static final String Q_SRC_DIR = "src_dir";
 	public static final String Q_DEST_DIR = "dest_dir";
 	public static final String Q_OVERWRITE = "overwrite";
+	public static final String Q_FORMAT = "format";
+	public static final String Q_TOKEN = "token";
+	public static final String Q_BEARER = "bearer";
+	public static final String Q_FILES = "files";
+	public static final String Q_ARCHIVE = "archive";
+	public static final String Q_UPLOAD = "upload";
+	public static final String Q_SIZE = "size";
+	public static final String Q_OFFSET = "offset";
+	public static final String Q_LENGTH = "length";
+	public static final String Q_SHA256 = "sha256";
 	
 	// commands
 	public static final String LIST_CONTENTS = "list_contents";
@@ -40,4 +50,15 @@ public interface Cmd {
 	public static final String EDIT_USER = "edit_user";
 	public static final String COPY_FILE = "copy_file";
 	public static final String MOVE_FILE = "move_file";
+	public static final String BATCH = "batch";
+	public static final String METRICS = "metrics";
+	public static final String WATCH_DIR = "watch_dir";
+	public static final String DOWNLOAD_DIR = "download_dir";
+	public static final String DOWNLOAD_MANY = "download_many";
+	public static final String UPLOAD_INIT = "upload_init";
+	public static final String UPLOAD_CHUNK = "upload_chunk";
+	public static final String UPLOAD_COMMIT = "upload_commit";
+	public static final String UPLOAD_STATUS = "upload_status";
+	public static final String UPLOAD_ABORT = "upload_abort";
+	public static final String UPLOAD_CHECK = "upload_check";
 }
\ No newline at end of file
@@ -15,4 +15,17 @@ public interface Field {
 	public static final String PROPERTY = "property";
 	public static final String VALUE = "value";
 	public static final String USERS = "users";
+	public static final String RESULTS = "results";
+	public static final String METRICS = "metrics";
+	public static final String TOKEN = "token";
+	public static final String TOKEN_EXPIRES = "tokenExpires";
+	public static final String UPLOAD = "upload";
+	public static final String UPLOAD_SIZE = "size";
+	public static final String UPLOAD_RECEIVED = "received";
+	public static final String UPLOAD_RANGES = "ranges";
+	public static final String UPLOAD_CHUNK_MAX = "chunkMax";
+	public static final String FILE_NAME = "fileName";
+	public static final String FOUND = "found";
+	public static final String SIZE = "size";
+	public static final String SHA256 = "sha256";
 }
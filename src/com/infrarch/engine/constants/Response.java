@@ -8,6 +8,7 @@ public interface Response {
 	public static final String MSG_INCORRECT_LOGIN = "Incorrect user name or password";
 	public static final String MSG_NO_ACCESS = "No access";
 	public static final String MSG_NO_SUCH_USER = "No such user";
+	public static final String MSG_TOO_MANY_REQUESTS = "Too many requests";
 	public static final String MSG_NO_COMMAND = "No command";
 	public static final String MSG_UNRECOGNIZED_COMMAND = "Unrecognized command";
 	public static final String MSG_UNSUPPORTED_COMMAND = "Unsupported command";
@@ -15,6 +16,8 @@ public interface Response {
 	public static final String MSG_WRONG_PARAMETER = "Wrong parameter"; 
 	public static final String MSG_NO_SUCH_FILE = "No such file";
 	public static final String MSG_NO_SUCH_DIR = "No such directory";
+	public static final String MSG_NO_SUCH_UPLOAD = "No such upload";
+	public static final String MSG_UPLOAD_INCOMPLETE = "Upload incomplete";
 	
 	public static final int CODE_OK = 0;
 	public static final int CODE_ERROR = 13;
@@ -22,6 +25,7 @@ public interface Response {
 	public static final int CODE_INCORRECT_LOGIN = 101;
 	public static final int CODE_NO_ACCESS = 102;
 	public static final int CODE_NO_SUCH_USER = 103;
+	public static final int CODE_TOO_MANY_REQUESTS = 104;
 	public static final int CODE_NO_COMMAND = 200;
 	public static final int CODE_UNRECOGNIZED_COMMAND = 201; 
 	public static final int CODE_UNSUPPORTED_COMMAND = 202;
@@ -29,4 +33,6 @@ public interface Response {
 	public static final int CODE_WRONG_PARAMETER = 211;
 	public static final int CODE_NO_SUCH_FILE = 300;
 	public static final int CODE_NO_SUCH_DIR = 301;
+	public static final int CODE_NO_SUCH_UPLOAD = 302;
+	public static final int CODE_UPLOAD_INCOMPLETE = 303;
 }
@@ -0,0 +1,285 @@
+package com.infrarch.engine.worker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The access log of the engine. Request threads put one fixed-shape record
+ * per request (time, user, IP address, command, result code, bytes sent and
+ * processing time) into a bounded ring buffer and return; a background
+ * thread takes the records in batches and appends them to {@code access.log}
+ * in the configuration directory, one tab-separated line per record.
+ * <p>
+ * The ring buffer does not lock. Each slot carries a sequence number which
+ * tells whether it is free for the producer claiming it or full for the
+ * writer; the records of the slots are allocated once. When the buffer is
+ * full, records are dropped and counted or, if configured, the request
+ * thread waits for the writer.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class AccessLog {
+
+	private static final Logger logger = Logger.getLogger(AccessLog.class);
+
+	public static final String FILE_NAME = "access.log";
+
+	/**
+	 * Drop records, when the buffer is full.
+	 */
+	public static final String POLICY_DROP = "drop";
+
+	/**
+	 * Wait for the writer, when the buffer is full.
+	 */
+	public static final String POLICY_BLOCK = "block";
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private static AccessLog instance = null;
+
+	/**
+	 * A preallocated record of a slot.
+	 */
+	private static final class Record {
+		long time;
+		String user;
+		String ip;
+		String command;
+		int code;
+		long bytes;
+		long nanos;
+	}
+
+	private final Record[] records;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final boolean block;
+	private final File file;
+	private final long maxFileSize;
+
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private long head = 0;	// read by the writer thread only
+
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private AccessLog(File file, int capacity, boolean block, long maxFileSize) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.records = new Record[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			records[i] = new Record();
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.block = block;
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Engine Access Log");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Returns the access log, starting it on first use with the settings
+	 * of the {@link ConfigurationManager}.
+	 *
+	 * @return the access log
+	 */
+	public static synchronized AccessLog getInstance() {
+		if (instance == null) {
+			ConfigurationManager config = ConfigurationManager.getInstance();
+			instance = new AccessLog(
+					new File(config.getConfigRoot(), FILE_NAME),
+					config.getAccessLogBufferSize(),
+					POLICY_BLOCK.equalsIgnoreCase(config.getAccessLogPolicy()),
+					config.getAccessLogMaxFileSize());
+			instance.thread.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the writer at server shutdown, after it has written all records
+	 * put so far.
+	 */
+	public static synchronized void destroyInstance() {
+		if (instance != null) {
+			instance.running = false;
+			LockSupport.unpark(instance.thread);
+			try {
+				instance.thread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			instance = null;
+		}
+	}
+
+	/**
+	 * Puts a record in the log. Never blocks with the drop policy.
+	 *
+	 * @param user session user name
+	 * @param ip client's IP address
+	 * @param command command name
+	 * @param code result code
+	 * @param bytes number of bytes sent to the client
+	 * @param nanos processing time in nanoseconds
+	 * @return <code>false</code>, if the record was dropped
+	 */
+	public boolean log(String user, String ip, String command, int code, long bytes, long nanos) {
+		long pos;
+		while (true) {
+			pos = tail.get();
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) break;
+			}
+			else if (seq < pos) {
+				// full
+				if (!block || !running) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+		}
+
+		int i = (int) pos & mask;
+		Record r = records[i];
+		r.time = System.currentTimeMillis();
+		r.user = user;
+		r.ip = ip;
+		r.command = command;
+		r.code = code;
+		r.bytes = bytes;
+		r.nanos = nanos;
+		sequences.set(i, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 *
+	 * @return dropped records
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * The writer loop: writes all available records, flushes when there are
+	 * none and waits for more.
+	 */
+	private void write() {
+		Writer out = null;
+		long size = 0;
+		long reportedDropped = 0;
+		StringBuilder line = new StringBuilder(256);
+		try {
+			out = open();
+			size = file.length();
+			while (true) {
+				boolean wasRunning = running;
+				int n = 0;
+				while (true) {
+					int i = (int) head & mask;
+					if (sequences.get(i) != head + 1) break;
+					Record r = records[i];
+					format(r, line);
+					r.user = r.ip = r.command = null;
+					sequences.set(i, head + records.length);
+					head++;
+					n++;
+
+					out.append(line);
+					size += line.length();
+					if (size >= maxFileSize) {
+						out.close();
+						out = null;
+						roll();
+						out = open();
+						size = 0;
+					}
+				}
+
+				if (n == 0) {
+					long d = dropped.get();
+					if (d != reportedDropped) {
+						logger.warn("Access log buffer full; dropped " + (d - reportedDropped) + " records");
+						reportedDropped = d;
+					}
+					out.flush();
+					if (!wasRunning) break;
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Could not write access log: " + file.getAbsolutePath(), e);
+			running = false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private Writer open() throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64*1024);
+	}
+
+	/**
+	 * Keeps a single previous log file.
+	 */
+	private void roll() {
+		File backup = new File(file.getPath() + ".1");
+		if (backup.exists() && !backup.delete()) logger.warn("Could not delete: " + backup.getAbsolutePath());
+		if (!file.renameTo(backup)) logger.warn("Could not roll over: " + file.getAbsolutePath());
+	}
+
+	private static void format(Record r, StringBuilder sb) {
+		sb.setLength(0);
+		sb.append(r.time).append('\t');
+		appendField(r.user, sb);
+		appendField(r.ip, sb);
+		appendField(r.command, sb);
+		sb.append(r.code).append('\t')
+			.append(r.bytes).append('\t')
+			.append(TimeUnit.NANOSECONDS.toMicros(r.nanos)).append('\n');
+	}
+
+	/**
+	 * Appends a client supplied value so that it cannot break the line.
+	 */
+	private static void appendField(String s, StringBuilder sb) {
+		if (s == null || s.isEmpty()) sb.append('-');
+		else for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			sb.append(c < ' '? ' ' : c);
+		}
+		sb.append('\t');
+	}
+}
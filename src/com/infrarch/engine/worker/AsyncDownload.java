@@ -0,0 +1,208 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streams a file to the client using non-blocking servlet I/O. The
+ * request is put in asynchronous mode and the container thread is released;
+ * data is then read from the file and written only when the container
+ * reports that the connection can take more, so slow clients do not hold
+ * a thread for the duration of the transfer. A transfer ahead of the 
+ * bandwidth allotted to it by the {@link BandwidthManager} is paused without 
+ * holding a thread either.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class AsyncDownload implements WriteListener, AsyncListener {
+
+	private static final Logger logger = Logger.getLogger(AsyncDownload.class);
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final File file;
+	private final AsyncContext context;
+	private final ServletOutputStream out;
+	private final DownloadContent content;
+	private final FileChannel channel;
+	private final Iterator<DownloadContent.Part> parts;
+	private final BandwidthManager.Transfer transfer;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer bb = ByteBuffer.wrap(buffer);
+	private DownloadContent.Part part = null;
+	private long position;
+	private long remaining;
+	private boolean closed = false;
+
+	private AsyncDownload(DownloadContent content, FileChannel channel, AsyncContext context, 
+			BandwidthManager.Transfer transfer) throws IOException {
+		this.content = content;
+		this.file = content.getFile();
+		this.transfer = transfer;
+		this.parts = content.getParts().iterator();
+		this.channel = channel;
+		this.context = context;
+		this.out = context.getResponse().getOutputStream();
+	}
+
+	/**
+	 * Starts an asynchronous transfer of a download's body. The response 
+	 * headers must have been set before calling this method. The method 
+	 * returns immediately.
+	 *
+	 * @param content the body to transfer
+	 * @param request the HTTP request; must support asynchronous mode
+	 * @param transfer the transfer to pace the data to or <code>null</code>
+	 * @throws IOException if the file could not be opened
+	 */
+	public static void start(DownloadContent content, HttpServletRequest request, 
+			BandwidthManager.Transfer transfer) throws IOException {
+		FileChannel channel = content.hasData()? null : FileChannel.open(content.getFile().toPath(), StandardOpenOption.READ);
+		AsyncContext context = request.startAsync();
+		context.setTimeout(0);	// transfers can take any time; stalled connections are closed by the container
+		AsyncDownload download;
+		try {
+			download = new AsyncDownload(content, channel, context, transfer);
+		} catch (IOException e) {
+			if (channel != null) channel.close();
+			context.complete();
+			throw e;
+		}
+		context.addListener(download);
+		download.out.setWriteListener(download);
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		while (out.isReady()) {
+			
+			// start the next part with its headers
+			if (part == null || remaining <= 0) {
+				if (!parts.hasNext()) {
+					logger.debug("Completed download of file: " + file.getAbsolutePath());
+					finish();
+					return;
+				}
+				part = parts.next();
+				position = part.getPosition();
+				remaining = part.getLength();
+				if (part.getHeader().length > 0) {
+					out.write(part.getHeader());
+					continue;
+				}
+			}
+			
+			bb.clear();
+			if (remaining < bb.capacity()) bb.limit((int) remaining);
+			int n = content.read(channel, bb, position);
+			if (n < 0) {
+				logger.error("File truncated during download: " + file.getAbsolutePath());
+				finish();
+				return;
+			}
+			out.write(buffer, 0, n);
+			position += n;
+			remaining -= n;
+			
+			// pause, if the transfer is ahead of its bandwidth
+			if (transfer != null) {
+				long wait = transfer.acquire(n);
+				if (wait > 0) {
+					pause(wait);
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Resumes writing after a delay. The container does not call 
+	 * {@link #onWritePossible()} again, as the stream is still ready, so
+	 * it is called on a container thread by the scheduler.
+	 */
+	private void pause(long nanos) {
+		try {
+			ExecutionManager.getInstance().getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						context.start(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									onWritePossible();
+								} catch (IOException e) {
+									onError(e);
+								}
+							}
+						});
+					} catch (IllegalStateException e) {
+						// the request has completed meanwhile
+						close();
+					}
+				}
+			}, nanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			finish();
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		logger.error("Error downloading file: " + file.getAbsolutePath(), t);
+		finish();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		logger.warn("Download timed out: " + file.getAbsolutePath());
+		finish();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {}
+
+	private synchronized void finish() {
+		if (closed) return;
+		close();
+		context.complete();
+	}
+
+	private synchronized void close() {
+		if (closed) return;
+		closed = true;
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Could not close file: " + file.getAbsolutePath(), e);
+		}
+	}
+}
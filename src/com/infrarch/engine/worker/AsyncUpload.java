@@ -0,0 +1,204 @@
+package com.infrarch.engine.worker;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receives the body of a request into a chunk of a resumable upload using
+ * non-blocking servlet I/O, the counterpart of {@link AsyncDownload}. The
+ * request is put in asynchronous mode and the container thread is released;
+ * data is then read only when the container reports that some has arrived,
+ * so slow clients do not hold a thread for the duration of the transfer.
+ * A transfer ahead of the bandwidth allotted to it by the
+ * {@link BandwidthManager} is paused without holding a thread either.
+ * <p>
+ * When the body has been received, or reading it has failed, the outcome
+ * is put in the {@link #ATTRIBUTE_RESULT} attribute of the request and
+ * a callback is run to write the response and complete the request.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class AsyncUpload implements ReadListener, AsyncListener {
+
+	private static final Logger logger = Logger.getLogger(AsyncUpload.class);
+
+	/**
+	 * Request attribute holding the outcome of the upload:
+	 * <code>Boolean.TRUE</code>, if the chunk has been received whole,
+	 * or the {@code IOException} it failed with.
+	 */
+	public static final String ATTRIBUTE_RESULT = AsyncUpload.class.getName() + ".result";
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final UploadManager.Chunk chunk;
+	private final AsyncContext context;
+	private final ServletInputStream in;
+	private final BandwidthManager.Transfer transfer;
+	private final Runnable done;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private boolean ended = false;
+
+	private AsyncUpload(UploadManager.Chunk chunk, ServletInputStream in, AsyncContext context,
+			BandwidthManager.Transfer transfer, Runnable done) {
+		this.chunk = chunk;
+		this.in = in;
+		this.context = context;
+		this.transfer = transfer;
+		this.done = done;
+	}
+
+	/**
+	 * Starts receiving the body of a request into a chunk. The method
+	 * returns immediately; the chunk is ended by the upload.
+	 *
+	 * @param chunk the chunk to write to
+	 * @param request the HTTP request; must support asynchronous mode
+	 * @param transfer the transfer to pace the data to or <code>null</code>
+	 * @param done called when the body has been received or reading it
+	 * 		has failed, to answer the request and complete it
+	 * @return the asynchronous context of the request
+	 * @throws IOException if the body cannot be read; the chunk is ended
+	 */
+	public static AsyncContext start(UploadManager.Chunk chunk, HttpServletRequest request,
+			BandwidthManager.Transfer transfer, Runnable done) throws IOException {
+		ServletInputStream in;
+		try {
+			in = request.getInputStream();
+		} catch (IOException e) {
+			chunk.fail();
+			throw e;
+		}
+		AsyncContext context = request.startAsync();
+		context.setTimeout(0);	// transfers can take any time; stalled connections are closed by the container
+		AsyncUpload upload = new AsyncUpload(chunk, in, context, transfer, done);
+		context.addListener(upload);
+		in.setReadListener(upload);
+		return context;
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		while (in.isReady() && !in.isFinished()) {
+			int n = in.read(buffer);
+			if (n < 0) return;
+			chunk.write(buffer, 0, n);
+
+			// pause, if the transfer is ahead of its bandwidth
+			if (transfer != null) {
+				long wait = transfer.acquire(n);
+				if (wait > 0) {
+					pause(wait);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resumes reading after a delay. The container does not call
+	 * {@link #onDataAvailable()} again, as the stream is still ready, so
+	 * it is called on a container thread by the scheduler.
+	 */
+	private void pause(long nanos) {
+		try {
+			ExecutionManager.getInstance().getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						context.start(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									onDataAvailable();
+									if (in.isFinished()) onAllDataRead();
+								} catch (IOException e) {
+									onError(e);
+								}
+							}
+						});
+					} catch (IllegalStateException e) {
+						// the request has completed meanwhile
+						abandon();
+					}
+				}
+			}, nanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			onError(new IOException("Upload interrupted"));
+		}
+	}
+
+	@Override
+	public void onAllDataRead() {
+		if (!end()) return;
+		Object result = Boolean.TRUE;
+		try {
+			chunk.finish();
+		} catch (IOException e) {
+			result = e;
+		}
+		respond(result);
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		if (!end()) return;
+		chunk.fail();
+		respond(t instanceof IOException? t : new IOException(t));
+	}
+
+	private void respond(Object result) {
+		context.getRequest().setAttribute(ATTRIBUTE_RESULT, result);
+		done.run();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		abandon();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		logger.warn("Upload timed out");
+		abandon();
+		context.complete();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		abandon();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {}
+
+	/**
+	 * Ends the chunk of a request which has ended without a response.
+	 */
+	private void abandon() {
+		if (end()) chunk.fail();
+	}
+
+	/**
+	 * Marks the upload as ended.
+	 *
+	 * @return <code>false</code>, if it had already ended
+	 */
+	private synchronized boolean end() {
+		if (ended) return false;
+		ended = true;
+		return true;
+	}
+}
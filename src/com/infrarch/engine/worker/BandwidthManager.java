@@ -0,0 +1,308 @@
+package com.infrarch.engine.worker;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shapes the bandwidth of file transfers with a hierarchy of token buckets:
+ * a global bucket for all transfers, one for each user and one for each
+ * transfer. Before sending or after receiving a block of data, a transfer
+ * reserves its size in all three buckets and waits for as long as the
+ * slowest of them requires. Reserving takes a compare-and-set per bucket
+ * and does not lock.
+ * <p>
+ * The global rate is shared between the users with transfers in progress in
+ * proportion to their weights, set by {@code ConfigurationManager.KEY_BANDWIDTH_WEIGHTS}
+ * (1 by default). Once a second the throughput of each user is measured:
+ * users using less than their share keep what they use, and the rest is
+ * divided between the others, so no user can take the whole bandwidth and
+ * none is left idle. A user's rate is capped by
+ * {@code ConfigurationManager.KEY_BANDWIDTH_USER} and a transfer's by
+ * {@code ConfigurationManager.KEY_BANDWIDTH_TRANSFER}.
+ * <p>
+ * The limits are read from the configuration every time the periodical task
+ * runs, so changed settings take effect within a second. A limit of 0
+ * disables the respective bucket.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class BandwidthManager implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(BandwidthManager.class);
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The time for which a bucket may be ahead of its rate, which allows
+	 * bursts after a pause.
+	 */
+	private static final long BURST = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * A user using this fraction of its rate is taken to want more.
+	 */
+	private static final double SATISFIED = 0.9;
+
+	/**
+	 * The lowest rate allotted to a user, in bytes per second.
+	 */
+	private static final long MIN_RATE = 1024;
+
+	private static final BandwidthManager instance = new BandwidthManager();
+
+	private final AtomicLong globalBucket = new AtomicLong(System.nanoTime());
+	private final Map<String, Share> shares = new HashMap<String, Share>();
+
+	private volatile long globalRate = 0;
+	private volatile long userRate = 0;
+	private volatile long transferRate = 0;
+	private String weightsSource = null;
+	private Map<String, Integer> weights = Collections.emptyMap();
+	private long lastAllocation = System.nanoTime();
+
+	/**
+	 * The share of the global rate of a user with transfers in progress.
+	 */
+	private static class Share {
+
+		final AtomicLong bucket = new AtomicLong(System.nanoTime());
+		final LongAdder bytes = new LongAdder();
+		volatile long rate = 0;
+		int weight = 1;
+		int transfers = 0;
+		double demand = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * A transfer in progress. A transfer must be closed when it ends.
+	 */
+	public class Transfer {
+
+		private final String user;
+		private final Share share;
+		private final AtomicLong bucket = new AtomicLong(System.nanoTime());
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Transfer(String user, Share share) {
+			this.user = user;
+			this.share = share;
+		}
+
+		/**
+		 * Reserves bandwidth for a block of data.
+		 *
+		 * @param bytes size of the block
+		 * @return the time in nanoseconds to wait before sending the block
+		 * 		or, when receiving, before reading the next one
+		 */
+		public long acquire(int bytes) {
+			long now = System.nanoTime();
+			share.bytes.add(bytes);
+			long wait = reserve(globalBucket, globalRate, bytes, now);
+			wait = Math.max(wait, reserve(share.bucket, share.rate, bytes, now));
+			return Math.max(wait, reserve(bucket, transferRate, bytes, now));
+		}
+
+		/**
+		 * Reserves bandwidth for a block of data and blocks the calling 
+		 * thread for as long as required.
+		 *
+		 * @param bytes size of the block
+		 * @throws InterruptedIOException if the thread is interrupted
+		 */
+		public void pace(int bytes) throws InterruptedIOException {
+			long wait = acquire(bytes);
+			if (wait <= 0) return;
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Transfer interrupted");
+			}
+		}
+
+		/**
+		 * Returns whether the transfer is subject to any limit.
+		 *
+		 * @return limited or not
+		 */
+		public boolean isLimited() {
+			return globalRate > 0 || userRate > 0 || transferRate > 0;
+		}
+
+		/**
+		 * Ends the transfer. Further calls have no effect.
+		 */
+		public void close() {
+			if (closed.compareAndSet(false, true)) BandwidthManager.this.close(user, share);
+		}
+	}
+
+	private BandwidthManager() {
+		configure();
+	}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static BandwidthManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts a transfer of a user.
+	 *
+	 * @param user user name
+	 * @return the transfer
+	 */
+	public synchronized Transfer open(String user) {
+		Share s = shares.get(user);
+		if (s == null) {
+			s = new Share();
+			Integer w = weights.get(user);
+			s.weight = w == null? 1 : w;
+			shares.put(user, s);
+		}
+		s.transfers++;
+		if (s.transfers == 1) distribute();
+		return new Transfer(user, s);
+	}
+
+	private synchronized void close(String user, Share s) {
+		if (--s.transfers > 0) return;
+		shares.remove(user);
+		distribute();
+	}
+
+	/**
+	 * Reserves bytes in a bucket, which keeps the time at which it will be
+	 * empty.
+	 *
+	 * @return the time to wait in nanoseconds
+	 */
+	private static long reserve(AtomicLong bucket, long rate, int bytes, long now) {
+		if (rate <= 0) return 0;
+		long cost = bytes * SECOND / rate;
+		while (true) {
+			long t = bucket.get();
+			long start = t - now < 0? now : t;
+			if (bucket.compareAndSet(t, start + cost)) {
+				long wait = start + cost - now - BURST;
+				return wait > 0? wait : 0;
+			}
+		}
+	}
+
+	/**
+	 * Reads the limits from the configuration.
+	 */
+	private synchronized void configure() {
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		globalRate = Math.max(0, config.getLong(ConfigurationManager.KEY_BANDWIDTH_GLOBAL, 0));
+		userRate = Math.max(0, config.getLong(ConfigurationManager.KEY_BANDWIDTH_USER, 0));
+		transferRate = Math.max(0, config.getLong(ConfigurationManager.KEY_BANDWIDTH_TRANSFER, 0));
+
+		String source = config.get(ConfigurationManager.KEY_BANDWIDTH_WEIGHTS, "");
+		if (!source.equals(weightsSource)) {
+			weightsSource = source;
+			weights = parseWeights(source);
+			for (Map.Entry<String, Share> e: shares.entrySet()) {
+				Integer w = weights.get(e.getKey());
+				e.getValue().weight = w == null? 1 : w;
+			}
+		}
+	}
+
+	private static Map<String, Integer> parseWeights(String source) {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (String entry: source.split(",")) {
+			int idx = entry.lastIndexOf(':');
+			if (idx <= 0) continue;
+			try {
+				int w = Integer.parseInt(entry.substring(idx + 1).trim());
+				if (w > 0) map.put(entry.substring(0, idx).trim(), w);
+			} catch (NumberFormatException e) {
+				logger.error("Invalid bandwidth weight: " + entry);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Estimates what each user would use, from what it has used since the
+	 * last allocation, and divides the global rate anew.
+	 */
+	private synchronized void allocate() {
+		long now = System.nanoTime();
+		long period = Math.max(1, now - lastAllocation);
+		lastAllocation = now;
+
+		for (Share s: shares.values()) {
+			double used = s.bytes.sumThenReset() * (double) SECOND / period;
+			long rate = s.rate;
+			if (rate <= 0 || used >= SATISFIED * rate) s.demand = Double.POSITIVE_INFINITY;
+			else s.demand = Math.max(MIN_RATE, used / SATISFIED);
+		}
+		distribute();
+	}
+
+	/**
+	 * Divides the global rate between the users in proportion to their
+	 * weights, giving users who want less than their share what they want
+	 * and dividing the rest between the others (max-min fairness).
+	 */
+	private void distribute() {
+		long cap = userRate;
+		long global = globalRate;
+		if (global <= 0) {
+			for (Share s: shares.values()) s.rate = cap;
+			return;
+		}
+
+		double remaining = global;
+		List<Share> open = new ArrayList<Share>(shares.values());
+		boolean changed = true;
+		while (changed && !open.isEmpty()) {
+			changed = false;
+			long weightSum = 0;
+			for (Share s: open) weightSum += s.weight;
+			for (Iterator<Share> i = open.iterator(); i.hasNext(); ) {
+				Share s = i.next();
+				double want = cap > 0? Math.min(cap, s.demand) : s.demand;
+				if (want <= remaining * s.weight / weightSum) {
+					s.rate = Math.max(MIN_RATE, (long) want);
+					remaining -= want;
+					i.remove();
+					changed = true;
+				}
+			}
+		}
+
+		long weightSum = 0;
+		for (Share s: open) weightSum += s.weight;
+		for (Share s: open) s.rate = Math.max(MIN_RATE, (long) (remaining * s.weight / weightSum));
+	}
+
+	/**
+	 * Reads the limits and divides the global rate anew.
+	 */
+	@Override
+	public void runPeriodically() {
+		configure();
+		allocate();
+	}
+}
@@ -0,0 +1,268 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stores the contents of uploaded files once, however many times they are
+ * uploaded. Each content is kept as a blob named by its SHA-256 hash in the
+ * {@link #BLOBS_DIR} directory of the document root, and the files with that
+ * content are hard links to the blob, so they take no space of their own.
+ * A client which knows the hash of a file can check whether the content
+ * is here, and have the file linked instead of uploading it.
+ * <p>
+ * The store is enabled by {@code ConfigurationManager.KEY_DEDUP}. It relies
+ * on the engine never changing a file in place: uploads replace files with
+ * new ones and copies are links too. Blobs left with no other link, after
+ * their files have been deleted or replaced, are removed once an hour.
+ * Files changed in place by other means than the engine would change all
+ * the files sharing their blob.
+ * <p>
+ * The files sharing a blob are one file to the file system, so they also
+ * share its attributes: a file whose content was stored already has the
+ * modification time of the blob, that is of the first upload of the
+ * content, and not the time it was uploaded itself. The time is not
+ * changed, as that would change the files uploaded before, together with
+ * their validators and digests.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class BlobStore implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(BlobStore.class);
+	private static final BlobStore instance = new BlobStore();
+
+	public static final String BLOBS_DIR = ".blobs";
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+	private static final long SWEEP_PERIOD = TimeUnit.HOURS.toMillis(1);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private long lastSweep = System.currentTimeMillis();
+
+	private BlobStore() {}
+
+	/**
+	 * Returns the single store instance.
+	 *
+	 * @return store instance
+	 */
+	public static BlobStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Checks if uploaded contents are stored once.
+	 *
+	 * @return enabled or not
+	 */
+	public boolean isEnabled() {
+		return Boolean.parseBoolean(ConfigurationManager.getInstance().get(ConfigurationManager.KEY_DEDUP, "false"));
+	}
+
+	/**
+	 * Creates a digest of the algorithm naming the blobs.
+	 *
+	 * @return the digest
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a hash as a lower-case hexadecimal string.
+	 *
+	 * @param hash the hash
+	 * @return hexadecimal string
+	 */
+	public static String toHex(byte[] hash) {
+		char[] chars = new char[hash.length*2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[2*i] = HEX[(hash[i] >> 4) & 0xf];
+			chars[2*i + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Hashes a file.
+	 *
+	 * @param f the file
+	 * @return the hash as a hexadecimal string
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String hash(File f) throws IOException {
+		MessageDigest digest = createDigest();
+		byte[] buf = new byte[256*1024];
+		try (InputStream in = Files.newInputStream(f.toPath())) {
+			int n;
+			while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the file of a blob, which may not exist.
+	 *
+	 * @return the file or <code>null</code>, if the hash is not valid
+	 */
+	private static File getBlob(String hash) {
+		if (hash == null) return null;
+		hash = hash.toLowerCase(Locale.ROOT);
+		if (!HASH.matcher(hash).matches()) return null;
+		File dir = new File(new File(FileManager.getInstance().getDocRoot(), BLOBS_DIR), hash.substring(0, 2));
+		return new File(dir, hash);
+	}
+
+	/**
+	 * Checks if a content is stored.
+	 *
+	 * @param hash the hash of the content
+	 * @return stored or not
+	 */
+	public boolean contains(String hash) {
+		File blob = getBlob(hash);
+		return blob != null && blob.isFile();
+	}
+
+	/**
+	 * Shares the content of a received file, before it is renamed to its
+	 * name. If the content is stored, the file is replaced with a link to
+	 * its blob, which keeps the blob's modification time; otherwise the
+	 * file becomes the blob.
+	 *
+	 * @param tmp the received file
+	 * @param hash the hash of its content
+	 * @return the file to rename, which is <code>tmp</code> or another
+	 * 		temporary file in the same directory
+	 */
+	File share(File tmp, String hash) {
+		File blob = getBlob(hash);
+		if (blob == null) return tmp;
+		try {
+			Files.createDirectories(blob.getParentFile().toPath());
+			try {
+				Files.createLink(blob.toPath(), tmp.toPath());
+				return tmp;
+			} catch (FileAlreadyExistsException e) {
+				File link = createLink(blob, tmp.getParentFile());
+				if (link == null) return tmp;
+				tmp.delete();
+				return link;
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.warn("Could not store blob: " + hash, e);
+			return tmp;
+		}
+	}
+
+	/**
+	 * Creates a temporary link to a blob in a directory.
+	 *
+	 * @return the link or <code>null</code>, if the blob has been removed
+	 */
+	private static File createLink(File blob, File dir) throws IOException {
+		File link = File.createTempFile(ExtendedMultipartRequest.TEMP_PREFIX, ".tmp", dir);
+		link.delete();
+		try {
+			Files.createLink(link.toPath(), blob.toPath());
+			return link;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Links a stored content into a directory as a file, like a file
+	 * uploaded with that content.
+	 *
+	 * @param hash the hash of the content
+	 * @param target the file to create
+	 * @param overwrite replace a file of the same name or not
+	 * @return the file, which may have a numbered name, or <code>null</code>,
+	 * 		if the content is not stored
+	 * @throws IOException if the file cannot be linked
+	 */
+	public File link(String hash, File target, boolean overwrite) throws IOException {
+		File blob = getBlob(hash);
+		if (blob == null || !blob.isFile()) return null;
+		File link;
+		try {
+			link = createLink(blob, target.getParentFile());
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+		if (link == null) return null;
+		try {
+			File f = ExtendedMultipartRequest.publish(link, target, overwrite);
+			link = null;
+			return f;
+		} finally {
+			if (link != null) link.delete();
+		}
+	}
+
+	/**
+	 * Removes the blobs which have no other link.
+	 */
+	private void sweep() {
+		File dir = new File(FileManager.getInstance().getDocRoot(), BLOBS_DIR);
+		if (!dir.isDirectory()) return;
+		final int[] removed = new int[1];
+		try {
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					Object links = Files.getAttribute(path, "unix:nlink");
+					if (links instanceof Integer && (Integer) links <= 1) {
+						Files.deleteIfExists(path);
+						removed[0]++;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			logger.warn("Could not remove unused blobs", e);
+		}
+		if (removed[0] > 0) logger.info("Removed " + removed[0] + " unused blobs");
+	}
+
+	/**
+	 * Removes the unused blobs once an hour.
+	 */
+	@Override
+	public void runPeriodically() {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < SWEEP_PERIOD) return;
+		lastSweep = now;
+		sweep();
+	}
+}
@@ -0,0 +1,146 @@
+package com.infrarch.engine.worker;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.infrarch.engine.constants.Response;
+
+/**
+ * The metrics of a single command: number of executions, number of results 
+ * per response code, executions in progress and a histogram of execution 
+ * times. All methods may be called concurrently and none of them locks.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class CommandMetrics implements CommandMetricsMBean {
+
+	private final String command;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder totalMicros = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ConcurrentMap<Integer, LongAdder> codes = new ConcurrentHashMap<Integer, LongAdder>();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	CommandMetrics(String command) {
+		this.command = command;
+	}
+
+	/**
+	 * Marks the start of an execution.
+	 *
+	 * @return the start time to pass to {@link #end(long, int)}
+	 */
+	public long start() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of an execution.
+	 *
+	 * @param start the value returned by {@link #start()}
+	 * @param code the response code of the execution
+	 */
+	public void end(long start, int code) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+		inFlight.decrementAndGet();
+		count.increment();
+		totalMicros.add(micros);
+		histogram.record(micros);
+		if (code != Response.CODE_OK) errors.increment();
+
+		LongAdder c = codes.get(code);
+		if (c == null) {
+			LongAdder n = new LongAdder();
+			c = codes.putIfAbsent(code, n);
+			if (c == null) c = n;
+		}
+		c.increment();
+	}
+
+	/**
+	 * Records an execution which has not been marked by {@link #start()},
+	 * e.g. of a request answered before the command could be executed.
+	 *
+	 * @param start the {@code System.nanoTime()} at which the request arrived
+	 * @param code the response code of the execution
+	 */
+	public void record(long start, int code) {
+		inFlight.incrementAndGet();
+		end(start, code);
+	}
+
+	/**
+	 * Returns the number of results per response code.
+	 *
+	 * @return counts by response code, in ascending code order
+	 */
+	public Map<Integer, Long> getCodeCounts() {
+		Map<Integer, Long> m = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, LongAdder> e: codes.entrySet()) m.put(e.getKey(), e.getValue().sum());
+		return m;
+	}
+
+	@Override
+	public String getCommand() {
+		return command;
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public long getMeanTime() {
+		long n = count.sum();
+		return n == 0? 0 : totalMicros.sum() / n;
+	}
+
+	@Override
+	public long getMaxTime() {
+		return histogram.getMax();
+	}
+
+	@Override
+	public long getP50Time() {
+		return histogram.getPercentile(0.5);
+	}
+
+	@Override
+	public long getP99Time() {
+		return histogram.getPercentile(0.99);
+	}
+
+	@Override
+	public long getP999Time() {
+		return histogram.getPercentile(0.999);
+	}
+
+	@Override
+	public String getResultCodes() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Long> e: getCodeCounts().entrySet()) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+}
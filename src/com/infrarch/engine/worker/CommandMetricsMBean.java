@@ -0,0 +1,36 @@
+package com.infrarch.engine.worker;
+
+/**
+ * The JMX view of the {@link CommandMetrics} of a command. Times are in
+ * microseconds.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public interface CommandMetricsMBean {
+
+	public String getCommand();
+	
+	public long getCount();
+	
+	public long getErrors();
+	
+	public int getInFlight();
+	
+	public long getMeanTime();
+	
+	public long getMaxTime();
+	
+	public long getP50Time();
+	
+	public long getP99Time();
+	
+	public long getP999Time();
+	
+	/**
+	 * Returns the number of results per response code, e.g. "0=120,210=2".
+	 * 
+	 * @return counts per response code
+	 */
+	public String getResultCodes();
+}
@@ -0,0 +1,247 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.activation.MimetypesFileTypeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps gzip compressed variants of compressible files, so that they can
+ * be sent to clients accepting the gzip content encoding without being
+ * compressed on every download. The variants are kept in the
+ * {@link #VARIANTS_DIR} directory of the configuration root, in the same
+ * tree as the files in the document root.
+ * <p>
+ * A variant has the modification time of its file and is only used while
+ * the file has it too. Missing or stale variants are generated in the
+ * background when the file is downloaded. Variants are also deleted when
+ * the engine changes their files (see {@link FileManager#changed(File)}).
+ * <p>
+ * Files are compressible, if their MIME type starts with or their extension
+ * is one of those set by {@code ConfigurationManager.KEY_VARIANTS_TYPES},
+ * and they are at least {@code ConfigurationManager.KEY_VARIANTS_MIN} bytes
+ * long. Variants which do not save at least a tenth are not sent.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class CompressedVariants {
+
+	private static final Logger logger = Logger.getLogger(CompressedVariants.class);
+	private static final CompressedVariants instance = new CompressedVariants();
+
+	public static final String VARIANTS_DIR = "variants";
+	public static final String GZIP_SUFFIX = ".gz";
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final Set<String> generating = ConcurrentHashMap.<String>newKeySet();
+
+	private CompressedVariants() {}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static CompressedVariants getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Checks if a file is of a type worth compressing.
+	 *
+	 * @param name file name
+	 * @return compressible or not
+	 */
+	public boolean isCompressible(String name) {
+		String types = ConfigurationManager.getInstance().get(ConfigurationManager.KEY_VARIANTS_TYPES, "");
+		if (types.isEmpty()) return false;
+		String mimeType = MimetypesFileTypeMap.getDefaultFileTypeMap().getContentType(name);
+		String lowerName = name.toLowerCase(Locale.ROOT);
+		for (String t: types.split(",")) {
+			t = t.trim().toLowerCase(Locale.ROOT);
+			if (t.isEmpty()) continue;
+			if (t.startsWith(".")? lowerName.endsWith(t) : mimeType.startsWith(t)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the gzip compressed variant of a file. If the file is
+	 * compressible and there is no current variant, one is generated in
+	 * the background for later downloads.
+	 *
+	 * @param f the file
+	 * @return the variant or <code>null</code>, if the file should be sent
+	 * 		as is
+	 */
+	public File getVariant(File f) {
+		long length = f.length();
+		if (length < ConfigurationManager.getInstance().getLong(ConfigurationManager.KEY_VARIANTS_MIN, 1024)) return null;
+		if (!isCompressible(f.getName())) return null;
+		File variant = getVariantFile(f);
+		if (variant == null) return null;
+
+		if (variant.lastModified() != f.lastModified() || !variant.isFile()) {
+			generate(f, variant);
+			return null;
+		}
+		return variant.length() < length - length / 10? variant : null;
+	}
+
+	/**
+	 * Returns the file of the variant of a file in the document root.
+	 *
+	 * @return variant file or <code>null</code>, if not in the document root
+	 */
+	private File getVariantFile(File f) {
+		Path docRoot = FileManager.getInstance().getDocRoot().toPath().toAbsolutePath().normalize();
+		Path path = f.toPath().toAbsolutePath().normalize();
+		if (!path.startsWith(docRoot) || path.equals(docRoot)) return null;
+		Path variants = new File(ConfigurationManager.getInstance().getConfigRoot(), VARIANTS_DIR).toPath();
+		return new File(variants.resolve(docRoot.relativize(path)).toString() + GZIP_SUFFIX);
+	}
+
+	/**
+	 * Generates the variant of a file on the shared executor, unless it is
+	 * being generated already.
+	 */
+	private void generate(final File f, final File variant) {
+		final String key = variant.getAbsolutePath();
+		if (!generating.add(key)) return;
+		try {
+			ExecutionManager.getInstance().getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compress(f, variant);
+					} finally {
+						generating.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			generating.remove(key);
+		}
+	}
+
+	/**
+	 * Compresses a file into a temporary file, which replaces the variant,
+	 * if the file has not changed meanwhile.
+	 */
+	private void compress(File f, File variant) {
+		long lastModified = f.lastModified();
+		File dir = variant.getParentFile();
+		File tmp = null;
+		try {
+			Files.createDirectories(dir.toPath());
+			tmp = File.createTempFile("variant", ".tmp", dir);
+			try (InputStream in = Files.newInputStream(f.toPath());
+					OutputStream out = new LevelGZIPOutputStream(Files.newOutputStream(tmp.toPath()), ConfigurationManager.getInstance().getVariantsLevel())) {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+			}
+			if (f.lastModified() != lastModified) return;
+			tmp.setLastModified(lastModified);
+			Files.move(tmp.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			logger.debug("Generated compressed variant of file: " + f.getAbsolutePath());
+		} catch (IOException e) {
+			logger.warn("Could not generate compressed variant of file: " + f.getAbsolutePath(), e);
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/**
+	 * Deletes the variants of a changed file or, if a directory has changed,
+	 * the stale variants in it, in the background.
+	 *
+	 * @param f the file or directory
+	 */
+	public void invalidate(final File f) {
+		final File variant = getVariantFile(f);
+		if (variant == null) return;
+		final File variantDir = new File(variant.getPath().substring(0, variant.getPath().length() - GZIP_SUFFIX.length()));
+		if (!variant.exists() && !variantDir.exists()) return;
+
+		try {
+			ExecutionManager.getInstance().getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					variant.delete();
+					if (variantDir.isDirectory()) deleteStale(f, variantDir);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	/**
+	 * Deletes the variants in a directory whose files have been deleted
+	 * or modified. The engine changes the files directly in a directory,
+	 * so subdirectories are only entered, if they have been deleted.
+	 */
+	private static void deleteStale(final File dir, final File variantDir) {
+		final Path root = variantDir.toPath();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+					if (path.equals(root)) return FileVisitResult.CONTINUE;
+					File source = new File(dir, root.relativize(path).toString());
+					return source.isDirectory()? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					String name = root.relativize(path).toString();
+					if (!name.endsWith(GZIP_SUFFIX)) return FileVisitResult.CONTINUE;
+					File source = new File(dir, name.substring(0, name.length() - GZIP_SUFFIX.length()));
+					if (source.lastModified() != attrs.lastModifiedTime().toMillis()) Files.deleteIfExists(path);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path path, IOException e) {
+					// remove directories left empty
+					path.toFile().delete();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("Could not delete stale variants in: " + variantDir.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * A gzip stream with a compression level.
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+		LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.infrarch.engine.worker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An output stream compressing a response with the gzip or deflate content
+ * encoding while it is being written. The first bytes are held back up to
+ * a threshold: a response which is closed before reaching it is sent as is,
+ * as compressing it would not pay off. Otherwise the {@code Content-Encoding}
+ * header is set, which is still possible as nothing has been sent yet, and
+ * everything from then on is compressed on the fly.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class CompressingOutputStream extends OutputStream {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final HttpServletResponse response;
+	private final OutputStream out;
+	private final String encoding;
+	private final int level;
+	private byte[] pending;
+	private int count = 0;
+	private Deflater deflater = null;
+	private OutputStream compressed = null;
+	private boolean closed = false;
+
+	/**
+	 * Creates a stream.
+	 *
+	 * @param response the response, to set the content encoding header of
+	 * @param out the response's output stream
+	 * @param encoding {@link #GZIP} or {@link #DEFLATE}
+	 * @param threshold minimum number of bytes to compress
+	 * @param level compression level, see {@code Deflater}
+	 */
+	public CompressingOutputStream(HttpServletResponse response, OutputStream out, String encoding, int threshold, int level) {
+		this.response = response;
+		this.out = out;
+		this.encoding = encoding;
+		this.level = level;
+		this.pending = new byte[Math.max(1, threshold)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (compressed != null) {
+			compressed.write(b);
+			return;
+		}
+		if (count == pending.length) startCompression();
+		if (compressed != null) compressed.write(b);
+		else pending[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (compressed == null) {
+			if (count + len <= pending.length) {
+				System.arraycopy(b, off, pending, count, len);
+				count += len;
+				return;
+			}
+			startCompression();
+		}
+		compressed.write(b, off, len);
+	}
+
+	/**
+	 * Sets the header and compresses the bytes held back so far.
+	 */
+	private void startCompression() throws IOException {
+		response.setHeader("Content-Encoding", encoding);
+		if (GZIP.equals(encoding)) {
+			compressed = new GzipStream(out, level);
+		}
+		else {
+			deflater = new Deflater(level);
+			compressed = new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true);
+		}
+		compressed.write(pending, 0, count);
+		pending = null;
+	}
+
+	/**
+	 * Flushes the data written so far to the client, once compression has
+	 * started; until then there is nothing to send.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (compressed != null) compressed.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			if (compressed != null) compressed.close();
+			else {
+				out.write(pending, 0, count);
+				out.close();
+			}
+		} finally {
+			if (deflater != null) deflater.end();
+		}
+	}
+
+	/**
+	 * A {@code GZIPOutputStream} using a deflater with the configured level.
+	 */
+	private static class GzipStream extends GZIPOutputStream {
+
+		GzipStream(OutputStream out, int level) throws IOException {
+			super(out, BUFFER_SIZE, true);
+			def.setLevel(level);
+		}
+	}
+}
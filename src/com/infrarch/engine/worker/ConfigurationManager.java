@@ -4,9 +4,12 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.Logger;
 
@@ -38,6 +41,49 @@ public class ConfigurationManager {
 	public static final String KEY_IP_WHITELIST = "ip.whitelist";
 	public static final String KEY_IP_BLACKLIST = "ip.blacklist";
 	public static final String KEY_INCORRECT_LOGIN_DELAY = "system.login.delay";
+	public static final String KEY_EXECUTOR_THREADS = "system.executor.threads";
+	public static final String KEY_EXECUTOR_REQUESTS = "system.executor.requests";
+	public static final String KEY_EXECUTOR_REQUEST_THREADS = "system.executor.requests.threads";
+	public static final String KEY_BATCH_MAX_COMMANDS = "batch.max.commands";
+	public static final String KEY_ACCESS_LOG_BUFFER = "log.access.buffer";
+	public static final String KEY_ACCESS_LOG_POLICY = "log.access.policy";
+	public static final String KEY_ACCESS_LOG_MAX_SIZE = "log.access.max.size";
+	public static final String KEY_COMPRESSION_THRESHOLD = "compression.threshold";
+	public static final String KEY_COMPRESSION_LEVEL = "compression.level";
+	public static final String KEY_LIMIT_USER_RATE = "limit.user.rate";
+	public static final String KEY_LIMIT_USER_BURST = "limit.user.burst";
+	public static final String KEY_LIMIT_IP_RATE = "limit.ip.rate";
+	public static final String KEY_LIMIT_IP_BURST = "limit.ip.burst";
+	public static final String KEY_LIMIT_USER_TRANSFERS = "limit.user.transfers";
+	public static final String KEY_LIMIT_IP_TRANSFERS = "limit.ip.transfers";
+	public static final String KEY_PROXY_TRUSTED = "proxy.trusted";
+	public static final String KEY_WATCH_MAX = "watch.max";
+	public static final String KEY_WATCH_COALESCE = "watch.coalesce";
+	public static final String KEY_TOKEN_KEYS = "token.keys";
+	public static final String KEY_TOKEN_TTL = "token.ttl";
+	public static final String KEY_DOWNLOAD_SENDFILE = "download.sendfile";
+	public static final String KEY_ZIP_LEVEL = "zip.level";
+	public static final String KEY_ZIP_STORED = "zip.stored";
+	public static final String KEY_BANDWIDTH_GLOBAL = "bandwidth.global";
+	public static final String KEY_BANDWIDTH_USER = "bandwidth.user";
+	public static final String KEY_BANDWIDTH_TRANSFER = "bandwidth.transfer";
+	public static final String KEY_BANDWIDTH_WEIGHTS = "bandwidth.weights";
+	public static final String KEY_CACHE_SIZE = "cache.size";
+	public static final String KEY_CACHE_FILE_MAX = "cache.file.max";
+	public static final String KEY_DOWNLOAD_MANY_MAX = "download.many.max";
+	public static final String KEY_VARIANTS_TYPES = "variants.types";
+	public static final String KEY_VARIANTS_MIN = "variants.min";
+	public static final String KEY_VARIANTS_LEVEL = "variants.level";
+	public static final String KEY_UPLOAD_CHUNK_MAX = "upload.chunk.max";
+	public static final String KEY_UPLOAD_SESSION_TTL = "upload.session.ttl";
+	public static final String KEY_DEDUP = "dedup.enabled";
+	public static final String KEY_DIGEST = "digest.enabled";
+	
+	private static final String DEFAULT_ZIP_STORED = "jpg,jpeg,png,gif,webp,mp3,aac,ogg,mp4,m4v,mov,mkv,avi,webm,"
+			+ "zip,gz,tgz,bz2,xz,7z,rar,jar,docx,xlsx,pptx";
+	private static final String DEFAULT_PROXY_TRUSTED = "127.0.0.1,::1,0:0:0:0:0:0:0:1";
+	private static final String DEFAULT_VARIANTS_TYPES = "text/,application/json,application/xml,application/javascript,"
+			+ ".csv,.tsv,.json,.xml,.log,.txt,.js,.css,.svg,.sql,.md";
 	
 	private static ConfigurationManager instance = null;
 	private final AtomicBoolean initialized = new AtomicBoolean(false);
@@ -75,6 +121,43 @@ public class ConfigurationManager {
 
 		p.setProperty(KEY_CHECK_USER_IP, "false");
 		p.setProperty(KEY_INCORRECT_LOGIN_DELAY, "5");
+		p.setProperty(KEY_EXECUTOR_THREADS, "16");
+		p.setProperty(KEY_EXECUTOR_REQUESTS, "false");
+		p.setProperty(KEY_EXECUTOR_REQUEST_THREADS, "200");
+		p.setProperty(KEY_BATCH_MAX_COMMANDS, "100");
+		p.setProperty(KEY_ACCESS_LOG_BUFFER, "8192");
+		p.setProperty(KEY_ACCESS_LOG_POLICY, AccessLog.POLICY_DROP);
+		p.setProperty(KEY_ACCESS_LOG_MAX_SIZE, "" + 50*1024*1024);
+		p.setProperty(KEY_COMPRESSION_THRESHOLD, "1024");
+		p.setProperty(KEY_COMPRESSION_LEVEL, "" + Deflater.BEST_SPEED);
+		p.setProperty(KEY_LIMIT_USER_RATE, "0");
+		p.setProperty(KEY_LIMIT_USER_BURST, "100");
+		p.setProperty(KEY_LIMIT_IP_RATE, "0");
+		p.setProperty(KEY_LIMIT_IP_BURST, "200");
+		p.setProperty(KEY_LIMIT_USER_TRANSFERS, "0");
+		p.setProperty(KEY_LIMIT_IP_TRANSFERS, "0");
+		p.setProperty(KEY_PROXY_TRUSTED, DEFAULT_PROXY_TRUSTED);
+		p.setProperty(KEY_WATCH_MAX, "1024");
+		p.setProperty(KEY_WATCH_COALESCE, "250");
+		p.setProperty(KEY_TOKEN_KEYS, "");
+		p.setProperty(KEY_TOKEN_TTL, "3600");
+		p.setProperty(KEY_DOWNLOAD_SENDFILE, "" + 48*1024);
+		p.setProperty(KEY_ZIP_LEVEL, "" + Deflater.DEFAULT_COMPRESSION);
+		p.setProperty(KEY_ZIP_STORED, DEFAULT_ZIP_STORED);
+		p.setProperty(KEY_BANDWIDTH_GLOBAL, "0");
+		p.setProperty(KEY_BANDWIDTH_USER, "0");
+		p.setProperty(KEY_BANDWIDTH_TRANSFER, "0");
+		p.setProperty(KEY_BANDWIDTH_WEIGHTS, "");
+		p.setProperty(KEY_CACHE_SIZE, "" + 64*1024*1024);
+		p.setProperty(KEY_CACHE_FILE_MAX, "" + 256*1024);
+		p.setProperty(KEY_DOWNLOAD_MANY_MAX, "1000");
+		p.setProperty(KEY_VARIANTS_TYPES, DEFAULT_VARIANTS_TYPES);
+		p.setProperty(KEY_VARIANTS_MIN, "1024");
+		p.setProperty(KEY_VARIANTS_LEVEL, "" + Deflater.BEST_COMPRESSION);
+		p.setProperty(KEY_UPLOAD_CHUNK_MAX, "" + 64*1024*1024);
+		p.setProperty(KEY_UPLOAD_SESSION_TTL, "86400");
+		p.setProperty(KEY_DEDUP, "false");
+		p.setProperty(KEY_DIGEST, "true");
 	    
 	    return p;
 	}
@@ -153,6 +236,17 @@ public class ConfigurationManager {
 		return keys;
 	}
 	
+	/**
+	 * Checks if a property is a secret, which is not to be read by users, 
+	 * like the keys tokens are signed with.
+	 * 
+	 * @param key property name
+	 * @return secret or not
+	 */
+	public static boolean isSecret(String key) {
+		return KEY_TOKEN_KEYS.equals(key);
+	}
+	
 	/**
 	 * Returns a configuration property.
 	 * 
@@ -195,6 +289,23 @@ public class ConfigurationManager {
 		return i;
 	}
 	
+	/**
+	 * Returns a property as long.
+	 * 
+	 * @param key key to lookup
+	 * @param def default value, if not found or could not be parsed
+	 * @return the property value
+	 */
+	public long getLong(String key, long def) {
+		String s = properties.getProperty(key);
+		if (s == null) return def;
+		try {
+			return Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+	
 	/**
 	 * Saves a key/value pair.
 	 * 
@@ -225,14 +336,153 @@ public class ConfigurationManager {
 		set(KEY_CONFIG_BASE, normalizePath(path));
 	}
 	
-	public int getMaxUploadSize() {
-		return getInt(KEY_MAX_UPL_FILE, 70*1024*1024);
+	public long getMaxUploadSize() {
+		return getLong(KEY_MAX_UPL_FILE, 70*1024*1024);
 	}
 	
-	public void setMaxUploadSize(int size) {
+	public void setMaxUploadSize(long size) {
 		set(KEY_MAX_UPL_FILE, "" + size);
 	}
 
+	public int getExecutorThreads() {
+		return Math.max(1, getInt(KEY_EXECUTOR_THREADS, 16));
+	}
+	
+	/**
+	 * Returns whether the engine hands requests over to the request executor 
+	 * of the {@link ExecutionManager} instead of executing them on the 
+	 * container's thread.
+	 */
+	public boolean isExecuteRequests() {
+		return Boolean.parseBoolean(get(KEY_EXECUTOR_REQUESTS));
+	}
+	
+	public int getRequestExecutorThreads() {
+		return Math.max(1, getInt(KEY_EXECUTOR_REQUEST_THREADS, 200));
+	}
+	
+	public int getBatchMaxCommands() {
+		return getInt(KEY_BATCH_MAX_COMMANDS, 100);
+	}
+	
+	public int getAccessLogBufferSize() {
+		return Math.max(2, getInt(KEY_ACCESS_LOG_BUFFER, 8192));
+	}
+	
+	public String getAccessLogPolicy() {
+		return get(KEY_ACCESS_LOG_POLICY);
+	}
+	
+	public long getAccessLogMaxFileSize() {
+		return getLong(KEY_ACCESS_LOG_MAX_SIZE, 50*1024*1024);
+	}
+	
+	/**
+	 * Returns the minimum size of a response to compress; negative, if
+	 * responses should not be compressed.
+	 */
+	public int getCompressionThreshold() {
+		return getInt(KEY_COMPRESSION_THRESHOLD, 1024);
+	}
+	
+	public int getCompressionLevel() {
+		int level = getInt(KEY_COMPRESSION_LEVEL, Deflater.BEST_SPEED);
+		return level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION? Deflater.BEST_SPEED : level;
+	}
+	
+	/**
+	 * Returns the compression level of the precompressed variants of files.
+	 */
+	public int getVariantsLevel() {
+		int level = getInt(KEY_VARIANTS_LEVEL, Deflater.BEST_COMPRESSION);
+		return level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION? Deflater.BEST_COMPRESSION : level;
+	}
+
+	/**
+	 * Returns the maximum number of clients watching directories at the same time.
+	 */
+	public int getWatchMax() {
+		return getInt(KEY_WATCH_MAX, 1024);
+	}
+	
+	/**
+	 * Returns the time in milliseconds during which changes in a watched 
+	 * directory are collected before they are sent to the clients.
+	 */
+	public int getWatchCoalescePeriod() {
+		return Math.max(0, getInt(KEY_WATCH_COALESCE, 250));
+	}
+
+	/**
+	 * Returns the keys to sign tokens with, see {@link TokenManager}.
+	 */
+	public String getTokenKeys() {
+		return get(KEY_TOKEN_KEYS, "");
+	}
+	
+	/**
+	 * Returns the lifetime of tokens in seconds.
+	 */
+	public int getTokenTtl() {
+		return Math.max(1, getInt(KEY_TOKEN_TTL, 3600));
+	}
+	
+	/**
+	 * Returns the minimum size of a download to hand over to the container's 
+	 * sendfile support; negative, if sendfile should not be used.
+	 */
+	public long getSendfileThreshold() {
+		return getLong(KEY_DOWNLOAD_SENDFILE, 48*1024);
+	}
+	
+	/**
+	 * Returns the maximum number of files downloaded with one request.
+	 */
+	public int getDownloadManyMax() {
+		return getInt(KEY_DOWNLOAD_MANY_MAX, 1000);
+	}
+	
+	/**
+	 * Returns the maximum length of a chunk of a resumable upload.
+	 */
+	public long getUploadChunkMax() {
+		return getLong(KEY_UPLOAD_CHUNK_MAX, 64*1024*1024);
+	}
+	
+	/**
+	 * Returns the compression level of zipped directories, see {@code Deflater}.
+	 */
+	public int getZipLevel() {
+		int level = getInt(KEY_ZIP_LEVEL, Deflater.DEFAULT_COMPRESSION);
+		return level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION? Deflater.DEFAULT_COMPRESSION : level;
+	}
+	
+	/**
+	 * Returns the extensions, in lower case, of the files to store in zipped 
+	 * directories without compressing them, as they are compressed already.
+	 */
+	public Set<String> getZipStoredTypes() {
+		Set<String> types = new HashSet<String>();
+		for (String s: get(KEY_ZIP_STORED, DEFAULT_ZIP_STORED).split(",")) {
+			s = s.trim();
+			if (!s.isEmpty()) types.add(s.toLowerCase(Locale.ROOT));
+		}
+		return types;
+	}
+
+	/**
+	 * Returns the addresses of the proxies, whose {@code X-Forwarded-For} 
+	 * headers are trusted to give the clients' addresses.
+	 */
+	public Set<String> getTrustedProxies() {
+		Set<String> proxies = new HashSet<String>();
+		for (String s: get(KEY_PROXY_TRUSTED, DEFAULT_PROXY_TRUSTED).split(",")) {
+			s = s.trim();
+			if (!s.isEmpty()) proxies.add(s);
+		}
+		return proxies;
+	}
+
 	public void setWhitelist(String s) {
 		set(KEY_IP_WHITELIST, s);
 	}
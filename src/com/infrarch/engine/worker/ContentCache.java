@@ -0,0 +1,241 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the contents of small, frequently downloaded files in direct
+ * buffers outside the heap, so that downloading them does not open and read
+ * the file again. The least recently used files are evicted when the size
+ * set by {@code ConfigurationManager.KEY_CACHE_SIZE} is exceeded; files
+ * larger than {@code ConfigurationManager.KEY_CACHE_FILE_MAX} are not cached.
+ * <p>
+ * An entry is only used while the file's modification time and size are
+ * the ones it was read with. Entries are also dropped when the engine
+ * changes the file or its directory (see {@link FileManager#changed(File)}).
+ * <p>
+ * The direct buffers are freed by the garbage collector after eviction,
+ * so the JVM's maximum direct memory must leave room for the cache.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ContentCache implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(ContentCache.class);
+	private static final ContentCache instance = new ContentCache();
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+	private long size = 0;
+	private volatile long maxSize = 0;
+	private volatile long maxFileSize = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bytesSaved = new LongAdder();
+
+	/**
+	 * The contents of a file with the attributes they were read with.
+	 */
+	private static class Entry {
+
+		final ByteBuffer data;
+		final long lastModified;
+
+		Entry(ByteBuffer data, long lastModified) {
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private ContentCache() {
+		configure();
+	}
+
+	/**
+	 * Returns the single cache instance.
+	 *
+	 * @return cache instance
+	 */
+	public static ContentCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the contents of a file, reading and caching them, if the file
+	 * is small enough and not cached yet.
+	 *
+	 * @param f the file
+	 * @return a read-only buffer with the contents or <code>null</code>, if
+	 * 		the file is not cached and should be read from the disk
+	 */
+	public ByteBuffer get(File f) {
+		long max = maxFileSize;
+		if (maxSize <= 0 || max <= 0) return null;
+
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		if (!attrs.isRegularFile() || attrs.size() > max) return null;
+		long lastModified = attrs.lastModifiedTime().toMillis();
+
+		String key = f.getAbsolutePath();
+		synchronized (entries) {
+			Entry e = entries.get(key);
+			if (e != null && e.lastModified == lastModified && e.data.capacity() == attrs.size()) {
+				hits.increment();
+				return e.data.duplicate();
+			}
+		}
+		misses.increment();
+		return load(f, key, attrs);
+	}
+
+	/**
+	 * Reads a file into a direct buffer and caches it, unless it changes
+	 * while being read.
+	 */
+	private ByteBuffer load(File f, String key, BasicFileAttributes attrs) {
+		ByteBuffer data = ByteBuffer.allocateDirect((int) attrs.size());
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			while (data.hasRemaining()) {
+				if (channel.read(data, data.position()) < 0) return null;
+			}
+			BasicFileAttributes after = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+			if (!after.lastModifiedTime().equals(attrs.lastModifiedTime()) || after.size() != attrs.size()) return null;
+		} catch (IOException e) {
+			logger.warn("Could not cache file: " + f.getAbsolutePath(), e);
+			return null;
+		}
+		data.flip();
+		data = data.asReadOnlyBuffer();
+
+		synchronized (entries) {
+			Entry previous = entries.put(key, new Entry(data, attrs.lastModifiedTime().toMillis()));
+			if (previous != null) size -= previous.data.capacity();
+			size += data.capacity();
+			evict(maxSize);
+		}
+		return data.duplicate();
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits the size.
+	 */
+	private void evict(long max) {
+		Iterator<Entry> i = entries.values().iterator();
+		while (size > max && i.hasNext()) {
+			size -= i.next().data.capacity();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Drops the entry of a file or the entries of all files in a directory.
+	 *
+	 * @param f the file or directory
+	 */
+	public void invalidate(File f) {
+		String key = f.getAbsolutePath();
+		String prefix = key.endsWith(File.separator)? key : key + File.separator;
+		synchronized (entries) {
+			if (entries.isEmpty()) return;
+			for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<String, Entry> e = i.next();
+				if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+					size -= e.getValue().data.capacity();
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records bytes sent from the cache instead of the disk.
+	 *
+	 * @param bytes number of bytes
+	 */
+	public void addBytesSaved(long bytes) {
+		bytesSaved.add(bytes);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of the lookups of cacheable files which were hits.
+	 *
+	 * @return hit ratio between 0 and 1
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0? 0 : (double) h / total;
+	}
+
+	/**
+	 * Returns the number of bytes sent from the cache instead of the disk.
+	 *
+	 * @return bytes saved
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	/**
+	 * Returns the number of bytes cached.
+	 *
+	 * @return cache size
+	 */
+	public long getSize() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+
+	public int getEntryCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Reads the sizes from the configuration.
+	 */
+	private void configure() {
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		maxSize = Math.max(0, config.getLong(ConfigurationManager.KEY_CACHE_SIZE, 0));
+		maxFileSize = Math.min(Integer.MAX_VALUE, Math.max(0, config.getLong(ConfigurationManager.KEY_CACHE_FILE_MAX, 0)));
+	}
+
+	/**
+	 * Reads the sizes, which may have been changed, and shrinks the cache
+	 * to fit them.
+	 */
+	@Override
+	public void runPeriodically() {
+		configure();
+		synchronized (entries) {
+			evict(maxSize);
+		}
+	}
+}
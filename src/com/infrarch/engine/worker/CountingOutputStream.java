@@ -0,0 +1,41 @@
+package com.infrarch.engine.worker;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream counting the bytes written through it.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+	private long count = 0;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return bytes written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+}
@@ -0,0 +1,233 @@
+package com.infrarch.engine.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the SHA-256 hashes of the files, computed while their bytes were
+ * written by an upload or a copy, so that a client can verify a transfer
+ * and {@code file_info} can report the hash without reading the file again.
+ * <p>
+ * A hash is recorded with the size and the modification time of the file
+ * and is returned only as long as both are unchanged, so a file changed
+ * by other means than the engine simply has no hash. The index is stored
+ * in the {@link #INDEX_FILE} file of the configuration root a few seconds
+ * after it changes, and the entries of files which no longer exist are
+ * removed once an hour. The index is enabled by
+ * {@code ConfigurationManager.KEY_DIGEST}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class DigestIndex implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(DigestIndex.class);
+
+	public static final String INDEX_FILE = "digests.tsv";
+
+	private static final long STORE_PERIOD = TimeUnit.SECONDS.toMillis(10);
+	private static final long PRUNE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+	private static DigestIndex instance = null;
+
+	/**
+	 * The entries by the path of their files, relative to the document root.
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean dirty = false;
+	private long lastStore = System.currentTimeMillis();
+	private long lastPrune = System.currentTimeMillis();
+
+	private static class Entry {
+		final String hash;
+		final long size;
+		final long modified;
+
+		Entry(String hash, long size, long modified) {
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	private DigestIndex() {
+		load();
+	}
+
+	/**
+	 * Returns the single index instance.
+	 *
+	 * @return index instance
+	 */
+	public static synchronized DigestIndex getInstance() {
+		if (instance == null) instance = new DigestIndex();
+		return instance;
+	}
+
+	/**
+	 * Stores the index at server shutdown.
+	 */
+	public static synchronized void destroyInstance() {
+		if (instance != null) {
+			instance.store();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Checks if the hashes of the files are computed and kept.
+	 *
+	 * @return enabled or not
+	 */
+	public boolean isEnabled() {
+		return Boolean.parseBoolean(ConfigurationManager.getInstance().get(ConfigurationManager.KEY_DIGEST, "true"));
+	}
+
+	/**
+	 * Returns the key of a file: its path relative to the document root.
+	 *
+	 * @return the key or <code>null</code>, if the file is not in the
+	 * 		document root
+	 */
+	private static String getKey(File f) {
+		Path root = FileManager.getInstance().getDocRoot().getAbsoluteFile().toPath().normalize();
+		Path p = f.getAbsoluteFile().toPath().normalize();
+		if (!p.startsWith(root) || p.equals(root)) return null;
+		return root.relativize(p).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Records the hash of a file, which has just been written.
+	 *
+	 * @param f the file
+	 * @param hash the SHA-256 hash of its content, as a hexadecimal string
+	 */
+	public void put(File f, String hash) {
+		if (hash == null || !isEnabled()) return;
+		String key = getKey(f);
+		if (key == null) return;
+		long modified = f.lastModified();
+		if (modified == 0) return;
+		entries.put(key, new Entry(hash, f.length(), modified));
+		dirty = true;
+	}
+
+	/**
+	 * Returns the hash of a file, if it has not changed since the hash
+	 * was recorded.
+	 *
+	 * @param f the file
+	 * @return the SHA-256 hash as a hexadecimal string or <code>null</code>,
+	 * 		if it is not known
+	 */
+	public String get(File f) {
+		if (!isEnabled()) return null;
+		String key = getKey(f);
+		if (key == null) return null;
+		Entry e = entries.get(key);
+		if (e == null) return null;
+		if (e.modified != f.lastModified() || e.size != f.length()) {
+			entries.remove(key, e);
+			dirty = true;
+			return null;
+		}
+		return e.hash;
+	}
+
+	private static File getIndexFile() {
+		return new File(ConfigurationManager.getInstance().getConfigRoot(), INDEX_FILE);
+	}
+
+	/**
+	 * Stores the index, replacing the stored one atomically. Each entry is
+	 * a line of the hash, size, modification time and path, separated
+	 * by tabs.
+	 */
+	private synchronized void store() {
+		if (!dirty) return;
+		dirty = false;
+		File f = getIndexFile();
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(INDEX_FILE, ".tmp", f.getParentFile());
+			try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, Entry> e: entries.entrySet()) {
+					Entry entry = e.getValue();
+					w.write(entry.hash + "\t" + entry.size + "\t" + entry.modified + "\t" + e.getKey() + "\n");
+				}
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		} catch (IOException e) {
+			dirty = true;
+			logger.error("Could not store digest index: " + f.getAbsolutePath(), e);
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	private void load() {
+		File f = getIndexFile();
+		if (!f.isFile()) return;
+		try (BufferedReader r = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length < 4) continue;
+				try {
+					entries.put(fields[3], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				} catch (NumberFormatException e) {
+					// skip the line
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Could not load digest index: " + f.getAbsolutePath(), e);
+		}
+		logger.info("Loaded " + entries.size() + " file digests");
+	}
+
+	/**
+	 * Removes the entries of the files which no longer exist or have changed.
+	 */
+	private void prune() {
+		File docRoot = FileManager.getInstance().getDocRoot();
+		int removed = 0;
+		for (Map.Entry<String, Entry> e: entries.entrySet()) {
+			File f = new File(docRoot, e.getKey());
+			Entry entry = e.getValue();
+			if ((entry.modified != f.lastModified() || entry.size != f.length()) && entries.remove(e.getKey(), entry)) removed++;
+		}
+		if (removed > 0) {
+			dirty = true;
+			logger.info("Removed " + removed + " stale file digests");
+		}
+	}
+
+	/**
+	 * Stores the index, if it has changed, and removes stale entries once
+	 * an hour.
+	 */
+	@Override
+	public void runPeriodically() {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune >= PRUNE_PERIOD) {
+			lastPrune = now;
+			prune();
+		}
+		if (now - lastStore >= STORE_PERIOD) {
+			lastStore = now;
+			store();
+		}
+	}
+}
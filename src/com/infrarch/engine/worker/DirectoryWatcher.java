@@ -0,0 +1,308 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches directories for changes on behalf of any number of subscribers,
+ * using a single {@code WatchService} and a single thread. Each directory
+ * is registered with the service once, however many subscribers it has.
+ * <p>
+ * Events arriving within {@code ConfigurationManager.KEY_WATCH_COALESCE}
+ * milliseconds of each other are delivered together, with the events of
+ * a file merged: e.g. a file created and then written is reported as
+ * created, a file created and deleted again is not reported at all. If the
+ * service has lost events, the subscribers are asked to rescan the directory
+ * instead. Subscribers are also called periodically without events, so that
+ * they can keep their connections alive.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class DirectoryWatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(DirectoryWatcher.class);
+	private static DirectoryWatcher instance = null;
+
+	public static final String CREATE = "create";
+	public static final String MODIFY = "modify";
+	public static final String DELETE = "delete";
+
+	private static final long HEARTBEAT_PERIOD = TimeUnit.SECONDS.toNanos(15);
+
+	private final WatchService service;
+	private final Thread thread;
+	private final Map<Path, Watch> watches = new HashMap<Path, Watch>();
+	private int subscriberCount = 0;
+	private volatile boolean running = true;
+
+	/**
+	 * Receives the changes in a watched directory. The methods are called by
+	 * the watcher's thread and should return quickly.
+	 */
+	public interface Subscriber {
+
+		/**
+		 * Called when files in the directory have changed.
+		 *
+		 * @param dir the directory
+		 * @param changes {@link #CREATE}, {@link #MODIFY} or {@link #DELETE}
+		 * 		by file name
+		 */
+		void changed(File dir, Map<String, String> changes);
+
+		/**
+		 * Called when changes in the directory may have been missed.
+		 *
+		 * @param dir the directory
+		 */
+		void rescan(File dir);
+
+		/**
+		 * Called after {@link #rescan(File)}, when the directory is no longer
+		 * watched, e.g. because it has been deleted or moved. No more changes
+		 * will be reported and the subscription has been cancelled.
+		 *
+		 * @param dir the directory
+		 */
+		void removed(File dir);
+
+		/**
+		 * Called periodically.
+		 */
+		void heartbeat();
+	}
+
+	/**
+	 * A registered directory and its subscribers.
+	 */
+	private static class Watch {
+
+		final File dir;
+		final WatchKey key;
+		final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+		Map<String, String> changes = null;
+		boolean overflow = false;
+		boolean removed = false;
+
+		Watch(File dir, WatchKey key) {
+			this.dir = dir;
+			this.key = key;
+		}
+	}
+
+	private DirectoryWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+		thread = new Thread(this, "Engine Directory Watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the single watcher instance, starting it on first use.
+	 *
+	 * @return watcher instance
+	 * @throws IOException if the file system cannot be watched
+	 */
+	public static synchronized DirectoryWatcher getInstance() throws IOException {
+		if (instance == null) {
+			instance = new DirectoryWatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Subscribes to the changes in a directory.
+	 *
+	 * @param dir directory to watch
+	 * @param subscriber the subscriber
+	 * @return <code>false</code>, if the maximum number of subscribers set by
+	 * 		{@code ConfigurationManager.KEY_WATCH_MAX} has been reached
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public boolean subscribe(File dir, Subscriber subscriber) throws IOException {
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		synchronized (watches) {
+			if (subscriberCount >= ConfigurationManager.getInstance().getWatchMax()) return false;
+
+			Watch w = watches.get(path);
+			if (w == null) {
+				WatchKey key = path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				w = new Watch(path.toFile(), key);
+				watches.put(path, w);
+				logger.debug("Watching directory: " + path);
+			}
+			w.subscribers.add(subscriber);
+			subscriberCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels a subscription. The directory is no longer watched when its
+	 * last subscriber has gone.
+	 *
+	 * @param dir the watched directory
+	 * @param subscriber the subscriber
+	 */
+	public void unsubscribe(File dir, Subscriber subscriber) {
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		synchronized (watches) {
+			Watch w = watches.get(path);
+			if (w == null || !w.subscribers.remove(subscriber)) return;
+			subscriberCount--;
+			if (w.subscribers.isEmpty()) {
+				w.key.cancel();
+				watches.remove(path);
+				logger.debug("Stopped watching directory: " + path);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastHeartbeat = System.nanoTime();
+		try {
+			while (running) {
+				WatchKey key = service.poll(1, TimeUnit.SECONDS);
+				if (key != null) {
+
+					// collect the events arriving in the coalescing period
+					List<Watch> changed = new ArrayList<Watch>();
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+							ConfigurationManager.getInstance().getWatchCoalescePeriod());
+					do {
+						collect(key, changed);
+						long remaining = deadline - System.nanoTime();
+						key = remaining > 0? service.poll(remaining, TimeUnit.NANOSECONDS) : service.poll();
+					} while (key != null);
+
+					for (Watch w: changed) dispatch(w);
+				}
+
+				long now = System.nanoTime();
+				if (now - lastHeartbeat >= HEARTBEAT_PERIOD) {
+					lastHeartbeat = now;
+					heartbeat();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// shutting down
+		}
+	}
+
+	/**
+	 * Merges the events of a key into the changes of its directory.
+	 */
+	private void collect(WatchKey key, List<Watch> changed) {
+		Watch w;
+		synchronized (watches) {
+			w = watches.get(key.watchable());
+		}
+		List<WatchEvent<?>> events = key.pollEvents();
+		boolean valid = key.reset();
+		if (w == null || w.key != key) return;
+
+		if (!changed.contains(w)) changed.add(w);
+		if (w.changes == null) w.changes = new LinkedHashMap<String, String>();
+		for (WatchEvent<?> event: events) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				w.overflow = true;
+				continue;
+			}
+			String name = event.context().toString();
+			if (FileManager.getInstance().isSystemFile(new File(w.dir, name))) continue;
+			String kind = event.kind() == StandardWatchEventKinds.ENTRY_CREATE? CREATE :
+				event.kind() == StandardWatchEventKinds.ENTRY_DELETE? DELETE : MODIFY;
+			merge(w.changes, name, kind);
+		}
+
+		// the key has been cancelled, e.g. because the directory is gone; 
+		// the subscribers are told so, whether it exists again or not
+		if (!valid) {
+			w.overflow = true;
+			w.removed = true;
+			synchronized (watches) {
+				if (watches.remove(key.watchable(), w)) subscriberCount -= w.subscribers.size();
+			}
+		}
+	}
+
+	private static void merge(Map<String, String> changes, String name, String kind) {
+		String previous = changes.get(name);
+		if (previous == null) changes.put(name, kind);
+		else if (previous == CREATE) {
+			if (kind == DELETE) changes.remove(name);
+		}
+		else if (previous == DELETE) {
+			if (kind == CREATE) changes.put(name, MODIFY);
+		}
+		else changes.put(name, kind);
+	}
+
+	private void dispatch(Watch w) {
+		Map<String, String> changes = w.changes;
+		boolean overflow = w.overflow;
+		w.changes = null;
+		w.overflow = false;
+
+		for (Subscriber s: w.subscribers) {
+			try {
+				if (overflow) s.rescan(w.dir);
+				else if (!changes.isEmpty()) s.changed(w.dir, Collections.unmodifiableMap(changes));
+				if (w.removed) s.removed(w.dir);
+			} catch (RuntimeException e) {
+				logger.error("Subscriber failed", e);
+			}
+		}
+	}
+
+	private void heartbeat() {
+		List<Watch> list;
+		synchronized (watches) {
+			list = new ArrayList<Watch>(watches.values());
+		}
+		for (Watch w: list) {
+			for (Subscriber s: w.subscribers) {
+				try {
+					s.heartbeat();
+				} catch (RuntimeException e) {
+					logger.error("Subscriber failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the watcher at server shutdown.
+	 */
+	public static synchronized void destroyInstance() {
+		if (instance == null) return;
+		instance.running = false;
+		try {
+			instance.service.close();
+		} catch (IOException e) {
+			logger.warn("Could not close watch service", e);
+		}
+		instance.thread.interrupt();
+		instance = null;
+	}
+}
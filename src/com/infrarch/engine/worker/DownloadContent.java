@@ -0,0 +1,205 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.infrarch.engine.ByteRange;
+
+/**
+ * The body of a file download: the whole file, a single range of it, or
+ * several ranges as {@code multipart/byteranges}. The body is a list of
+ * parts, each made of a few bytes of headers followed by a region of the
+ * file, so it can be sent without copying the file anywhere.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class DownloadContent {
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final File file;
+	private final List<Part> parts;
+	private final String contentType;
+	private final long length;
+	private ByteBuffer data = null;
+
+	/**
+	 * Headers followed by a region of the file.
+	 */
+	public static class Part {
+
+		private final byte[] header;
+		private final long position;
+		private final long length;
+
+		Part(byte[] header, long position, long length) {
+			this.header = header;
+			this.position = position;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the bytes to send before the region of the file.
+		 *
+		 * @return the header bytes, possibly empty
+		 */
+		public byte[] getHeader() {
+			return header;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+
+	private DownloadContent(File file, List<Part> parts, String contentType) {
+		this.file = file;
+		this.parts = parts;
+		this.contentType = contentType;
+		long l = 0;
+		for (Part p: parts) l += p.header.length + p.length;
+		this.length = l;
+	}
+
+	/**
+	 * Creates the body of a whole file or of a single range of it.
+	 *
+	 * @param file the file
+	 * @param position position of the first byte
+	 * @param length number of bytes
+	 * @return the body
+	 */
+	public static DownloadContent region(File file, long position, long length) {
+		return new DownloadContent(file, Collections.singletonList(new Part(new byte[0], position, length)), null);
+	}
+
+	/**
+	 * Creates a {@code multipart/byteranges} body.
+	 *
+	 * @param file the file
+	 * @param ranges the ranges to send
+	 * @param fileLength length of the file
+	 * @param fileType content type of the file
+	 * @return the body
+	 */
+	public static DownloadContent multipart(File file, List<ByteRange> ranges, long fileLength, String fileType) {
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		List<Part> parts = new ArrayList<Part>(ranges.size() + 1);
+		for (ByteRange r: ranges) {
+			String header = "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: " + fileType + "\r\n"
+				+ "Content-Range: " + r.toContentRange(fileLength) + "\r\n\r\n";
+			parts.add(new Part(header.getBytes(StandardCharsets.US_ASCII), r.getStart(), r.getLength()));
+		}
+		parts.add(new Part(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII), 0, 0));
+		return new DownloadContent(file, parts, "multipart/byteranges; boundary=" + boundary);
+	}
+
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Sets the contents of the file, e.g. from the {@link ContentCache}, to 
+	 * send instead of reading the file.
+	 *
+	 * @param data the contents of the file
+	 */
+	public void setData(ByteBuffer data) {
+		this.data = data;
+	}
+	
+	/**
+	 * Returns whether the contents of the file have been set and the file 
+	 * will not be read.
+	 *
+	 * @return contents set or not
+	 */
+	public boolean hasData() {
+		return data != null;
+	}
+	
+	/**
+	 * Reads bytes of the file from its contents, if set, or from a channel.
+	 *
+	 * @param channel channel of the file; not used, if the contents are set
+	 * @param dst buffer to read into
+	 * @param position position in the file
+	 * @return the number of bytes read or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		if (data == null) return channel.read(dst, position);
+		if (position >= data.limit()) return -1;
+		ByteBuffer src = data.duplicate();
+		src.position((int) position);
+		src.limit((int) Math.min(data.limit(), position + dst.remaining()));
+		int n = src.remaining();
+		dst.put(src);
+		return n;
+	}
+
+	public List<Part> getParts() {
+		return parts;
+	}
+
+	/**
+	 * Returns the content type of a multipart body.
+	 *
+	 * @return content type or <code>null</code>, if the body is a region
+	 * 		of the file
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the number of bytes in the body.
+	 *
+	 * @return content length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the body to a stream with the calling thread.
+	 *
+	 * @param out the stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		try (FileChannel channel = data != null? null : FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (Part p: parts) {
+				out.write(p.header);
+				long position = p.position;
+				long remaining = p.length;
+				while (remaining > 0) {
+					bb.clear();
+					if (remaining < bb.capacity()) bb.limit((int) remaining);
+					int n = read(channel, bb, position);
+					if (n < 0) throw new IOException("File truncated during download: " + file.getAbsolutePath());
+					out.write(buffer, 0, n);
+					position += n;
+					remaining -= n;
+				}
+			}
+		}
+	}
+}
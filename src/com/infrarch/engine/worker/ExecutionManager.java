@@ -0,0 +1,257 @@
+package com.infrarch.engine.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Manages the threads used by the engine to execute work in parallel
+ * with the container's request threads.
+ * <p>
+ * Two executors are kept: the shared executor, on which commands run
+ * parts of their work in parallel, and the request executor, to which the
+ * engine hands whole requests, if {@code ConfigurationManager.KEY_EXECUTOR_REQUESTS}
+ * is set. The request executor starts a virtual thread per request, if the
+ * Java runtime supports virtual threads, and uses a pool otherwise.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ExecutionManager {
+
+	private static final Logger logger = Logger.getLogger(ExecutionManager.class);
+	private static final ExecutionManager instance = new ExecutionManager();
+
+	private ExecutorService executor = null;
+	private ExecutorService requestExecutor = null;
+	private ScheduledExecutorService scheduler = null;
+
+	/**
+	 * Work on a number of items.
+	 */
+	public interface Task<T> {
+
+		/**
+		 * Works on an item.
+		 *
+		 * @param item the item
+		 * @param index index of the item
+		 * @throws Exception
+		 */
+		void run(T item, int index) throws Exception;
+	}
+
+	private ExecutionManager() {}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static ExecutionManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the shared executor. The executor is created on first use with
+	 * the number of threads configured by {@code ConfigurationManager.KEY_EXECUTOR_THREADS}.
+	 *
+	 * @return the shared executor
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threads = ConfigurationManager.getInstance().getExecutorThreads();
+			executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Engine Worker "));
+			logger.info("Started executor with " + threads + " threads");
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns the executor to hand requests to.
+	 *
+	 * @return the request executor
+	 */
+	public synchronized ExecutorService getRequestExecutor() {
+		if (requestExecutor == null) {
+			requestExecutor = newVirtualThreadExecutor();
+			if (requestExecutor != null) {
+				logger.info("Started request executor with virtual threads");
+			}
+			else {
+				int threads = ConfigurationManager.getInstance().getRequestExecutorThreads();
+				requestExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Engine Request "));
+				logger.info("Started request executor with " + threads + " threads");
+			}
+		}
+		return requestExecutor;
+	}
+
+	/**
+	 * Returns the scheduler for delayed tasks, e.g. resuming paced transfers. 
+	 * Scheduled tasks should return quickly.
+	 *
+	 * @return the scheduler
+	 */
+	public synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Engine Scheduler "));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Creates a virtual thread per task executor through reflection, as the
+	 * engine is built for runtimes without virtual threads.
+	 *
+	 * @return the executor or <code>null</code>, if not supported
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks a single request may have running
+	 * on the shared executor at the same time.
+	 *
+	 * @return maximum number of tasks per request
+	 */
+	public int getParallelism() {
+		return ConfigurationManager.getInstance().getExecutorThreads();
+	}
+
+	/**
+	 * Runs a task for each item of a list in parallel and returns when all
+	 * of them have completed. The calling thread works on the items too,
+	 * so the method completes even if the shared executor is busy, and it
+	 * may be called from tasks running on the shared executor. If a task
+	 * fails, the items not started yet are skipped and the exception of the
+	 * first failure is thrown.
+	 *
+	 * @param items items to work on
+	 * @param task the task
+	 * @throws Exception the exception thrown by the first failed task
+	 */
+	public <T> void forEach(final List<T> items, final Task<T> task) throws Exception {
+		final int n = items.size();
+		if (n == 0) return;
+
+		final AtomicInteger next = new AtomicInteger();
+		final Exception[] failure = new Exception[1];
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < n) {
+					try {
+						task.run(items.get(i), i);
+					} catch (Exception e) {
+						synchronized (failure) {
+							if (failure[0] == null) failure[0] = e;
+						}
+						next.set(n);
+					}
+				}
+			}
+		};
+
+		// the helpers only take items the caller has not taken yet
+		List<Helper> helpers = new ArrayList<Helper>();
+		int count = Math.min(n, getParallelism()) - 1;
+		try {
+			for (int i = 0; i < count; i++) {
+				Helper h = new Helper(worker);
+				h.future = getExecutor().submit(h);
+				helpers.add(h);
+			}
+		} catch (RejectedExecutionException e) {
+			// shutting down; the caller does the work
+		}
+		worker.run();
+		
+		// helpers which have not started have nothing left to do; do not
+		// wait for a thread to become free for them
+		for (Helper h: helpers) {
+			if (h.started.compareAndSet(false, true)) {
+				h.future.cancel(false);
+				continue;
+			}
+			try {
+				h.future.get();
+			} catch (ExecutionException e) {
+				logger.error("Task failed", e.getCause());
+			}
+		}
+		synchronized (failure) {
+			if (failure[0] != null) throw failure[0];
+		}
+	}
+
+	/**
+	 * Stops the executors at server shutdown.
+	 */
+	public static synchronized void destroyInstance() {
+		if (instance.executor != null) {
+			instance.executor.shutdownNow();
+			instance.executor = null;
+		}
+		if (instance.requestExecutor != null) {
+			instance.requestExecutor.shutdownNow();
+			instance.requestExecutor = null;
+		}
+		if (instance.scheduler != null) {
+			instance.scheduler.shutdownNow();
+			instance.scheduler = null;
+		}
+	}
+
+	/**
+	 * Runs a worker, unless the caller has claimed it first.
+	 */
+	private static class Helper implements Runnable {
+		
+		final AtomicBoolean started = new AtomicBoolean();
+		final Runnable worker;
+		Future<?> future;
+		
+		Helper(Runnable worker) {
+			this.worker = worker;
+		}
+		
+		@Override
+		public void run() {
+			if (started.compareAndSet(false, true)) worker.run();
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
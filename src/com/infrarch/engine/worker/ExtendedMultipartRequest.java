@@ -2,73 +2,232 @@ package com.infrarch.engine.worker;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
-import com.oreilly.servlet.MultipartRequest;
-import com.oreilly.servlet.multipart.DefaultFileRenamePolicy;
-import com.oreilly.servlet.multipart.FileRenamePolicy;
-
+/**
+ * Receives the files of a {@code multipart/form-data} request into a
+ * directory. The request body is parsed as it arrives by a
+ * {@link MultipartParser} and each file is written straight to a temporary
+ * file in the directory, hidden as a system file (see {@link #TEMP_PREFIX}).
+ * Only when a file has been received completely is it renamed to its name,
+ * so no incomplete file is ever seen under that name and an overwritten
+ * file is replaced atomically.
+ * <p>
+ * The files are hashed with SHA-256 as they are received, if the
+ * {@link DigestIndex} or the {@link BlobStore} is enabled: the hashes are
+ * recorded in the index and the contents are shared with identical files.
+ * <p>
+ * If a file of the same name exists and the request does not overwrite,
+ * a number is added to the name of the new file: {@code name1.ext},
+ * {@code name2.ext} and so on.
+ * <p>
+ * The body is read with blocking reads on the calling thread, as the
+ * parser pulls its input. Large files are best sent as resumable uploads,
+ * whose chunks are read with non-blocking I/O (see {@link AsyncUpload}).
+ */
 public class ExtendedMultipartRequest {
-	private static class ExtendedRenamePolicy implements FileRenamePolicy {
-		private LinkedList<File> files  = new LinkedList<File>();
-		private LinkedList<File> originalFiles = new LinkedList<File>();
-		private FileRenamePolicy policy;
-		
-		public ExtendedRenamePolicy(FileRenamePolicy policy) {
-			this.policy = policy;
-		}
-		
-		public File rename(File originalFile) {
-			File file = policy.rename(originalFile);
-			files.add(file);
-			originalFiles.add(originalFile);
-			return file;
+
+	/**
+	 * The name prefix of the temporary files of uploads in progress.
+	 */
+	public static final String TEMP_PREFIX = ".upload-";
+
+	private static final int MAX_FIELD_SIZE = 1024*1024;
+	private static final int MAX_RENAMES = 9999;
+
+	private LinkedList<File> files = new LinkedList<File>();
+	private LinkedList<File> originalFiles = new LinkedList<File>();
+	private Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+	private Map<String, File> fileParameters = new HashMap<String, File>();
+	private Map<File, String> hashes = new HashMap<File, String>();
+
+	/**
+	 * Receives the files of a request.
+	 *
+	 * @param request the request
+	 * @param saveDirectory directory to save the files to
+	 * @param maxPostSize maximum length of the request body, or a negative
+	 * 		value for no limit
+	 * @param encoding charset of the field values and file names
+	 * @param overwrite replace files of the same name or not
+	 * @throws IOException if the request is not multipart, is too long or
+	 * 		cannot be read, or a file cannot be written
+	 */
+	public ExtendedMultipartRequest(HttpServletRequest request,
+			String saveDirectory, long maxPostSize, String encoding, boolean overwrite)
+			throws IOException {
+		String boundary = MultipartParser.getBoundary(request.getContentType());
+		if (boundary == null) throw new IOException("Posted content type isn't multipart/form-data");
+		long length = request.getContentLengthLong();
+		if (maxPostSize >= 0 && length > maxPostSize) {
+			throw new IOException("Posted content length of " + length + " exceeds limit of " + maxPostSize);
 		}
+		File dir = new File(saveDirectory);
+		if (!dir.isDirectory()) throw new IOException("Not a directory: " + saveDirectory);
 
-		public File[] getFiles() {
-			return files.toArray(new File[files.size()]);
+		MultipartParser parser = new MultipartParser(request.getInputStream(), boundary, maxPostSize, Charset.forName(encoding));
+		while (parser.next()) {
+			String name = parser.getName();
+			String fileName = parser.getFileName();
+			if (name == null) continue;
+			if (fileName == null) {
+				List<String> values = parameters.get(name);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					parameters.put(name, values);
+				}
+				values.add(parser.readBody(MAX_FIELD_SIZE));
+			}
+			else if (!fileName.isEmpty() && !fileName.equals(".") && !fileName.equals("..")) {
+				String[] hash = new String[1];
+				File f = receive(parser, dir, fileName, overwrite, hash);
+				files.add(f);
+				if (hash[0] != null) hashes.put(f, hash[0]);
+				originalFiles.add(new File(dir, fileName));
+				fileParameters.put(name, f);
+			}
 		}
-		
-		public File[] getOriginalFiles() {
-			return originalFiles.toArray(new File[originalFiles.size()]);
+	}
+
+	/**
+	 * Writes the body of a part to a temporary file and renames it.
+	 *
+	 * @param hash receives the hash of the file, if it is hashed
+	 * @return the file
+	 */
+	private static File receive(MultipartParser parser, File dir, String fileName, boolean overwrite, String[] hash) throws IOException {
+		File tmp = File.createTempFile(TEMP_PREFIX, ".tmp", dir);
+		try {
+			BlobStore blobs = BlobStore.getInstance();
+			DigestIndex index = DigestIndex.getInstance();
+			final MessageDigest digest = blobs.isEnabled() || index.isEnabled()? BlobStore.createDigest() : null;
+			try (final FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+				WritableByteChannel out = channel;
+				if (digest != null) {
+					// hash the content as it is written
+					out = new WritableByteChannel() {
+						@Override
+						public int write(ByteBuffer src) throws IOException {
+							ByteBuffer hashed = src.duplicate();
+							int n = channel.write(src);
+							hashed.limit(hashed.position() + n);
+							digest.update(hashed);
+							return n;
+						}
+						
+						@Override
+						public boolean isOpen() {
+							return channel.isOpen();
+						}
+						
+						@Override
+						public void close() {
+							// the channel is closed by its owner
+						}
+					};
+				}
+				parser.readBody(out);
+			}
+			if (digest != null) hash[0] = BlobStore.toHex(digest.digest());
+			if (hash[0] != null && blobs.isEnabled()) tmp = blobs.share(tmp, hash[0]);
+			File f = publish(tmp, new File(dir, fileName), overwrite);
+			tmp = null;
+			index.put(f, hash[0]);
+			return f;
+		} finally {
+			if (tmp != null) tmp.delete();
 		}
 	}
-	
-	private ExtendedRenamePolicy policy;
-	private MultipartRequest multipartRequest;
-	
-	public ExtendedMultipartRequest(HttpServletRequest request,
-			String saveDirectory, int maxPostSize, String encoding, boolean overwrite)
-			throws IOException {
-		this.policy = new ExtendedRenamePolicy(overwrite ? new OverwriteFileRenamePolicy() : new DefaultFileRenamePolicy());
-		this.multipartRequest = new MultipartRequest(request, saveDirectory, maxPostSize, encoding, this.policy);
+
+	/**
+	 * Renames a received file to its name or, if a file of that name exists
+	 * and may not be overwritten, to the first free numbered name.
+	 *
+	 * @return the file
+	 */
+	static File publish(File tmp, File target, boolean overwrite) throws IOException {
+		if (overwrite) {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return target;
+		}
+
+		String name = target.getName();
+		int idx = name.lastIndexOf('.');
+		String body = idx > 0? name.substring(0, idx) : name;
+		String ext = idx > 0? name.substring(idx) : "";
+		File f = target;
+		for (int count = 1; count <= MAX_RENAMES; count++) {
+			try {
+				// a link fails if the name is taken, where a rename would replace
+				Files.createLink(f.toPath(), tmp.toPath());
+				Files.delete(tmp.toPath());
+				return f;
+			} catch (FileAlreadyExistsException e) {
+				f = new File(target.getParentFile(), body + count + ext);
+			} catch (UnsupportedOperationException e) {
+				if (!f.exists()) {
+					Files.move(tmp.toPath(), f.toPath());
+					return f;
+				}
+				f = new File(target.getParentFile(), body + count + ext);
+			}
+		}
+		throw new IOException("No free name for file: " + target.getAbsolutePath());
 	}
-	
+
 	public File[] getFiles() {
-		return policy.getFiles();
+		return files.toArray(new File[files.size()]);
 	}
-	
+
 	public File[] getOriginalFiles() {
-		return policy.getOriginalFiles();
+		return originalFiles.toArray(new File[originalFiles.size()]);
 	}
 
-	@SuppressWarnings("unchecked")
 	public Enumeration<String> getParameterNames() {
-		return multipartRequest.getParameterNames();
+		return Collections.enumeration(parameters.keySet());
 	}
-	
+
 	public String[] getParameterValues(String name) {
-		return multipartRequest.getParameterValues(name);
+		List<String> values = parameters.get(name);
+		return values == null? null : values.toArray(new String[values.size()]);
 	}
-	
+
 	public String getParameter(String name) {
-		return multipartRequest.getParameter(name);
+		List<String> values = parameters.get(name);
+		return values == null? null : values.get(values.size() - 1);
 	}
-	
+
 	public File getFile(String name) {
-		return multipartRequest.getFile(name);
+		return fileParameters.get(name);
+	}
+
+	/**
+	 * Returns the SHA-256 hash of a received file, computed as it was
+	 * written.
+	 *
+	 * @param f the file, as returned by {@link #getFiles()}
+	 * @return the hash as a hexadecimal string or <code>null</code>, if the
+	 * 		files were not hashed
+	 */
+	public String getSha256(File f) {
+		return hashes.get(f);
 	}
 }
@@ -2,6 +2,7 @@ package com.infrarch.engine.worker;
 
 import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -16,6 +17,8 @@ public class FileManager implements PeriodicalTask {
 	private static final Logger logger = Logger.getLogger(FileManager.class);
 	private static final FileManager instance = new FileManager();
 	
+	private final AtomicLong generation = new AtomicLong();
+	
 	private FileManager() {}
 	
 	/**
@@ -44,7 +47,33 @@ public class FileManager implements PeriodicalTask {
 	 * @return file is system or not
 	 */
 	public boolean isSystemFile(File f) {
-		return false;	//f.getName().startsWith("!");
+		// uploads in progress and the blob store
+		String name = f.getName();
+		return name.startsWith(ExtendedMultipartRequest.TEMP_PREFIX) || name.equals(BlobStore.BLOBS_DIR);
+	}
+	
+	/**
+	 * Notifies the manager that a file or directory has been created, changed 
+	 * or deleted by the engine.
+	 * 
+	 * @param f the file or directory
+	 */
+	public void changed(File f) {
+		generation.incrementAndGet();
+		ContentCache.getInstance().invalidate(f);
+		CompressedVariants.getInstance().invalidate(f);
+	}
+	
+	/**
+	 * Returns a number which changes each time a file or directory is 
+	 * changed through the engine. Results derived from the file system 
+	 * are still current, if the number has not changed since they were 
+	 * produced (and the files have not been changed outside the engine).
+	 * 
+	 * @return the number of changes
+	 */
+	public long getGeneration() {
+		return generation.get();
 	}
 	
 	private long sizeOnDisk = 0;
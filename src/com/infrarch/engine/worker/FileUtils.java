@@ -3,6 +3,15 @@ package com.infrarch.engine.worker;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -17,6 +26,8 @@ import org.apache.log4j.Logger;
 public class FileUtils {
 
 	private static final Logger logger = Logger.getLogger(FileUtils.class);
+	private static final int ZIP_BUFFER_SIZE = 64*1024;
+	private static final int COPY_BUFFER_SIZE = 256*1024;
 	
 	/**
 	 * Copies a file. If a file of the same name exists, a new name for 
@@ -104,7 +115,7 @@ public class FileUtils {
 		File result = nativeCopyFile(f, destDir);
 		
 		// see if should delete the bak file
-		if (overwrite && result != null) {
+		if (bakFile != null && result != null) {
 			bakFile.delete();
 		}
 		
@@ -114,8 +125,30 @@ public class FileUtils {
 	private static File nativeCopyFile(File f1, File destDir) {
 		logger.debug("Native copy of file " + f1.getAbsolutePath() + " to " + destDir.getAbsolutePath());
 		File destFile = getUniqueFileName(f1.getName(), destDir);
+		DigestIndex index = DigestIndex.getInstance();
 		try {
-			org.apache.commons.io.FileUtils.copyFile(f1, destFile);
+			// with the blob store the engine never changes a file in place, 
+			// so a copy can share the content of its source
+			if (BlobStore.getInstance().isEnabled() && linkFile(f1, destFile)) {
+				if (index.isEnabled()) {
+					// the source was not written by the engine or has changed
+					// since; hash the shared content, so the copy has a hash
+					String hash = index.get(f1);
+					if (hash == null) {
+						try {
+							hash = BlobStore.hash(destFile);
+						} catch (IOException e) {
+							destFile.delete();
+							throw e;
+						}
+						index.put(f1, hash);
+					}
+					index.put(destFile, hash);
+				}
+				return destFile;
+			}
+			if (index.isEnabled()) index.put(destFile, copyAndHash(f1, destFile));
+			else org.apache.commons.io.FileUtils.copyFile(f1, destFile);
 		} catch (IOException ioe) {
 			logger.debug("Could not copy " + f1.getAbsolutePath() + " to " + destDir.getAbsolutePath() + "; " + ioe);
 			return null;
@@ -143,6 +176,54 @@ public class FileUtils {
 		*/
 	}
 	
+	/**
+	 * Copies a file and hashes its content with SHA-256 as it is copied, 
+	 * so the copy need not be read again to be verified. The copy keeps 
+	 * the modification time of the source, like 
+	 * {@code org.apache.commons.io.FileUtils.copyFile}.
+	 * 
+	 * @return the hash as a hexadecimal string
+	 */
+	private static String copyAndHash(File src, File dest) throws IOException {
+		MessageDigest digest = BlobStore.createDigest();
+		boolean done = false;
+		try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+			while (in.read(buf) >= 0) {
+				buf.flip();
+				digest.update(buf.array(), 0, buf.limit());
+				while (buf.hasRemaining()) out.write(buf);
+				buf.clear();
+			}
+			done = true;
+		} finally {
+			if (!done) dest.delete();
+		}
+		if (src.length() != dest.length()) {
+			dest.delete();
+			throw new IOException("Failed to copy full contents from '" + src + "' to '" + dest + "'");
+		}
+		dest.setLastModified(src.lastModified());
+		return BlobStore.toHex(digest.digest());
+	}
+	
+	/**
+	 * Creates a hard link to a file.
+	 * 
+	 * @return <code>false</code>, if the file system does not support links
+	 * 		(e.g. across file systems)
+	 */
+	private static boolean linkFile(File f, File link) {
+		try {
+			Files.createLink(link.toPath(), f.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.debug("Could not link " + f.getAbsolutePath() + " to " + link.getAbsolutePath() + "; " + e);
+			return false;
+		}
+	}
+	
 	/**
 	 * Moves the file to the recycle bin (if such is supported) or
 	 * simply deletes it.
@@ -175,29 +256,52 @@ public class FileUtils {
 	public static boolean deleteDir(File dir) {
 		if (!dir.isDirectory()) throw new IllegalArgumentException("Not a directory: " + dir.getAbsolutePath());
 		
-		System.gc();
 		boolean b = FileUtils.deleteInDir(dir) && dir.delete();
 		if (b) logger.debug("Deleted directory: " + dir.getAbsolutePath());
 		else logger.warn("Failed deleting directory: " + dir.getAbsolutePath());
 		return b;
 	}
 
+	/**
+	 * Deletes the contents of a directory. The entries of the directory are
+	 * deleted in parallel, each sub-directory by a single thread.
+	 * 
+	 * @param dir directory to empty
+	 * @return success or failure
+	 */
 	public static boolean deleteInDir(File dir) {
 		File[] files = dir.listFiles();
+		if (files == null) return true;
+		
+		final AtomicBoolean b = new AtomicBoolean(true);
+		try {
+			ExecutionManager.getInstance().forEach(Arrays.asList(files), new ExecutionManager.Task<File>() {
+				@Override
+				public void run(File f, int index) {
+					if (!delete(f)) b.set(false);
+				}
+			});
+		} catch (Exception e) {
+			logger.error("Failed deleting files in directory: " + dir.getAbsolutePath(), e);
+			b.set(false);
+		}
 		
+		if (b.get()) logger.debug("Deleted all files in directory: " + dir.getAbsolutePath());
+		else logger.warn("Failed deleting all files in directory: " + dir.getAbsolutePath());
+		return b.get();
+	}
+	
+	private static boolean delete(File f) {
 		boolean b = true;
-		if (files != null) {
-			for (int i = 0; i < files.length; i++) {
-				if (files[i].isDirectory()) {
-					if (!deleteDir(files[i])) b = false;
+		if (f.isDirectory()) {
+			File[] files = f.listFiles();
+			if (files != null) {
+				for (int i = 0; i < files.length; i++) {
+					if (!delete(files[i])) b = false;
 				}
-				if (!files[i].delete()) b = false;
 			}
-			if (b) logger.debug("Deleted all files in directory: " + dir.getAbsolutePath());
-			else logger.warn("Failed deleting all files in directory: " + dir.getAbsolutePath());
 		}
-		
-		return b;
+		return f.delete() && b;
 	}
 	
 	/**
@@ -254,39 +358,67 @@ public class FileUtils {
 	}
 	
 	public static boolean copyDir(File srcDir, File destDir) {
-		boolean b = nativeCopyDir(srcDir, destDir);
+		boolean b = nativeCopyDir(srcDir, destDir, true);
 		return b;
 	}
 	
 	public static boolean moveDir(File srcDir, File destDir) {
-		boolean b = nativeCopyDir(srcDir, destDir);
+		boolean b = nativeCopyDir(srcDir, destDir, true);
 		return b && deleteDir(srcDir);
 	}
 	
-	private static boolean nativeCopyDir(File srcDir, File destDir) {
+	/**
+	 * Copies a directory into the destination directory. If the copy is
+	 * a new directory, its entries are copied in parallel, each sub-directory 
+	 * by a single thread; otherwise unique names have to be found for 
+	 * the copied files and they are copied one by one.
+	 */
+	private static boolean nativeCopyDir(File srcDir, File destDir, boolean parallel) {
 		logger.debug("Native copy of directory " + srcDir.getAbsolutePath() + " to " + destDir.getAbsolutePath());
 		if (!srcDir.isDirectory()) return false;
 		File[] files = srcDir.listFiles();
 		if (files == null) return true;
 		
-		File destSubDir = new File(destDir, srcDir.getName());
-		if (!destSubDir.exists()) { if (!destSubDir.mkdirs()) return false; }
+		final File destSubDir = new File(destDir, srcDir.getName());
+		if (destSubDir.exists()) parallel = false;
+		else if (!destSubDir.mkdirs()) return false;
 		
 		long lastModified = srcDir.lastModified();
 		
-		boolean b = true;
-		for (int i = 0; i < files.length; i++) {
-			if (files[i].isDirectory()) {
-				if (!nativeCopyDir(files[i], new File(destSubDir, files[i].getName()))) b = false;
+		final AtomicBoolean b = new AtomicBoolean(true);
+		ExecutionManager.Task<File> task = new ExecutionManager.Task<File>() {
+			@Override
+			public void run(File f, int index) {
+				if (f.isDirectory()) {
+					if (!nativeCopyDir(f, destSubDir, false)) b.set(false);
+				}
+				else { 
+					if (nativeCopyFile(f, destSubDir) == null) b.set(false);
+				}
 			}
-			else { 
-				if (nativeCopyFile(files[i], destSubDir) == null) b = false;
+		};
+		
+		if (parallel) {
+			try {
+				ExecutionManager.getInstance().forEach(Arrays.asList(files), task);
+			} catch (Exception e) {
+				logger.error("Failed copying directory: " + srcDir.getAbsolutePath(), e);
+				b.set(false);
+			}
+		}
+		else {
+			for (int i = 0; i < files.length; i++) {
+				try {
+					task.run(files[i], i);
+				} catch (Exception e) {
+					b.set(false);
+				}
 			}
 		}
 		
 		destSubDir.setLastModified(lastModified);
 		
-		return b;
+		return b.get();
 	}
 	
 	public static String normalizeFileName(String name) {
@@ -340,59 +472,114 @@ public class FileUtils {
 		return FileUtils.zipDir(dir, out, recurse, dir);
 	}
 
+	/**
+	 * Zips the files in a directory, naming the entries by their path 
+	 * relative to a base directory.
+	 * 
+	 * @param dir the directory to zip
+	 * @param out a zip stream to use
+	 * @param recurse go into the tree or not
+	 * @param base the directory the entry names are relative to
+	 * @return the number of files zipped
+	 */
 	public static int zipDir(File dir, ZipOutputStream out, boolean recurse, File base) {
 		int nFiles = 0;
 		
 		File[] files = dir.listFiles();
 		if (files != null) {
 			for (int i = 0; i < files.length; i++) {
-				if (files[i].isDirectory() && recurse) nFiles += zipDir(files[i], out, true);
+				if (files[i].isDirectory()) {
+					if (recurse) nFiles += zipDir(files[i], out, true, base);
+				}
 				else {
-					String fileName = FileUtils.getRelativeDir(base, dir) + File.separator + files[i].getName();
-					while (fileName.startsWith(File.separator))
-						fileName = fileName.substring(1);
+					String fileName = getZipEntryName(base, files[i]);
 					if (fileName.length() == 0)
 						continue;
-					FileUtils.zipFile(files[i], out, fileName);
-					nFiles++;
+					if (FileUtils.zipFile(files[i], out, fileName) >= 0) nFiles++;
 				}
 			}
 		}
 	    
 		return nFiles;
 	}
+	
+	/**
+	 * Returns the name of the zip entry of a file: its path relative to a 
+	 * base directory, separated by '/'.
+	 * 
+	 * @param base the base directory
+	 * @param f the file
+	 * @return entry name
+	 */
+	public static String getZipEntryName(File base, File f) {
+		String name = base.toPath().relativize(f.toPath()).toString();
+		if (File.separatorChar != '/') name = name.replace(File.separatorChar, '/');
+		return name;
+	}
 
 	public static long zipFile(File f, ZipOutputStream out) {
 		return FileUtils.zipFile(f, out, f.getAbsolutePath());
 	}
 
 	public static long zipFile(File f, ZipOutputStream out, String fileName) {
+		try {
+			return zipFile(f, out, fileName, Deflater.DEFAULT_COMPRESSION);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds a file to a zip stream, compressed with the given level. Files 
+	 * which are already compressed are added with 
+	 * <code>Deflater.NO_COMPRESSION</code>: unlike a stored entry, whose 
+	 * size and checksum precede its data, such an entry is written in a 
+	 * single pass, with its sizes and checksum following the data, so the 
+	 * file is read once and may change while it is being read. Entries 
+	 * over 4GB are written in the Zip64 format by the stream.
+	 * 
+	 * @param f the file
+	 * @param out a zip stream to use; its level is changed
+	 * @param fileName name of the entry
+	 * @param level the compression level of the entry
+	 * @return the size of the file or -1, if the file could not be read 
+	 * 			and nothing has been written
+	 * @throws IOException on error after the entry has been started, which 
+	 * 			leaves the stream unusable
+	 */
+	public static long zipFile(File f, ZipOutputStream out, String fileName, int level) throws IOException {
 		// a buffer for reading the files
-		byte[] buf = new byte[1024];
-	
+		byte[] buf = new byte[ZIP_BUFFER_SIZE];
+		
+		ZipEntry entry = new ZipEntry(fileName);
+		entry.setTime(f.lastModified());
+		
+		InputStream in;
+		try {
+			in = new FileInputStream(f);
+		} catch (IOException e) {
+			return -1;
+		}
+		long size = 0;
 		try {
-	
-			FileInputStream in = new FileInputStream(f);
-	
 			// add ZIP entry to output stream.
-			ZipEntry entry = new ZipEntry(fileName);
-			entry.setTime(f.lastModified());
+			out.setLevel(level);
 			out.putNextEntry(entry);
 	
 			// transfer bytes from the file to the ZIP file
 			int len;
 			while ((len = in.read(buf)) > 0) {
 				out.write(buf, 0, len);
+				size += len;
 			}
 	
 			// complete the entry
 			out.closeEntry();
+		} finally {
 			in.close();
-		} catch (IOException e) {
-			return -1;
 		}
 		
-		return f.length();
+		return size;
 	}
 
 	public static String getRelativeDir(File parentDir, File dir) {
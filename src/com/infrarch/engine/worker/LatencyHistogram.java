@@ -0,0 +1,94 @@
+package com.infrarch.engine.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds with a fixed number of buckets.
+ * Buckets are log-linear: each power of two is split into 16 buckets, so
+ * any recorded value is reported within about 6% of its actual value, from
+ * one microsecond to about 19 hours. Recording is a few arithmetic
+ * operations and one atomic increment; it does not lock or allocate.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 36;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 *
+	 * @param micros value in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) micros = 0;
+		else if (micros > MAX_VALUE) micros = MAX_VALUE;
+		counts.incrementAndGet(index(micros));
+
+		long m = max.get();
+		while (micros > m && !max.compareAndSet(m, micros)) m = max.get();
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return value in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below which the parameter fraction of the recorded
+	 * values fall.
+	 *
+	 * @param fraction a fraction between 0 and 1, e.g. 0.99
+	 * @return value in microseconds or 0, if nothing is recorded
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the bucket of a value: values below 32 have a bucket each,
+	 * larger values share a bucket with the values which differ from them
+	 * in the bits below their highest {@code SUB_BITS + 1} bits only.
+	 */
+	static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return (shift << SUB_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the largest value of a bucket.
+	 */
+	static long highestValue(int index) {
+		if (index < 2*SUB_BUCKETS) return index;
+		int shift = (index >>> SUB_BITS) - 1;
+		long lowest = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
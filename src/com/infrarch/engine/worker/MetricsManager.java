@@ -0,0 +1,113 @@
+package com.infrarch.engine.worker;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the {@link CommandMetrics} of all executed commands. The metrics of
+ * a command are created on its first execution and registered as an MBean
+ * named {@code com.infrarch.engine:type=CommandMetrics,name=<command>}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class MetricsManager {
+
+	private static final Logger logger = Logger.getLogger(MetricsManager.class);
+	private static final MetricsManager instance = new MetricsManager();
+
+	public static final String JMX_DOMAIN = "com.infrarch.engine";
+
+	private final ConcurrentMap<String, CommandMetrics> metrics = new ConcurrentHashMap<String, CommandMetrics>();
+
+	private MetricsManager() {}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static MetricsManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the metrics of a command, creating them, if needed. Should only
+	 * be called for registered commands, so that clients cannot create
+	 * metrics at will.
+	 *
+	 * @param cmdStr command name
+	 * @return the command's metrics
+	 */
+	public CommandMetrics getMetrics(String cmdStr) {
+		String name = cmdStr.toLowerCase(Locale.ROOT);
+		CommandMetrics m = metrics.get(name);
+		if (m == null) {
+			CommandMetrics n = new CommandMetrics(name);
+			m = metrics.putIfAbsent(name, n);
+			if (m == null) {
+				m = n;
+				register(n);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Returns the metrics of all commands executed so far.
+	 *
+	 * @return metrics sorted by command name
+	 */
+	public List<CommandMetrics> getAllMetrics() {
+		List<CommandMetrics> list = new ArrayList<CommandMetrics>(metrics.values());
+		Collections.sort(list, new Comparator<CommandMetrics>() {
+			@Override
+			public int compare(CommandMetrics m1, CommandMetrics m2) {
+				return m1.getCommand().compareTo(m2.getCommand());
+			}
+		});
+		return list;
+	}
+
+	private void register(CommandMetrics m) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getObjectName(m.getCommand());
+			if (!server.isRegistered(name)) server.registerMBean(m, name);
+		} catch (JMException | SecurityException e) {
+			logger.warn("Could not register metrics MBean of command: " + m.getCommand(), e);
+		}
+	}
+
+	private static ObjectName getObjectName(String cmdStr) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=CommandMetrics,name=" + cmdStr);
+	}
+
+	/**
+	 * Unregisters the MBeans at server shutdown.
+	 */
+	public static void destroyInstance() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (CommandMetrics m: instance.metrics.values()) {
+			try {
+				ObjectName name = getObjectName(m.getCommand());
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+			} catch (JMException | SecurityException e) {
+				logger.warn("Could not unregister metrics MBean of command: " + m.getCommand(), e);
+			}
+		}
+		instance.metrics.clear();
+	}
+}
@@ -0,0 +1,353 @@
+package com.infrarch.engine.worker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses a {@code multipart/form-data} stream (RFC 7578) part by part,
+ * without buffering more than a block of it. The body of each part is read
+ * through {@link #readBody(WritableByteChannel)} or {@link #readBody(int)},
+ * and the boundary is found with the Boyer-Moore-Horspool algorithm, which
+ * skips most bytes of the data without comparing them.
+ * <p>
+ * A typical use:
+ * <pre>
+ * MultipartParser parser = new MultipartParser(in, boundary, max, charset);
+ * while (parser.next()) {
+ *     if (parser.getFileName() != null) parser.readBody(channel);
+ *     else value = parser.readBody(limit);
+ * }
+ * </pre>
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class MultipartParser {
+
+	public static final int BUFFER_SIZE = 256*1024;
+
+	private static final int MAX_HEADER_LINE = 8*1024;
+	private static final int MAX_HEADERS = 64;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final InputStream in;
+	private final long maxSize;
+	private final Charset charset;
+
+	/**
+	 * The delimiter of the parts: CRLF, two dashes and the boundary.
+	 */
+	private final byte[] delimiter;
+	private final int[] skip = new int[256];
+
+	private final byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+	private long total = 0;
+
+	private boolean inBody = false;
+	private boolean done = false;
+
+	private String name;
+	private String fileName;
+	private String contentType;
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param in the stream to parse
+	 * @param boundary the boundary of the parts
+	 * @param maxSize maximum number of bytes to read from the stream,
+	 * 		or a negative value for no limit
+	 * @param charset the charset of the headers and the fields
+	 */
+	public MultipartParser(InputStream in, String boundary, long maxSize, Charset charset) {
+		this.in = in;
+		this.maxSize = maxSize;
+		this.charset = charset;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buf = new byte[Math.max(BUFFER_SIZE, 2*delimiter.length + MAX_HEADER_LINE)];
+
+		int last = delimiter.length - 1;
+		for (int i = 0; i < skip.length; i++) skip[i] = delimiter.length;
+		for (int i = 0; i < last; i++) skip[delimiter[i] & 0xff] = last - i;
+
+		// the first delimiter is not preceded by CRLF
+		buf[0] = '\r';
+		buf[1] = '\n';
+		limit = 2;
+		inBody = true;
+	}
+
+	/**
+	 * Returns the boundary set by a {@code multipart/form-data} content type.
+	 *
+	 * @param contentType the content type
+	 * @return the boundary or <code>null</code>, if the content type is not
+	 * 		multipart or has no boundary
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) return null;
+		String boundary = getHeaderParameter(contentType, "boundary");
+		return boundary == null || boundary.isEmpty() || boundary.length() > 70? null : boundary;
+	}
+
+	/**
+	 * Moves to the next part, skipping what is left of the current one.
+	 *
+	 * @return <code>true</code>, if there is a next part, or <code>false</code>
+	 * 		at the end of the stream
+	 * @throws IOException if the stream cannot be read, is malformed or too long
+	 */
+	public boolean next() throws IOException {
+		if (done) return false;
+		while (inBody) {
+			if (skipBody() < 0) break;
+		}
+
+		// the delimiter is followed by two dashes at the end, or by CRLF
+		if (!ensure(2)) throw new IOException("Unexpected end of multipart stream");
+		if (buf[pos] == '-' && buf[pos + 1] == '-') {
+			done = true;
+			return false;
+		}
+		String line = readLine();
+		if (!line.trim().isEmpty()) throw new IOException("Malformed multipart delimiter");
+
+		readHeaders();
+		inBody = true;
+		return true;
+	}
+
+	private void readHeaders() throws IOException {
+		name = null;
+		fileName = null;
+		contentType = null;
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		String line;
+		while (!(line = readLine()).isEmpty()) {
+			if (headers.size() == MAX_HEADERS) throw new IOException("Too many multipart headers");
+			int idx = line.indexOf(':');
+			if (idx <= 0) continue;
+			headers.put(line.substring(0, idx).trim().toLowerCase(Locale.ROOT), line.substring(idx + 1).trim());
+		}
+
+		String disposition = headers.get("content-disposition");
+		if (disposition != null) {
+			name = getHeaderParameter(disposition, "name");
+			fileName = getHeaderParameter(disposition, "filename");
+			if (fileName != null) {
+				// some browsers send the whole path
+				fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+			}
+		}
+		contentType = headers.get("content-type");
+	}
+
+	/**
+	 * Returns a parameter of a header value, like the {@code name} of
+	 * {@code form-data; name="file"}.
+	 */
+	private static String getHeaderParameter(String header, String param) {
+		int i = header.indexOf(';');
+		while (i >= 0 && i < header.length()) {
+			int eq = header.indexOf('=', i + 1);
+			if (eq < 0) return null;
+			String key = header.substring(i + 1, eq).trim();
+			String value;
+			int end;
+			if (eq + 1 < header.length() && header.charAt(eq + 1) == '"') {
+				StringBuilder sb = new StringBuilder();
+				end = eq + 2;
+				while (end < header.length() && header.charAt(end) != '"') {
+					// backslashes are not escapes in file names sent by IE
+					sb.append(header.charAt(end++));
+				}
+				value = sb.toString();
+				end = header.indexOf(';', end);
+			}
+			else {
+				end = header.indexOf(';', eq + 1);
+				value = header.substring(eq + 1, end < 0? header.length() : end).trim();
+			}
+			if (key.equalsIgnoreCase(param)) return value;
+			i = end;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the name of the form field of the current part.
+	 *
+	 * @return field name or <code>null</code>
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the name of the file sent in the current part, without any
+	 * path. A file input left empty has a file name, which is empty.
+	 *
+	 * @return file name or <code>null</code>, if the part is not a file
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Returns the content type of the current part.
+	 *
+	 * @return content type or <code>null</code>
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Writes the body of the current part to a channel.
+	 *
+	 * @param out the channel to write to
+	 * @return the number of bytes written
+	 * @throws IOException if the stream cannot be read, is malformed or
+	 * 		too long, or the channel cannot be written
+	 */
+	public long readBody(WritableByteChannel out) throws IOException {
+		long bytes = 0;
+		int n;
+		while ((n = nextBodyBlock()) >= 0) {
+			ByteBuffer b = ByteBuffer.wrap(buf, pos, n);
+			while (b.hasRemaining()) out.write(b);
+			pos += n;
+			bytes += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reads the body of the current part as a string.
+	 *
+	 * @param max maximum number of bytes of the body
+	 * @return the body
+	 * @throws IOException if the stream cannot be read, is malformed or
+	 * 		too long, or the body is longer than {@code max}
+	 */
+	public String readBody(int max) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int n;
+		while ((n = nextBodyBlock()) >= 0) {
+			if (out.size() + n > max) throw new IOException("Multipart field too long: " + name);
+			out.write(buf, pos, n);
+			pos += n;
+		}
+		return new String(out.toByteArray(), charset);
+	}
+
+	private int skipBody() throws IOException {
+		int n = nextBodyBlock();
+		if (n > 0) pos += n;
+		return n;
+	}
+
+	/**
+	 * Finds the next block of the body of the current part in the buffer.
+	 *
+	 * @return the number of bytes of the body from the buffer's position, or
+	 * 		-1 at the end of the body, with the delimiter consumed
+	 */
+	private int nextBodyBlock() throws IOException {
+		if (!inBody) return -1;
+		while (true) {
+			int idx = indexOfDelimiter();
+			if (idx == pos) {
+				pos += delimiter.length;
+				inBody = false;
+				return -1;
+			}
+			if (idx > pos) return idx - pos;
+
+			// the end of the buffer may be the start of the delimiter
+			int safe = limit - pos - (delimiter.length - 1);
+			if (safe > 0) return safe;
+			if (eof) throw new IOException("Unexpected end of multipart stream");
+			fill();
+		}
+	}
+
+	/**
+	 * Finds the delimiter in the buffer.
+	 *
+	 * @return its index or -1
+	 */
+	private int indexOfDelimiter() {
+		int last = delimiter.length - 1;
+		int i = pos;
+		while (i + last < limit) {
+			int j = last;
+			while (buf[i + j] == delimiter[j]) {
+				if (j == 0) return i;
+				j--;
+			}
+			i += skip[buf[i + last] & 0xff];
+		}
+		return -1;
+	}
+
+	private String readLine() throws IOException {
+		int scanned = 0;
+		while (true) {
+			for (int i = pos + scanned; i + 1 < limit; i++) {
+				if (buf[i] == CRLF[0] && buf[i + 1] == CRLF[1]) {
+					String line = new String(buf, pos, i - pos, charset);
+					pos = i + 2;
+					return line;
+				}
+			}
+			if (limit - pos > MAX_HEADER_LINE) throw new IOException("Multipart header line too long");
+			if (eof) throw new IOException("Unexpected end of multipart stream");
+			scanned = Math.max(0, limit - pos - 1);
+			fill();
+		}
+	}
+
+	/**
+	 * Makes sure the buffer has a number of bytes from its position.
+	 *
+	 * @return <code>false</code>, if the stream has ended first
+	 */
+	private boolean ensure(int n) throws IOException {
+		while (limit - pos < n) {
+			if (eof) return false;
+			fill();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the unread bytes to the start of the buffer and reads more.
+	 */
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+			return;
+		}
+		limit += n;
+		total += n;
+		if (maxSize >= 0 && total > maxSize) throw new IOException("Posted content exceeds limit of " + maxSize + " bytes");
+	}
+}
@@ -0,0 +1,288 @@
+package com.infrarch.engine.worker;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.infrarch.engine.constants.Cmd;
+
+/**
+ * Limits the rate of requests and the number of concurrent transfers per
+ * user and per client IP address.
+ * <p>
+ * Request rates are limited by token buckets implemented with the generic
+ * cell rate algorithm: each key keeps the time at which its bucket will be
+ * full again, which a request moves forward by one emission interval with
+ * a single compare-and-set. A request is rejected, if this would move it
+ * further than the burst allows. Transfers are limited by counters acting
+ * as semaphores. Neither locks.
+ * <p>
+ * The limits are read from the configuration every time the periodical task
+ * runs, so changed settings take effect within a second. A limit of 0
+ * disables the respective check.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class RateLimiter implements PeriodicalTask {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long EVICTION_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+	private static final Set<String> TRANSFERS = new HashSet<String>(Arrays.asList(
+			Cmd.DOWNLOAD, Cmd.DOWNLOAD_DIR, Cmd.DOWNLOAD_MANY, Cmd.UPLOAD, 
+			Cmd.UPLOAD_CHUNK));
+
+	private static final RateLimiter instance = new RateLimiter();
+
+	private final ConcurrentMap<String, AtomicLong> userBuckets = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> ipBuckets = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicInteger> userTransfers = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> ipTransfers = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final LongAdder rejectedRequests = new LongAdder();
+	private final LongAdder rejectedTransfers = new LongAdder();
+
+	private volatile Limit userLimit = Limit.NONE;
+	private volatile Limit ipLimit = Limit.NONE;
+	private volatile int maxUserTransfers = 0;
+	private volatile int maxIpTransfers = 0;
+	private long lastEviction = System.nanoTime();
+
+	/**
+	 * Emission interval and burst tolerance of a token bucket.
+	 */
+	private static class Limit {
+
+		static final Limit NONE = new Limit(0, 0);
+
+		final long interval;
+		final long tolerance;
+
+		Limit(int rate, int burst) {
+			interval = rate > 0? SECOND / rate : 0;
+			tolerance = interval * Math.max(0, burst - 1);
+		}
+
+		Limit(ConfigurationManager config, String rateKey, String burstKey) {
+			this(config.getInt(rateKey, 0), config.getInt(burstKey, 1));
+		}
+	}
+
+	private RateLimiter() {
+		configure();
+	}
+
+	/**
+	 * Returns the single limiter instance.
+	 *
+	 * @return limiter instance
+	 */
+	public static RateLimiter getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Reads the limits from the configuration.
+	 */
+	private void configure() {
+		ConfigurationManager config = ConfigurationManager.getInstance();
+		userLimit = new Limit(config, ConfigurationManager.KEY_LIMIT_USER_RATE, ConfigurationManager.KEY_LIMIT_USER_BURST);
+		ipLimit = new Limit(config, ConfigurationManager.KEY_LIMIT_IP_RATE, ConfigurationManager.KEY_LIMIT_IP_BURST);
+		maxUserTransfers = config.getInt(ConfigurationManager.KEY_LIMIT_USER_TRANSFERS, 0);
+		maxIpTransfers = config.getInt(ConfigurationManager.KEY_LIMIT_IP_TRANSFERS, 0);
+	}
+
+	/**
+	 * Admits a request or not. Requests of users who have not logged in
+	 * are only limited by IP address.
+	 *
+	 * @param user user name or <code>null</code>, if not logged in
+	 * @param ip client IP address
+	 * @return 0, if the request is admitted, or the number of seconds after
+	 * 		which the client may try again
+	 */
+	public int acquire(String user, String ip) {
+		long now = System.nanoTime();
+		long wait = take(ipBuckets, ip, ipLimit, now);
+		if (wait == 0 && user != null) wait = take(userBuckets, user, userLimit, now);
+		if (wait == 0) return 0;
+
+		rejectedRequests.increment();
+		return (int) Math.max(1, (wait + SECOND - 1) / SECOND);
+	}
+
+	/**
+	 * Takes a token from a bucket.
+	 *
+	 * @return 0 on success or the time to wait in nanoseconds
+	 */
+	private static long take(ConcurrentMap<String, AtomicLong> buckets, String key, Limit limit, long now) {
+		if (limit.interval == 0 || key == null) return 0;
+
+		// the time at which the bucket will be full again
+		AtomicLong tat = buckets.get(key);
+		if (tat == null) {
+			AtomicLong n = new AtomicLong(now);
+			tat = buckets.putIfAbsent(key, n);
+			if (tat == null) tat = n;
+		}
+
+		while (true) {
+			long t = tat.get();
+			long start = t - now < 0? now : t;
+			long wait = start - now - limit.tolerance;
+			if (wait > 0) return wait;
+			if (tat.compareAndSet(t, start + limit.interval)) return 0;
+		}
+	}
+
+	/**
+	 * Returns whether a command transfers file data and is subject to the
+	 * transfer limits.
+	 *
+	 * @param cmdStr command name
+	 * @return a transfer or not
+	 */
+	public boolean isTransfer(String cmdStr) {
+		return cmdStr != null && TRANSFERS.contains(cmdStr.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns whether the number of concurrent transfers is limited, either
+	 * per user or per IP address.
+	 *
+	 * @return limited or not
+	 */
+	public boolean isTransferLimited() {
+		return maxUserTransfers > 0 || maxIpTransfers > 0;
+	}
+
+	/**
+	 * Starts a transfer, if neither the user nor the IP address have reached
+	 * their maximum number of concurrent transfers. A successful call must be
+	 * followed by a call to {@link #releaseTransfer(String, String)}.
+	 *
+	 * @param user user name
+	 * @param ip client IP address
+	 * @return started or not
+	 */
+	public boolean acquireTransfer(String user, String ip) {
+		if (!increment(ipTransfers, ip, maxIpTransfers)) {
+			rejectedTransfers.increment();
+			return false;
+		}
+		if (!increment(userTransfers, user, maxUserTransfers)) {
+			decrement(ipTransfers, ip);
+			rejectedTransfers.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ends a transfer started by {@link #acquireTransfer(String, String)}.
+	 *
+	 * @param user user name
+	 * @param ip client IP address
+	 */
+	public void releaseTransfer(String user, String ip) {
+		decrement(userTransfers, user);
+		decrement(ipTransfers, ip);
+	}
+
+	private static boolean increment(ConcurrentMap<String, AtomicInteger> counters, String key, int max) {
+		if (max <= 0 || key == null) return true;
+
+		AtomicInteger c = counters.get(key);
+		if (c == null) {
+			AtomicInteger n = new AtomicInteger();
+			c = counters.putIfAbsent(key, n);
+			if (c == null) c = n;
+		}
+
+		while (true) {
+			int v = c.get();
+			if (v >= max) return false;
+			if (c.compareAndSet(v, v + 1)) return true;
+		}
+	}
+
+	private static void decrement(ConcurrentMap<String, AtomicInteger> counters, String key) {
+		AtomicInteger c = key == null? null : counters.get(key);
+		if (c == null) return;
+
+		// the limit may have been changed after the transfer has started
+		while (true) {
+			int v = c.get();
+			if (v <= 0) return;
+			if (c.compareAndSet(v, v - 1)) return;
+		}
+	}
+
+	/**
+	 * Returns the number of requests rejected since the server was started.
+	 *
+	 * @return rejected requests
+	 */
+	public long getRejectedRequests() {
+		return rejectedRequests.sum();
+	}
+
+	/**
+	 * Returns the number of transfers rejected since the server was started.
+	 *
+	 * @return rejected transfers
+	 */
+	public long getRejectedTransfers() {
+		return rejectedTransfers.sum();
+	}
+
+	/**
+	 * Reloads the limits and, once a minute, forgets the buckets which are
+	 * full and the counters of users and IP addresses without transfers.
+	 */
+	@Override
+	public void runPeriodically() throws Throwable {
+		configure();
+
+		long now = System.nanoTime();
+		if (now - lastEviction < EVICTION_PERIOD) return;
+		lastEviction = now;
+
+		evictBuckets(userBuckets, now);
+		evictBuckets(ipBuckets, now);
+		evictCounters(userTransfers);
+		evictCounters(ipTransfers);
+	}
+
+	private static void evictBuckets(ConcurrentMap<String, AtomicLong> buckets, long now) {
+		for (Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, AtomicLong> e = it.next();
+
+			// a full bucket is the same as a new one
+			if (e.getValue().get() - now <= 0) buckets.remove(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Removes the counters at zero. A transfer which starts on a counter
+	 * being removed is not counted by the one created after it, so the
+	 * limit may briefly be exceeded by one.
+	 */
+	private static void evictCounters(ConcurrentMap<String, AtomicInteger> counters) {
+		for (Iterator<Map.Entry<String, AtomicInteger>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, AtomicInteger> e = it.next();
+			if (e.getValue().get() == 0) counters.remove(e.getKey(), e.getValue());
+		}
+	}
+}
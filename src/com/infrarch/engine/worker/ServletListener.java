@@ -25,7 +25,14 @@ public class ServletListener implements ServletContextListener {
 		if (tasks == null) {
 			if (ConfigurationManager.getInstance().isInitialized()) {
 				tasks = new PeriodicalTask[] {
-					FileManager.getInstance()
+					FileManager.getInstance(),
+					RateLimiter.getInstance(),
+					BandwidthManager.getInstance(),
+					ContentCache.getInstance(),
+					TokenManager.getInstance(),
+					UploadManager.getInstance(),
+					BlobStore.getInstance(),
+					DigestIndex.getInstance()
 				};		
 			}
 		}
@@ -55,6 +62,11 @@ public class ServletListener implements ServletContextListener {
 	public void contextDestroyed(ServletContextEvent event) {
 		Logger.getLogger(getClass()).info("Server shutting down...");
 		timer.cancel();
+		ExecutionManager.destroyInstance();
+		DirectoryWatcher.destroyInstance();
+		AccessLog.destroyInstance();
+		DigestIndex.destroyInstance();
+		MetricsManager.destroyInstance();
 		ConfigurationManager.destroyInstance();
 	}
 }
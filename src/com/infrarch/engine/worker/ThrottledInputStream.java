@@ -0,0 +1,71 @@
+package com.infrarch.engine.worker;
+
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * A request input stream pacing the data read through it to the bandwidth
+ * allotted to a transfer by the {@link BandwidthManager}. Only blocking
+ * reads are paced.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ThrottledInputStream extends ServletInputStream {
+
+	private final ServletInputStream in;
+	private final BandwidthManager.Transfer transfer;
+
+	public ThrottledInputStream(ServletInputStream in, BandwidthManager.Transfer transfer) {
+		this.in = in;
+		this.transfer = transfer;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) transfer.pace(1);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) transfer.pace(n);
+		return n;
+	}
+
+	@Override
+	public int readLine(byte[] b, int off, int len) throws IOException {
+		int n = in.readLine(b, off, len);
+		if (n > 0) transfer.pace(n);
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	@Override
+	public boolean isFinished() {
+		return in.isFinished();
+	}
+
+	@Override
+	public boolean isReady() {
+		return in.isReady();
+	}
+
+	@Override
+	public void setReadListener(ReadListener listener) {
+		in.setReadListener(listener);
+	}
+}
@@ -0,0 +1,41 @@
+package com.infrarch.engine.worker;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream pacing the data written through it to the bandwidth
+ * allotted to a transfer by the {@link BandwidthManager}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+	private static final int BLOCK_SIZE = 64*1024;
+
+	private final BandwidthManager.Transfer transfer;
+
+	public ThrottledOutputStream(OutputStream out, BandwidthManager.Transfer transfer) {
+		super(out);
+		this.transfer = transfer;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		transfer.pace(1);
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, BLOCK_SIZE);
+			transfer.pace(n);
+			out.write(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.infrarch.engine.worker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+import com.infrarch.engine.constants.Cmd;
+
+/**
+ * Issues and verifies signed bearer tokens, which authenticate requests
+ * without a session. A token carries the user's name and home directory
+ * and its expiry time, signed with HMAC-SHA256, so it can be verified by
+ * any server sharing the signing keys, without looking up the session or
+ * the user.
+ * <p>
+ * The keys are set by {@code ConfigurationManager.KEY_TOKEN_KEYS} as a comma
+ * separated list of {@code <key id>:<base64 secret>}. Tokens are signed with
+ * the first key and accepted, if signed with any of them, so a key can be
+ * rotated by putting a new one first and removing the old one once the
+ * tokens signed with it have expired. If no keys are set, a random key is
+ * generated, and tokens are only valid on this server until it is restarted.
+ * <p>
+ * Tokens cannot be revoked before they expire; their lifetime is set by
+ * {@code ConfigurationManager.KEY_TOKEN_TTL}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class TokenManager implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(TokenManager.class);
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final String BEARER = "Bearer ";
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+	private static final TokenManager instance = new TokenManager();
+
+	private volatile Keys keys;
+
+	/**
+	 * An issued or verified token.
+	 */
+	public static class Token {
+
+		private final String value;
+		private final String user;
+		private final String home;
+		private final long expires;
+
+		private Token(String value, String user, String home, long expires) {
+			this.value = value;
+			this.user = user;
+			this.home = home;
+			this.expires = expires;
+		}
+
+		/**
+		 * Returns the token as sent to the client.
+		 *
+		 * @return the token
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * Returns the user's name.
+		 *
+		 * @return user name
+		 */
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Returns the user's home directory, relative to the document root.
+		 *
+		 * @return home directory
+		 */
+		public String getHome() {
+			return home;
+		}
+
+		/**
+		 * Returns the time at which the token expires.
+		 *
+		 * @return time in milliseconds since the epoch
+		 */
+		public long getExpires() {
+			return expires;
+		}
+	}
+
+	/**
+	 * The configured keys, by key id.
+	 */
+	private static class Keys {
+
+		final String source;
+		final String signingId;
+		final Map<String, Mac> macs = new HashMap<String, Mac>();
+
+		Keys(String source) throws GeneralSecurityException {
+			this.source = source;
+			String first = null;
+			for (String entry: source.split(",")) {
+				entry = entry.trim();
+				int idx = entry.indexOf(':');
+				if (idx <= 0) continue;
+				String id = entry.substring(0, idx).trim();
+				byte[] secret;
+				try {
+					secret = Base64.getDecoder().decode(entry.substring(idx + 1).trim());
+				} catch (IllegalArgumentException e) {
+					logger.error("Token key is not base64: " + id);
+					continue;
+				}
+				if (secret.length < 32) {
+					logger.error("Token key shorter than 32 bytes: " + id);
+					continue;
+				}
+				macs.put(id, newMac(secret));
+				if (first == null) first = id;
+			}
+
+			if (first == null) {
+				byte[] secret = new byte[32];
+				new SecureRandom().nextBytes(secret);
+				first = "local";
+				macs.put(first, newMac(secret));
+				logger.warn("No token keys configured; tokens will only be valid on this server until restarted");
+			}
+			signingId = first;
+		}
+
+		private static Mac newMac(byte[] secret) throws GeneralSecurityException {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(secret, ALGORITHM));
+			return mac;
+		}
+
+		/**
+		 * Signs the data with a key. The initialized {@code Mac} of the key
+		 * is cloned, as it cannot be used by several threads.
+		 */
+		byte[] sign(String id, byte[] data) {
+			Mac mac = macs.get(id);
+			if (mac == null) return null;
+			try {
+				mac = (Mac) mac.clone();
+			} catch (CloneNotSupportedException e) {
+				synchronized (mac) {
+					return mac.doFinal(data);
+				}
+			}
+			return mac.doFinal(data);
+		}
+	}
+
+	private TokenManager() {}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static TokenManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the keys, reading them from the configuration, if they have
+	 * not been read yet.
+	 */
+	private Keys getKeys() {
+		Keys k = keys;
+		if (k == null) {
+			synchronized (this) {
+				if (keys == null) reload();
+				k = keys;
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Reads the keys from the configuration, if they have changed.
+	 */
+	private synchronized void reload() {
+		String source = ConfigurationManager.getInstance().getTokenKeys();
+		if (keys != null && keys.source.equals(source)) return;
+		try {
+			keys = new Keys(source);
+			logger.info("Loaded token keys; signing with key: " + keys.signingId);
+		} catch (GeneralSecurityException e) {
+			logger.error("Could not load token keys", e);
+		}
+	}
+
+	/**
+	 * Issues a token.
+	 *
+	 * @param user user name
+	 * @param home user's home directory
+	 * @return the token
+	 */
+	public Token issue(String user, String home) {
+		long expires = System.currentTimeMillis() + 1000L * ConfigurationManager.getInstance().getTokenTtl();
+		Keys k = getKeys();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(user);
+			out.writeUTF(home);
+			out.writeLong(expires);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// cannot happen
+		}
+		String signed = k.signingId + "." + encoder.encodeToString(bytes.toByteArray());
+		byte[] signature = k.sign(k.signingId, signed.getBytes(StandardCharsets.UTF_8));
+		return new Token(signed + "." + encoder.encodeToString(signature), user, home, expires);
+	}
+
+	/**
+	 * Verifies the token sent with a request in the {@code Authorization}
+	 * header or, e.g. for links and event sources, in the {@code Cmd.Q_TOKEN}
+	 * parameter.
+	 *
+	 * @param request the HTTP request
+	 * @return the token or <code>null</code>, if there is no token, or
+	 * 		it is not valid or has expired
+	 */
+	public Token verify(HttpServletRequest request) {
+		String token = null;
+		String header = request.getHeader("Authorization");
+		if (header != null && header.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+			token = header.substring(BEARER.length()).trim();
+		}
+		else {
+			token = request.getParameter(Cmd.Q_TOKEN);
+		}
+		return token == null || token.isEmpty()? null : verify(token);
+	}
+
+	/**
+	 * Verifies a token.
+	 *
+	 * @param token the token
+	 * @return the token or <code>null</code>, if it is not valid or has expired
+	 */
+	public Token verify(String token) {
+		int i1 = token.indexOf('.');
+		int i2 = token.lastIndexOf('.');
+		if (i1 <= 0 || i2 == i1) return null;
+
+		try {
+			String signed = token.substring(0, i2);
+			byte[] expected = getKeys().sign(token.substring(0, i1), signed.getBytes(StandardCharsets.UTF_8));
+			if (expected == null || !MessageDigest.isEqual(expected, decoder.decode(token.substring(i2 + 1)))) return null;
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(decoder.decode(token.substring(i1 + 1, i2))));
+			String user = in.readUTF();
+			String home = in.readUTF();
+			long expires = in.readLong();
+			if (expires < System.currentTimeMillis()) return null;
+			return new Token(token, user, home, expires);
+		} catch (IllegalArgumentException | IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reloads the keys, if they have been changed.
+	 */
+	@Override
+	public void runPeriodically() {
+		reload();
+	}
+}
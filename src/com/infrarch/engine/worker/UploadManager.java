@@ -0,0 +1,566 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the sessions of resumable uploads. A session receives a file of
+ * a known size in chunks, which may arrive in any order and in parallel.
+ * Each chunk is written at its offset into a temporary file in the target
+ * directory, allocated to the full size when the session starts and hidden
+ * as a system file (see {@link ExtendedMultipartRequest#TEMP_PREFIX}).
+ * When all bytes have been received, the session is committed: the file
+ * is renamed to its name, like the files of a multipart upload.
+ * <p>
+ * The ranges received are stored with the rest of the session in the
+ * {@link #UPLOADS_DIR} directory of the configuration root after each chunk,
+ * once the chunk has been written to the disk, so sessions survive restarts
+ * and a client can ask which ranges are missing. Sessions without a chunk
+ * for {@code ConfigurationManager.KEY_UPLOAD_SESSION_TTL} seconds are
+ * removed with their temporary files.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class UploadManager implements PeriodicalTask {
+
+	private static final Logger logger = Logger.getLogger(UploadManager.class);
+
+	public static final String UPLOADS_DIR = "uploads";
+
+	private static final String SESSION_SUFFIX = ".json";
+	private static final String PART_SUFFIX = ".part";
+	private static final int BUFFER_SIZE = 256*1024;
+	private static final long SWEEP_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+	private static UploadManager instance = null;
+
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * An upload in progress.
+	 */
+	public static class Session {
+
+		private final String id;
+		private final String user;
+		private final String dir;
+		private final String fileName;
+		private final long size;
+		private final boolean overwrite;
+		private final long created;
+		private long updated;
+
+		/**
+		 * The ranges received, as start and end offsets, merged.
+		 */
+		private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+		private int writers = 0;
+		private boolean closed = false;
+
+		private Session(String id, String user, String dir, String fileName, long size, boolean overwrite, long created) {
+			this.id = id;
+			this.user = user;
+			this.dir = dir;
+			this.fileName = fileName;
+			this.size = size;
+			this.overwrite = overwrite;
+			this.created = created;
+			this.updated = created;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Returns the target directory, relative to the document root.
+		 *
+		 * @return directory
+		 */
+		public String getDir() {
+			return dir;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the number of bytes received.
+		 *
+		 * @return bytes received
+		 */
+		public synchronized long getReceived() {
+			long received = 0;
+			for (Map.Entry<Long, Long> r: ranges.entrySet()) received += r.getValue() - r.getKey();
+			return received;
+		}
+
+		/**
+		 * Returns the ranges received.
+		 *
+		 * @return list of start and end (exclusive) offsets
+		 */
+		public synchronized List<long[]> getRanges() {
+			List<long[]> list = new ArrayList<long[]>(ranges.size());
+			for (Map.Entry<Long, Long> r: ranges.entrySet()) list.add(new long[] { r.getKey(), r.getValue() });
+			return list;
+		}
+
+		public synchronized boolean isComplete() {
+			Map.Entry<Long, Long> first = ranges.firstEntry();
+			return size == 0 || (ranges.size() == 1 && first.getKey() == 0 && first.getValue() == size);
+		}
+
+		private File getPartFile() {
+			return new File(new File(FileManager.getInstance().getDocRoot(), dir), ExtendedMultipartRequest.TEMP_PREFIX + id + PART_SUFFIX);
+		}
+
+		/**
+		 * Adds a range, merging it with the ranges it touches.
+		 */
+		private void add(long start, long end) {
+			Map.Entry<Long, Long> before = ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+			}
+			Map.Entry<Long, Long> after;
+			while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				ranges.remove(after.getKey());
+			}
+			ranges.put(start, end);
+		}
+
+		private JsonObject toJson() {
+			JsonArrayBuilder rs = Json.createArrayBuilder();
+			for (Map.Entry<Long, Long> r: ranges.entrySet()) rs.add(Json.createArrayBuilder().add(r.getKey()).add(r.getValue()));
+			return Json.createObjectBuilder()
+					.add("id", id)
+					.add("user", user)
+					.add("dir", dir)
+					.add("fileName", fileName)
+					.add("size", size)
+					.add("overwrite", overwrite)
+					.add("created", created)
+					.add("updated", updated)
+					.add("ranges", rs)
+					.build();
+		}
+	}
+
+	private UploadManager() {
+		load();
+	}
+
+	/**
+	 * Returns the single manager instance.
+	 *
+	 * @return manager instance
+	 */
+	public static synchronized UploadManager getInstance() {
+		if (instance == null) instance = new UploadManager();
+		return instance;
+	}
+
+	/**
+	 * Starts an upload: creates the temporary file, allocated to the size
+	 * of the file, and stores the session.
+	 *
+	 * @param user the user uploading
+	 * @param dir the target directory, relative to the document root
+	 * @param fileName the name of the file
+	 * @param size the size of the file
+	 * @param overwrite replace a file of the same name or not
+	 * @return the session
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public Session open(String user, String dir, String fileName, long size, boolean overwrite) throws IOException {
+		String id = UUID.randomUUID().toString().replace("-", "");
+		Session s = new Session(id, user, dir, fileName, size, overwrite, System.currentTimeMillis());
+		File part = s.getPartFile();
+		try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+			raf.setLength(size);
+		}
+		try {
+			store(s);
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		synchronized (sessions) {
+			sessions.put(id, s);
+		}
+		logger.debug("Upload " + id + " started: " + part.getAbsolutePath());
+		return s;
+	}
+
+	/**
+	 * Returns a session of a user.
+	 *
+	 * @param id session ID
+	 * @param user the user
+	 * @return the session or <code>null</code>, if there is no such session
+	 * 		of the user
+	 */
+	public Session get(String id, String user) {
+		Session s;
+		synchronized (sessions) {
+			s = sessions.get(id);
+		}
+		return s != null && s.user.equals(user)? s : null;
+	}
+
+	/**
+	 * A chunk of a session being written, which its bytes are written to
+	 * as they arrive. It is ended by {@link #finish()} or {@link #fail()},
+	 * and the bytes written are recorded as received only once they have
+	 * been forced to the disk, which is also done if the chunk fails.
+	 */
+	public static class Chunk {
+
+		private final Session s;
+		private final FileChannel out;
+		private final long offset;
+		private final long length;
+		private long written = 0;
+		private boolean ended = false;
+
+		private Chunk(Session s, FileChannel out, long offset, long length) {
+			this.s = s;
+			this.out = out;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Writes the next bytes of the chunk. Bytes beyond the length of
+		 * the chunk are ignored.
+		 *
+		 * @param buf the bytes
+		 * @param off their offset in the array
+		 * @param len their number
+		 * @throws IOException if the bytes cannot be written
+		 */
+		public void write(byte[] buf, int off, int len) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(buf, off, (int) Math.min(len, getRemaining()));
+			while (bb.hasRemaining()) out.write(bb, offset + written + bb.position() - off);
+			written += bb.limit() - off;
+		}
+
+		/**
+		 * Returns the number of bytes of the chunk not written yet.
+		 *
+		 * @return bytes remaining
+		 */
+		public long getRemaining() {
+			return length - written;
+		}
+
+		/**
+		 * Ends the chunk after all its bytes have been written.
+		 *
+		 * @throws IOException if the chunk has not been received whole or
+		 * 		cannot be forced to the disk
+		 */
+		public void finish() throws IOException {
+			boolean forced = false;
+			try {
+				// the range is only recorded once it is on the disk
+				out.force(false);
+				forced = true;
+			} finally {
+				end(forced);
+			}
+			if (written < length) throw new IOException("Chunk truncated: " + written + " of " + length + " bytes received");
+		}
+
+		/**
+		 * Ends the chunk after its stream has failed, keeping the bytes
+		 * received, if they can be put on the disk.
+		 */
+		public void fail() {
+			boolean forced = false;
+			if (written > 0) {
+				try {
+					out.force(false);
+					forced = true;
+				} catch (IOException e) {
+					logger.warn("Could not force chunk of upload " + s.id, e);
+				}
+			}
+			end(forced);
+		}
+
+		private void end(boolean forced) {
+			synchronized (this) {
+				if (ended) return;
+				ended = true;
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.warn("Could not close upload " + s.id, e);
+			}
+			synchronized (s) {
+				s.writers--;
+				if (forced && written > 0) {
+					s.add(offset, offset + written);
+					s.updated = System.currentTimeMillis();
+					try {
+						store(s);
+					} catch (IOException e) {
+						logger.error("Could not store upload " + s.id, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens a chunk of the file at its offset for writing. The chunk may be
+	 * received in parallel with other chunks of the session, and must be
+	 * ended by {@link Chunk#finish()} or {@link Chunk#fail()}.
+	 *
+	 * @param s the session
+	 * @param offset the offset of the chunk in the file
+	 * @param length the length of the chunk
+	 * @return the chunk or <code>null</code>, if the session has been
+	 * 		committed or removed meanwhile
+	 * @throws IOException if the temporary file cannot be opened
+	 */
+	public Chunk openChunk(Session s, long offset, long length) throws IOException {
+		synchronized (s) {
+			if (s.closed) return null;
+			s.writers++;
+		}
+		try {
+			return new Chunk(s, FileChannel.open(s.getPartFile().toPath(), StandardOpenOption.WRITE), offset, length);
+		} catch (IOException | RuntimeException e) {
+			synchronized (s) {
+				s.writers--;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a chunk of the file at its offset from a stream, see
+	 * {@link #openChunk(Session, long, long)}.
+	 *
+	 * @param s the session
+	 * @param offset the offset of the chunk in the file
+	 * @param length the length of the chunk
+	 * @param in the stream of the chunk
+	 * @return <code>false</code>, if the session has been committed or
+	 * 		removed meanwhile
+	 * @throws IOException if the stream ends before the whole chunk has been
+	 * 		read or cannot be read, or the chunk cannot be written
+	 */
+	public boolean write(Session s, long offset, long length, InputStream in) throws IOException {
+		Chunk chunk = openChunk(s, offset, length);
+		if (chunk == null) return false;
+		boolean received = false;
+		try {
+			byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+			int n;
+			while (chunk.getRemaining() > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, chunk.getRemaining()))) > 0) {
+				chunk.write(buf, 0, n);
+			}
+			received = true;
+		} finally {
+			if (!received) chunk.fail();
+		}
+		chunk.finish();
+		return true;
+	}
+
+	/**
+	 * Publishes the file of a complete session under its name or, if a file
+	 * of that name exists and may not be overwritten, a numbered name.
+	 * The file is hashed and its hash recorded in the {@link DigestIndex}.
+	 *
+	 * @param s the session
+	 * @return the file or <code>null</code>, if the session is not complete
+	 * 		or chunks are being written
+	 * @throws IOException if the file cannot be renamed
+	 */
+	public File commit(Session s) throws IOException {
+		synchronized (s) {
+			if (s.closed || s.writers > 0 || !s.isComplete()) return null;
+			s.closed = true;
+		}
+		File part = s.getPartFile();
+		File shared = part;
+		File f;
+		String hash = null;
+		try {
+			// the chunks arrive in any order, so the file is hashed when complete
+			BlobStore blobs = BlobStore.getInstance();
+			if (blobs.isEnabled() || DigestIndex.getInstance().isEnabled()) hash = BlobStore.hash(part);
+			if (hash != null && blobs.isEnabled()) shared = blobs.share(part, hash);
+			f = ExtendedMultipartRequest.publish(shared, new File(part.getParentFile(), s.fileName), s.overwrite);
+		} catch (IOException e) {
+			if (shared != part) shared.renameTo(part);
+			synchronized (s) {
+				s.closed = false;
+			}
+			throw e;
+		}
+		remove(s);
+		DigestIndex.getInstance().put(f, hash);
+		logger.debug("Upload " + s.id + " committed: " + f.getAbsolutePath());
+		return f;
+	}
+
+	/**
+	 * Cancels a session and deletes its temporary file.
+	 *
+	 * @param s the session
+	 * @return <code>false</code>, if chunks of the session are being written
+	 * 		or it is being committed
+	 */
+	public boolean abort(Session s) {
+		synchronized (s) {
+			if (s.writers > 0 || s.closed) return false;
+			s.closed = true;
+		}
+		s.getPartFile().delete();
+		remove(s);
+		logger.debug("Upload " + s.id + " aborted");
+		return true;
+	}
+
+	private void remove(Session s) {
+		synchronized (sessions) {
+			sessions.remove(s.id);
+		}
+		getSessionFile(s.id).delete();
+	}
+
+	private static File getUploadsDir() {
+		return new File(ConfigurationManager.getInstance().getConfigRoot(), UPLOADS_DIR);
+	}
+
+	private static File getSessionFile(String id) {
+		return new File(getUploadsDir(), id + SESSION_SUFFIX);
+	}
+
+	/**
+	 * Stores a session, replacing the stored one atomically.
+	 */
+	private static void store(Session s) throws IOException {
+		File dir = getUploadsDir();
+		Files.createDirectories(dir.toPath());
+		File tmp = File.createTempFile(s.id, ".tmp", dir);
+		try {
+			try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+					JsonWriter json = Json.createWriter(w)) {
+				json.writeObject(s.toJson());
+			}
+			Files.move(tmp.toPath(), getSessionFile(s.id).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/**
+	 * Loads the stored sessions, whose temporary files still exist.
+	 */
+	private void load() {
+		File[] files = getUploadsDir().listFiles();
+		if (files == null) return;
+		for (File f: files) {
+			if (!f.getName().endsWith(SESSION_SUFFIX)) {
+				// left by a failed store
+				f.delete();
+				continue;
+			}
+			try (Reader r = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8);
+					JsonReader json = Json.createReader(r)) {
+				JsonObject o = json.readObject();
+				Session s = new Session(o.getString("id"), o.getString("user"), o.getString("dir"), o.getString("fileName"),
+						o.getJsonNumber("size").longValue(), o.getBoolean("overwrite"), o.getJsonNumber("created").longValue());
+				s.updated = o.getJsonNumber("updated").longValue();
+				for (JsonValue v: o.getJsonArray("ranges")) {
+					JsonArray range = (JsonArray) v;
+					s.add(range.getJsonNumber(0).longValue(), range.getJsonNumber(1).longValue());
+				}
+				if (!s.getPartFile().isFile()) {
+					logger.info("Upload " + s.id + " has no temporary file, removed");
+					f.delete();
+					continue;
+				}
+				sessions.put(s.id, s);
+			} catch (IOException | JsonException | ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+				logger.error("Could not load upload session: " + f.getAbsolutePath(), e);
+			}
+		}
+		if (!sessions.isEmpty()) logger.info("Loaded " + sessions.size() + " upload sessions");
+	}
+
+	/**
+	 * Removes the sessions without a chunk for longer than the configured
+	 * time, once a minute.
+	 */
+	@Override
+	public void runPeriodically() {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < SWEEP_PERIOD) return;
+		lastSweep = now;
+
+		long ttl = TimeUnit.SECONDS.toMillis(ConfigurationManager.getInstance().getLong(ConfigurationManager.KEY_UPLOAD_SESSION_TTL, 86400));
+		if (ttl <= 0) return;
+		List<Session> expired = new ArrayList<Session>();
+		synchronized (sessions) {
+			for (Session s: sessions.values()) {
+				synchronized (s) {
+					if (s.writers == 0 && !s.closed && now - s.updated > ttl) expired.add(s);
+				}
+			}
+		}
+		for (Session s: expired) {
+			if (abort(s)) logger.info("Upload " + s.id + " abandoned, removed: " + s.getPartFile().getAbsolutePath());
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.infrarch.engine.worker;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
@@ -130,10 +131,24 @@ public class UserManager {
 	 * @return true if the user has access to the directory
 	 */
 	public boolean checkUserAccess(String id, String dir) {
+		Row user = getUserRow(id);
+		if (user == null) return false;
+		return isInHome(user.getString(FIELD_HOME), dir);
+	}
+
+	/**
+	 * Determines whether a directory is inside a home directory. Both are 
+	 * normalized first, so a directory cannot escape the home with "..".
+	 * 
+	 * @param home home directory (relative)
+	 * @param dir directory (relative) to query
+	 * @return true if the directory is the home directory or inside it
+	 */
+	public static boolean isInHome(String home, String dir) {
+		if (home == null || dir == null) return false;
 		String baseDir = ConfigurationManager.getInstance().getDocRoot();
-		String absPath = new File(baseDir, dir).getAbsolutePath();
-		String root = getUserRow(id).getString(FIELD_HOME);
-		File rootDir = new File(baseDir, root);
-		return absPath.startsWith(rootDir.getAbsolutePath());
+		Path path = new File(baseDir, dir).toPath().toAbsolutePath().normalize();
+		Path root = new File(baseDir, home).toPath().toAbsolutePath().normalize();
+		return path.startsWith(root);
 	}
 }
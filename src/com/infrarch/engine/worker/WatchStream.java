@@ -0,0 +1,213 @@
+package com.infrarch.engine.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streams the changes in a directory to the client as server-sent events,
+ * using non-blocking servlet I/O. The stream starts with a {@code ready}
+ * event; then each burst of changes is sent as a {@code change} event with
+ * a JSON array of the changed files and what happened to them, e.g.
+ * {@code [{"name":"a.txt","change":"create"}]}. A {@code rescan} event tells
+ * the client that changes may have been missed and it should list the
+ * directory again. The stream ends after a {@code rescan}, if the directory
+ * is no longer watched, e.g. because it has been deleted or moved.
+ * <p>
+ * Events are queued while the client cannot take more data. If a client
+ * falls too far behind, its queue is replaced by a single {@code rescan}.
+ *
+ * @author Assen Antov
+ * @version 1.0, 07/2016
+ */
+public class WatchStream implements DirectoryWatcher.Subscriber, WriteListener, AsyncListener {
+
+	private static final Logger logger = Logger.getLogger(WatchStream.class);
+	private static final JsonBuilderFactory factory = Json.createBuilderFactory(null);
+
+	private static final int MAX_QUEUED = 256;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final DirectoryWatcher watcher;
+	private final File dir;
+	private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private AsyncContext context;
+	private ServletOutputStream out;
+	private boolean started = false;
+	private boolean ending = false;
+	private boolean closed = false;
+
+	private WatchStream(DirectoryWatcher watcher, File dir) {
+		this.watcher = watcher;
+		this.dir = dir;
+	}
+
+	/**
+	 * Starts streaming the changes in a directory. The method returns
+	 * immediately. Nothing is written to the response, if the stream
+	 * cannot be started.
+	 *
+	 * @param dir directory to watch
+	 * @param request the HTTP request; must support asynchronous mode
+	 * @param response the HTTP response
+	 * @return <code>false</code>, if no more directories can be watched
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public static boolean start(File dir, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		DirectoryWatcher watcher = DirectoryWatcher.getInstance();
+		WatchStream stream = new WatchStream(watcher, dir);
+		if (!watcher.subscribe(dir, stream)) return false;
+		stream.queue("retry: 5000\nevent: ready\ndata: {}\n\n");
+
+		// changes are queued until the stream can be written, i.e. the 
+		// listener is set
+		try {
+			response.setContentType("text/event-stream");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("X-Accel-Buffering", "no");
+			
+			synchronized (stream) {
+				stream.context = request.startAsync();
+				stream.context.setTimeout(0);	// the stream is open until the client leaves
+				stream.context.addListener(stream);
+				stream.out = response.getOutputStream();
+				stream.started = true;
+				stream.out.setWriteListener(stream);
+			}
+		} catch (IOException | RuntimeException e) {
+			watcher.unsubscribe(dir, stream);
+			throw e;
+		}
+		return true;
+	}
+
+	@Override
+	public void changed(File dir, Map<String, String> changes) {
+		JsonArrayBuilder array = factory.createArrayBuilder();
+		for (Map.Entry<String, String> e: changes.entrySet()) {
+			array.add(factory.createObjectBuilder()
+				.add("name", e.getKey())
+				.add("change", e.getValue()));
+		}
+		queue("event: change\ndata: " + array.build() + "\n\n");
+		drain();
+	}
+
+	@Override
+	public void rescan(File dir) {
+		queue.clear();
+		queued.set(0);
+		queue("event: rescan\ndata: {}\n\n");
+		drain();
+	}
+
+	@Override
+	public void removed(File dir) {
+		synchronized (this) {
+			ending = true;
+		}
+		drain();
+	}
+
+	@Override
+	public void heartbeat() {
+		if (queue.isEmpty()) {
+			queue.add(HEARTBEAT);
+			queued.incrementAndGet();
+		}
+		drain();
+	}
+
+	private void queue(String event) {
+		if (queued.incrementAndGet() > MAX_QUEUED) {
+			queue.clear();
+			queued.set(1);
+			event = "event: rescan\ndata: {}\n\n";
+		}
+		queue.add(event.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		drain();
+	}
+
+	/**
+	 * Writes the queued events, as long as the client can take them.
+	 */
+	private synchronized void drain() {
+		if (closed || !started) return;
+		try {
+			boolean written = false;
+			while (out.isReady()) {
+				byte[] b = queue.poll();
+				if (b == null) {
+					if (written) out.flush();
+					if (ending) finish();
+					return;
+				}
+				queued.decrementAndGet();
+				out.write(b);
+				written = true;
+			}
+		} catch (IOException | IllegalStateException e) {
+			logger.debug("Watch stream closed: " + dir.getAbsolutePath());
+			finish();
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		logger.debug("Watch stream failed: " + dir.getAbsolutePath(), t);
+		finish();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		finish();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {}
+
+	private synchronized void finish() {
+		if (closed) return;
+		close();
+		if (context != null) context.complete();
+	}
+
+	private synchronized void close() {
+		if (closed) return;
+		closed = true;
+		queue.clear();
+		watcher.unsubscribe(dir, this);
+	}
+}